@@ -18,21 +18,33 @@ package com.dandandin.android.risi;
 import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import com.dandandin.android.risi.data.RiceContract.RiceEntry;
 
@@ -43,16 +55,144 @@ import com.dandandin.android.risi.data.RiceContract.RiceEntry;
 public class CatalogActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor> {
 
+    /** Tag for the log messages */
+    private static final String LOG_TAG = CatalogActivity.class.getSimpleName();
+
     /** Identifier for the rice data loader */
     private static final int RICE_LOADER = 0;
+
+    /** Keys used to keep the sort order and the filter across configuration changes */
+    private static final String STATE_SORT = "sort";
+    private static final String STATE_PACKAGING_FILTER = "packaging_filter";
+
+    /** Value of {@link #mPackagingFilter} when the list is not filtered */
+    private static final int FILTER_NONE = -1;
+
+    /** Number of rows loaded at a time while the user scrolls the list */
+    private static final int PAGE_SIZE = 50;
+
+    /** The next page is loaded when the user scrolls within this many rows of the end */
+    private static final int PAGE_PREFETCH_DISTANCE = 15;
+
+    /**
+     * Columns of the list. The sort keys must be among them to find where a page ends, and
+     * the packaging to find out whether a changed rice still belongs to the filtered list.
+     */
+    private static final String[] PROJECTION = {
+            RiceEntry._ID,
+            RiceEntry.COLUMN_RICE_NAME,
+            RiceEntry.COLUMN_BREED,
+            RiceEntry.COLUMN_PRICE,
+            RiceEntry.COLUMN_PACKAGING };
+
+    /** Index of the _id column in {@link #PROJECTION} */
+    private static final int ID_COLUMN_INDEX = 0;
+
+    /** Index of the packaging column in {@link #PROJECTION} */
+    private static final int PACKAGING_COLUMN_INDEX = 4;
+
+    /** Name of the file with the snapshot of the first rows, in the cache of the app */
+    private static final String SNAPSHOT_FILE_NAME = "catalog_snapshot";
+
     /** Adapter for the ListView */
     RiceCursorAdapter mCursorAdapter;
 
+    /** The list of the risi */
+    private ListView mListView;
+
+    /** Id of the menu item of the current sort order */
+    private int mSortItemId = R.id.action_sort_default;
+
+    /** Packaging the list is filtered on, or {@link #FILTER_NONE} */
+    private int mPackagingFilter = FILTER_NONE;
+
+    /**
+     * Number of rows read by the rice loader: the first page, or after a change the pages up
+     * to the rows on screen, see {@link #reloadRows()}.
+     */
+    private int mRowLimit = PAGE_SIZE;
+
+    /** Cursor of the rice loader, with the first {@link #mRowLimit} rows at the time it loaded */
+    private Cursor mFirstRows;
+
+    /** Pages loaded after {@link #mFirstRows} while scrolling, closed when it's reloaded */
+    private final ArrayList<Cursor> mPages = new ArrayList<Cursor>();
+
+    /** Whether the last row of the list has been loaded */
+    private boolean mEndReached;
+
+    /** The task loading the next page, null if none is running */
+    private NextPageTask mNextPageTask;
+
+    /** The tasks reading the risi that changed, cancelled when the activity is destroyed */
+    private final ArrayList<RiceTask> mRiceTasks = new ArrayList<RiceTask>();
+
+    /** Whether the activity has been destroyed, since isDestroyed() needs API 17 */
+    private boolean mDestroyed;
+
+    /**
+     * Rows shown in the list: the first rows and the pages after them, with the changes to
+     * single risi applied in place since they were loaded.
+     */
+    private PatchedCursor mRows;
+
+    /**
+     * The rows of the last snapshot shown while the loader reads the first rows, null once the
+     * loader has finished (or if there was no snapshot for the list).
+     */
+    private Cursor mSnapshotRows;
+
+    /** The task reading the snapshot, null once it's done */
+    private SnapshotTask mSnapshotTask;
+
+    /** The last snapshot saved, so it's only written again if the rows changed */
+    private byte[] mSavedSnapshot;
+
+    /** Time the activity was created, to measure how long the first rows take to show up */
+    private long mCreateTime;
+
+    /** Whether the first rows of the list have been shown since the activity was created */
+    private boolean mFirstContentShown;
+
+    /**
+     * Observer of the changes to the risi. A change to a single rice only updates its row in
+     * the list, other changes reload the list.
+     */
+    private final ContentObserver mRiceObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            // Before Jelly Bean the changed URI is not known
+            reloadRows();
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            long id = uri == null ? -1 : RiceEntry.getChangedId(uri);
+            String change = id == -1 ? null : uri.getQueryParameter(RiceEntry.QUERY_PARAMETER_CHANGE);
+            if (change == null) {
+                reloadRows();
+            } else if (RiceEntry.CHANGE_DELETE.equals(change)) {
+                onRiceDeleted(id);
+            } else {
+                RiceTask task = new RiceTask(id, change);
+                mRiceTasks.add(task);
+                task.execute();
+            }
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreateTime = SystemClock.uptimeMillis();
         setContentView(R.layout.activity_catalog);
 
+        // Restore the sort order and the filter chosen by the user
+        if (savedInstanceState != null) {
+            mSortItemId = savedInstanceState.getInt(STATE_SORT, mSortItemId);
+            mPackagingFilter = savedInstanceState.getInt(STATE_PACKAGING_FILTER, mPackagingFilter);
+        }
+
         // Setup FAB to open EditorActivity
         FloatingActionButton fab = (FloatingActionButton) findViewById(R.id.fab);
         fab.setOnClickListener(new View.OnClickListener() {
@@ -65,6 +205,7 @@ public class CatalogActivity extends AppCompatActivity implements
 
         // Find the ListView which will be populated with the rice data
         ListView riceListView = (ListView) findViewById(R.id.list);
+        mListView = riceListView;
         // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
         View emptyView = findViewById(R.id.empty_view);
         riceListView.setEmptyView(emptyView);
@@ -74,6 +215,22 @@ public class CatalogActivity extends AppCompatActivity implements
         mCursorAdapter = new RiceCursorAdapter(this, null);
         riceListView.setAdapter(mCursorAdapter);
 
+        // Load the next page when the user gets close to the end of the list
+        riceListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                if (totalItemCount > 0
+                        && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
+            }
+        });
+
         // Setup the item click listener
         riceListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
@@ -86,6 +243,12 @@ public class CatalogActivity extends AppCompatActivity implements
                 Uri currentRiceUri = ContentUris.withAppendedId(RiceEntry.CONTENT_URI, id);
                 // Set the URI on the data field of the intent
                 intent.setData(currentRiceUri);
+                // Pass the values of the row too, so the editor shows them without waiting
+                // for the database
+                Cursor row = (Cursor) adapterView.getItemAtPosition(position);
+                if (row != null) {
+                    intent.putExtra(EditorActivity.EXTRA_RICE_VALUES, EditorActivity.readRice(row));
+                }
                 // Launch the {@link EditorActivity} to display the data for the current pet.
                 startActivity(intent);
                 }
@@ -93,12 +256,46 @@ public class CatalogActivity extends AppCompatActivity implements
 
         //start the loader
         getLoaderManager().initLoader(RICE_LOADER, null, this);
+
+        // Show the rows saved the last time while the loader reads them from the database.
+        // On a configuration change the loader already has them.
+        if (savedInstanceState == null) {
+            mSnapshotTask = new SnapshotTask(getListKey());
+            mSnapshotTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+
+        // Listen to the changes to the risi, to apply them to the list
+        getContentResolver().registerContentObserver(RiceEntry.CONTENT_URI, true, mRiceObserver);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDestroyed = true;
+        getContentResolver().unregisterContentObserver(mRiceObserver);
+        for (RiceTask task : mRiceTasks) {
+            task.cancel(false);
+        }
+        mRiceTasks.clear();
+        // The pages are not managed by the loader, so close them here
+        cancelNextPage();
+        closePages();
+        if (mSnapshotTask != null) {
+            mSnapshotTask.cancel(false);
+        }
+        closeSnapshot();
     }
 
-    //Helper method to wipe the database.
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_SORT, mSortItemId);
+        outState.putInt(STATE_PACKAGING_FILTER, mPackagingFilter);
+    }
+
+    //Helper method to wipe the database, in the background.
     private void deleteAllTheRisi() {
-        int rowsDeleted = getContentResolver().delete(RiceEntry.CONTENT_URI, null, null);
-        Log.v("CatalogActivity", rowsDeleted + " rows deleted from pet database");
+        RiceWriteQueue.getInstance(this).delete(RiceEntry.CONTENT_URI);
     }
 
     @Override
@@ -109,6 +306,78 @@ public class CatalogActivity extends AppCompatActivity implements
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        // Check the current sort order and filter
+        menu.findItem(mSortItemId).setChecked(true);
+        menu.findItem(getFilterItemId(mPackagingFilter)).setChecked(true);
+        return true;
+    }
+
+    /**
+     * Returns the column to sort the list by for the given sort menu item. Every one of them
+     * has an index, so the pages of the list can be read straight from it.
+     */
+    private static String getSortKey(int sortItemId) {
+        switch (sortItemId) {
+            case R.id.action_sort_name:
+                return RiceEntry.COLUMN_RICE_NAME;
+            case R.id.action_sort_breed:
+                return RiceEntry.COLUMN_BREED;
+            case R.id.action_sort_price_asc:
+            case R.id.action_sort_price_desc:
+                return RiceEntry.COLUMN_PRICE;
+            default:
+                // Insertion order
+                return RiceEntry._ID;
+        }
+    }
+
+    /**
+     * Returns whether the given sort menu item sorts from the highest value to the lowest.
+     */
+    private static boolean isSortDescending(int sortItemId) {
+        return sortItemId == R.id.action_sort_price_desc;
+    }
+
+    /**
+     * Returns the packaging for the given filter menu item, or {@link #FILTER_NONE}.
+     */
+    private static int getPackagingFilter(int filterItemId) {
+        switch (filterItemId) {
+            case R.id.action_filter_vacuum:
+                return RiceEntry.PACK_VACUUM;
+            case R.id.action_filter_carton:
+                return RiceEntry.PACK_CARTON;
+            case R.id.action_filter_vacuumcarton:
+                return RiceEntry.PACK_VACUUMCARTON;
+            case R.id.action_filter_bag:
+                return RiceEntry.PACK_BAG;
+            default:
+                return FILTER_NONE;
+        }
+    }
+
+    /**
+     * Returns the filter menu item for the given packaging, the opposite of
+     * {@link #getPackagingFilter(int)}.
+     */
+    private static int getFilterItemId(int packagingFilter) {
+        switch (packagingFilter) {
+            case RiceEntry.PACK_VACUUM:
+                return R.id.action_filter_vacuum;
+            case RiceEntry.PACK_CARTON:
+                return R.id.action_filter_carton;
+            case RiceEntry.PACK_VACUUMCARTON:
+                return R.id.action_filter_vacuumcarton;
+            case RiceEntry.PACK_BAG:
+                return R.id.action_filter_bag;
+            default:
+                return R.id.action_filter_all;
+        }
+    }
+
     private void insertDummyRices(){
         // Create a ContentValues object where column names are the keys,
         // and some rice attributes are the values.
@@ -118,11 +387,9 @@ public class CatalogActivity extends AppCompatActivity implements
         values.put(RiceEntry.COLUMN_PACKAGING, RiceEntry.PACK_VACUUMCARTON);
         values.put(RiceEntry.COLUMN_PRICE,240);
 
-        // Insert a new row for Toto into the provider using the ContentResolver.
-        // Use the {@link PetEntry#CONTENT_URI} to indicate that we want to insert
-        // into the pets database table.
-        // Receive the new content URI that will allow us to access Toto's data in the future.
-        Uri newUri = getContentResolver().insert(RiceEntry.CONTENT_URI, values);
+        // Insert a new row into the provider in the background. The list shows it when the
+        // change is notified.
+        RiceWriteQueue.getInstance(this).insert(values);
     }
 
     @Override
@@ -137,36 +404,480 @@ public class CatalogActivity extends AppCompatActivity implements
             case R.id.action_delete_all_entries:
                 deleteAllTheRisi();
                 return true;
+            // Respond to a click on the "Compact database" menu option
+            case R.id.action_compact_database:
+                new CompactTask(this).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                return true;
+            // Respond to a click on one of the sort orders
+            case R.id.action_sort_default:
+            case R.id.action_sort_name:
+            case R.id.action_sort_breed:
+            case R.id.action_sort_price_asc:
+            case R.id.action_sort_price_desc:
+                mSortItemId = item.getItemId();
+                item.setChecked(true);
+                // Start again from the first page
+                mRowLimit = PAGE_SIZE;
+                getLoaderManager().restartLoader(RICE_LOADER, null, this);
+                return true;
+            // Respond to a click on one of the packaging filters
+            case R.id.action_filter_all:
+            case R.id.action_filter_vacuum:
+            case R.id.action_filter_carton:
+            case R.id.action_filter_vacuumcarton:
+            case R.id.action_filter_bag:
+                mPackagingFilter = getPackagingFilter(item.getItemId());
+                item.setChecked(true);
+                // Start again from the first page
+                mRowLimit = PAGE_SIZE;
+                getLoaderManager().restartLoader(RICE_LOADER, null, this);
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Returns the selection of the list: the packaging filter, if the user picked one.
+     */
+    private String getSelection() {
+        return mPackagingFilter == FILTER_NONE ? null : RiceEntry.COLUMN_PACKAGING + "=?";
+    }
+
+    /**
+     * Returns the arguments of {@link #getSelection()}.
+     */
+    private String[] getSelectionArgs() {
+        return mPackagingFilter == FILTER_NONE ? null : new String[] { String.valueOf(mPackagingFilter) };
+    }
+
+    /**
+     * Returns a key that identifies the current sort order and filter of the list, to only
+     * use a snapshot of the list with the same ones.
+     */
+    private String getListKey() {
+        return getSortKey(mSortItemId) + (isSortDescending(mSortItemId) ? " DESC" : " ASC")
+                + " " + mPackagingFilter;
+    }
+
+    /**
+     * Returns the URI of the first rows of the list, up to {@link #mRowLimit}.
+     */
+    private Uri getFirstRowsUri() {
+        return RiceEntry.buildPageUri(getSortKey(mSortItemId), isSortDescending(mSortItemId),
+                null, null, mRowLimit);
+    }
+
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // Define a projection that specifies the columns from the table we care about.
-        String[] projection = {
-                RiceEntry._ID,
-                RiceEntry.COLUMN_RICE_NAME,
-                RiceEntry.COLUMN_BREED };
-
-        // This loader will execute the ContentProvider's query method on a background thread
+        // This loader will execute the ContentProvider's query method on a background thread.
+        // It only reads the first rows, the next pages are loaded while the user scrolls.
         return new CursorLoader(this,   // Parent activity context
-                RiceEntry.CONTENT_URI,   // Provider content URI to query
-                projection,             // Columns to include in the resulting Cursor
-                null,                   // No selection clause
-                null,                   // No selection arguments
-                null);                  // Default sort order
+                getFirstRowsUri(),      // First page of the list, in the order chosen by the user
+                PROJECTION,             // Columns to include in the resulting Cursor
+                getSelection(),         // Packaging filter, if any
+                getSelectionArgs(),     // Packaging to filter on
+                null) {                 // The sort order is part of the URI
+            @Override
+            public void onContentChanged() {
+                // Don't reload everything on every change, mRiceObserver decides what to do
+            }
+        };
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Update {@link PetCursorAdapter} with this new cursor containing updated pet data
-        mCursorAdapter.swapCursor(data);
+        // The loader read the first rows again, up to the ones on screen, so the pages loaded
+        // while scrolling aren't needed anymore: the ones further down load again on scroll
+        cancelNextPage();
+        closePages();
+        mFirstRows = data;
+        mEndReached = data == null || data.getCount() < mRowLimit;
+        // The new rows already have all the changes
+        mRows = null;
+        showRows();
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
         // Callback called when the data needs to be deleted
+        cancelNextPage();
+        closePages();
+        mFirstRows = null;
+        mRows = null;
         mCursorAdapter.swapCursor(null);
     }
+
+    /**
+     * Show the first rows and the pages loaded after them in the list, keeping the changes
+     * made in place to the rows that were already shown.
+     */
+    private void showRows() {
+        if (mFirstRows == null) {
+            mRows = null;
+            mCursorAdapter.swapCursor(null);
+            closeSnapshot();
+            return;
+        }
+        Cursor rows = mFirstRows;
+        if (!mPages.isEmpty()) {
+            Cursor[] cursors = new Cursor[mPages.size() + 1];
+            cursors[0] = mFirstRows;
+            for (int i = 0; i < mPages.size(); i++) {
+                cursors[i + 1] = mPages.get(i);
+            }
+            rows = new MergeCursor(cursors);
+        }
+        mRows = mRows == null ? new PatchedCursor(rows) : new PatchedCursor(rows, mRows);
+        // The old cursors are not closed, that would close the cursors they're made of
+        mCursorAdapter.swapCursor(mRows);
+        closeSnapshot();
+        onContentShown("database");
+        saveSnapshot();
+    }
+
+    /**
+     * Show the rows of a snapshot, if the loader hasn't read the actual rows yet.
+     */
+    private void showSnapshot(Cursor snapshot) {
+        mSnapshotTask = null;
+        if (mFirstRows != null) {
+            snapshot.close();
+            return;
+        }
+        mSnapshotRows = snapshot;
+        mCursorAdapter.swapCursor(snapshot);
+        onContentShown("snapshot");
+    }
+
+    /**
+     * Close the rows of the snapshot once they're not shown anymore.
+     */
+    private void closeSnapshot() {
+        if (mSnapshotRows != null) {
+            mSnapshotRows.close();
+            mSnapshotRows = null;
+        }
+    }
+
+    /**
+     * Log how long the first rows took to show up after the activity was created.
+     *
+     * @param source where the rows come from
+     */
+    private void onContentShown(String source) {
+        if (!mFirstContentShown) {
+            mFirstContentShown = true;
+            Log.i(LOG_TAG, "First rows shown from the " + source + " after "
+                    + (SystemClock.uptimeMillis() - mCreateTime) + " ms");
+        }
+    }
+
+    /**
+     * Save the first rows of the list, if they changed since the last time, so the next start
+     * of the app can show them right away. The file is written on a background thread.
+     */
+    private void saveSnapshot() {
+        if (mRows == null) {
+            return;
+        }
+        final byte[] snapshot = CatalogSnapshot.encode(mRows, getListKey());
+        if (Arrays.equals(snapshot, mSavedSnapshot)) {
+            return;
+        }
+        mSavedSnapshot = snapshot;
+        // The serial executor keeps the writes in order
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                CatalogSnapshot.write(new File(getCacheDir(), SNAPSHOT_FILE_NAME), snapshot);
+            }
+        });
+    }
+
+    /**
+     * Read the list again, e.g. after a change that may touch many rows. Only the pages up to
+     * the rows on screen, plus one, are read again: the pages further down are dropped and
+     * loaded again if the user scrolls to them. So a change doesn't read again all the rows
+     * the user went through before scrolling back up.
+     */
+    private void reloadRows() {
+        Loader<Cursor> loader = getLoaderManager().getLoader(RICE_LOADER);
+        if (loader == null) {
+            return;
+        }
+        Cursor loaded = mRows == null ? null : mRows.getWrappedCursor();
+        int loadedRows = loaded == null ? PAGE_SIZE : loaded.getCount();
+        int neededRows = Math.min(mListView.getLastVisiblePosition() + 1 + PAGE_SIZE, loadedRows);
+        // Whole pages, at least the first one
+        mRowLimit = Math.max(1, (neededRows + PAGE_SIZE - 1) / PAGE_SIZE) * PAGE_SIZE;
+        ((CursorLoader) loader).setUri(getFirstRowsUri());
+        loader.forceLoad();
+    }
+
+    /**
+     * Remove a deleted rice from the list, if it's there.
+     */
+    private void onRiceDeleted(long id) {
+        if (mRows == null) {
+            return;
+        }
+        int position = mRows.findRow(ID_COLUMN_INDEX, id);
+        if (position != -1) {
+            mRows.removeRow(position);
+            mCursorAdapter.notifyDataSetChanged();
+            saveSnapshot();
+        }
+    }
+
+    /**
+     * Apply the change to an added or updated rice to the list: update its row in place if
+     * it's there and its position didn't change, otherwise reload the rows.
+     *
+     * @param id     the id of the rice
+     * @param change the kind of change
+     * @param row    the values of the rice for {@link #PROJECTION}, null if it doesn't exist anymore
+     */
+    private void onRiceChanged(long id, String change, Object[] row) {
+        if (mRows == null || mDestroyed || isFinishing()) {
+            return;
+        }
+        boolean inList = row != null && (mPackagingFilter == FILTER_NONE
+                || ((Number) row[PACKAGING_COLUMN_INDEX]).intValue() == mPackagingFilter);
+        int position = mRows.findRow(ID_COLUMN_INDEX, id);
+
+        if (position == -1) {
+            // A new rice sorted by insertion comes after the rows loaded so far,
+            // so it will just show up with the next pages
+            boolean afterLoadedRows = RiceEntry.CHANGE_INSERT.equals(change)
+                    && mSortItemId == R.id.action_sort_default && !mEndReached;
+            if (inList && !afterLoadedRows) {
+                reloadRows();
+            }
+            return;
+        }
+        if (!inList) {
+            // The rice has been deleted in the meantime or doesn't match the filter anymore
+            mRows.removeRow(position);
+            mCursorAdapter.notifyDataSetChanged();
+            saveSnapshot();
+            return;
+        }
+
+        // If the value of the sort key changed the rice may have to move: reload the rows
+        int keyColumnIndex = mRows.getColumnIndex(getSortKey(mSortItemId));
+        int current = mRows.getPosition();
+        mRows.moveToPosition(position);
+        String oldKey = mRows.getString(keyColumnIndex);
+        mRows.moveToPosition(current);
+        Object newKey = row[keyColumnIndex];
+        if (oldKey == null ? newKey != null : !oldKey.equals(String.valueOf(newKey))) {
+            reloadRows();
+            return;
+        }
+        mRows.patchRow(position, row);
+        mCursorAdapter.notifyDataSetChanged();
+        saveSnapshot();
+    }
+
+    /**
+     * Start loading the page after the last row of the list, unless the end has been reached
+     * or the page is already being loaded.
+     */
+    private void loadNextPage() {
+        if (mEndReached || mNextPageTask != null || mFirstRows == null) {
+            return;
+        }
+        // Use the rows as they were loaded: the last one may have been removed from the list
+        // since then, but the next page still starts after it
+        Cursor cursor = mRows == null ? null : mRows.getWrappedCursor();
+        if (cursor == null || !cursor.moveToLast()) {
+            return;
+        }
+
+        // The page starts right after the sort key and the id of the last row
+        String sortKey = getSortKey(mSortItemId);
+        int keyColumnIndex = cursor.getColumnIndex(sortKey);
+        String afterKey = cursor.isNull(keyColumnIndex) ? null : cursor.getString(keyColumnIndex);
+        long afterId = cursor.getLong(cursor.getColumnIndex(RiceEntry._ID));
+        Uri pageUri = RiceEntry.buildPageUri(sortKey, isSortDescending(mSortItemId),
+                afterKey, afterId, PAGE_SIZE);
+
+        mNextPageTask = new NextPageTask(getSelection(), getSelectionArgs());
+        mNextPageTask.execute(pageUri);
+    }
+
+    /**
+     * Add a page loaded by {@link NextPageTask} at the end of the list.
+     */
+    private void onNextPageLoaded(Cursor page) {
+        mNextPageTask = null;
+        if (page == null) {
+            return;
+        }
+        mPages.add(page);
+        mEndReached = page.getCount() < PAGE_SIZE;
+        showRows();
+    }
+
+    /**
+     * Stop loading the next page, if it's being loaded.
+     */
+    private void cancelNextPage() {
+        if (mNextPageTask != null) {
+            mNextPageTask.cancel(false);
+            mNextPageTask = null;
+        }
+    }
+
+    /**
+     * Close the pages loaded while scrolling, and drop the rows made of them.
+     */
+    private void closePages() {
+        for (Cursor page : mPages) {
+            page.close();
+        }
+        mPages.clear();
+        mRows = null;
+    }
+
+    /**
+     * Reads the snapshot of the first rows on a background thread, and shows it.
+     */
+    private class SnapshotTask extends AsyncTask<Void, Void, Cursor> {
+        private final String mListKey;
+
+        SnapshotTask(String listKey) {
+            mListKey = listKey;
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            return CatalogSnapshot.read(new File(getCacheDir(), SNAPSHOT_FILE_NAME), PROJECTION,
+                    mListKey);
+        }
+
+        @Override
+        protected void onPostExecute(Cursor snapshot) {
+            if (snapshot != null) {
+                showSnapshot(snapshot);
+            } else {
+                mSnapshotTask = null;
+            }
+        }
+
+        @Override
+        protected void onCancelled(Cursor snapshot) {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a single rice that has been added or updated on a background thread, and applies
+     * the change to the list.
+     */
+    private class RiceTask extends AsyncTask<Void, Void, Object[]> {
+        private final long mId;
+        private final String mChange;
+
+        RiceTask(long id, String change) {
+            mId = id;
+            mChange = change;
+        }
+
+        @Override
+        protected Object[] doInBackground(Void... params) {
+            Uri riceUri = ContentUris.withAppendedId(RiceEntry.CONTENT_URI, mId);
+            Cursor cursor = getContentResolver().query(riceUri, PROJECTION, null, null, null);
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                return cursor.moveToFirst() ? PatchedCursor.readRow(cursor) : null;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Object[] row) {
+            mRiceTasks.remove(this);
+            onRiceChanged(mId, mChange, row);
+        }
+
+        @Override
+        protected void onCancelled(Object[] row) {
+            mRiceTasks.remove(this);
+        }
+    }
+
+    /**
+     * Loads a page of the list on a background thread.
+     */
+    private class NextPageTask extends AsyncTask<Uri, Void, Cursor> {
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+
+        NextPageTask(String selection, String[] selectionArgs) {
+            mSelection = selection;
+            mSelectionArgs = selectionArgs;
+        }
+
+        @Override
+        protected Cursor doInBackground(Uri... uris) {
+            Cursor page = getContentResolver().query(uris[0], PROJECTION, mSelection,
+                    mSelectionArgs, null);
+            if (page != null) {
+                // Run the query and fill the cursor window here rather than on the main thread
+                page.getCount();
+            }
+            return page;
+        }
+
+        @Override
+        protected void onPostExecute(Cursor page) {
+            onNextPageLoaded(page);
+        }
+
+        @Override
+        protected void onCancelled(Cursor page) {
+            if (page != null) {
+                page.close();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the database on a background thread, see {@link RiceEntry#METHOD_REBUILD_DATABASE},
+     * and tells the user how it went. It only holds the application context, since it may
+     * outlive the activity.
+     */
+    private static class CompactTask extends AsyncTask<Void, Void, Integer> {
+        private final Context mContext;
+
+        CompactTask(Context context) {
+            mContext = context.getApplicationContext();
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            try {
+                Bundle result = mContext.getContentResolver().call(RiceEntry.CONTENT_URI,
+                        RiceEntry.METHOD_REBUILD_DATABASE, null, null);
+                return result.getBoolean(RiceEntry.KEY_DATABASE_REBUILT)
+                        ? R.string.compact_done : R.string.compact_not_needed;
+            } catch (RuntimeException e) {
+                // A SQLException, or an IllegalStateException if the database was in use and
+                // couldn't leave write-ahead logging for the rebuild
+                Log.e(LOG_TAG, "Failed to compact the database", e);
+                return R.string.compact_failed;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Integer message) {
+            Toast.makeText(mContext, message, Toast.LENGTH_SHORT).show();
+        }
+    }
 }
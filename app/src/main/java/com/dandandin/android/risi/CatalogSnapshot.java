@@ -0,0 +1,143 @@
+package com.dandandin.android.risi;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * {@link CatalogSnapshot} saves the first rows of the catalog to a small binary file, so the
+ * next time the app starts they can be shown before the database is even open. The snapshot
+ * is tied to the sort order and the filter of the list: it's only used for the same ones.
+ *
+ * The rows have the columns of the catalog, in this order: _id, name, breed, price and
+ * packaging.
+ */
+final class CatalogSnapshot {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = CatalogSnapshot.class.getSimpleName();
+
+    /** Number of rows saved: enough to fill the screen */
+    static final int ROWS = 20;
+
+    /** First int of the file, changed every time the format changes */
+    private static final int FORMAT_VERSION = 1;
+
+    private CatalogSnapshot() {}
+
+    /**
+     * Encode the first rows of a cursor, from the current values of the cursor. Reading the
+     * rows already in memory is cheap, so this can run on the main thread, while writing the
+     * result to the file should not.
+     *
+     * @param rows    the rows of the list, with the columns of the catalog
+     * @param listKey identifies the sort order and the filter of the list
+     */
+    static byte[] encode(Cursor rows, String listKey) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        int position = rows.getPosition();
+        try {
+            int count = Math.min(rows.getCount(), ROWS);
+            output.writeInt(FORMAT_VERSION);
+            output.writeUTF(listKey);
+            output.writeInt(count);
+            for (int i = 0; i < count && rows.moveToPosition(i); i++) {
+                output.writeLong(rows.getLong(0));
+                output.writeUTF(rows.getString(1));
+                output.writeBoolean(!rows.isNull(2));
+                if (!rows.isNull(2)) {
+                    output.writeUTF(rows.getString(2));
+                }
+                output.writeInt(rows.getInt(3));
+                output.writeInt(rows.getInt(4));
+            }
+            output.flush();
+        } catch (IOException e) {
+            // Writing to memory doesn't fail
+            throw new IllegalStateException(e);
+        } finally {
+            rows.moveToPosition(position);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write an encoded snapshot to a file. The file is replaced at once, so a reader never
+     * sees half of it.
+     */
+    static void write(File file, byte[] snapshot) {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(temp);
+            output.write(snapshot);
+            output.close();
+            output = null;
+            if (!temp.renameTo(file)) {
+                Log.w(LOG_TAG, "Failed to replace " + file);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to write " + file, e);
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    // Already failed
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the rows saved in a file.
+     *
+     * @param columns the names of the columns of the returned cursor
+     * @param listKey identifies the sort order and the filter of the list
+     * @return the rows, or null if there is no snapshot or it's for another list
+     */
+    static Cursor read(File file, String[] columns, String listKey) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != FORMAT_VERSION || !listKey.equals(input.readUTF())) {
+                return null;
+            }
+            int count = input.readInt();
+            MatrixCursor rows = new MatrixCursor(columns, count);
+            for (int i = 0; i < count; i++) {
+                long id = input.readLong();
+                String name = input.readUTF();
+                String breed = input.readBoolean() ? input.readUTF() : null;
+                int price = input.readInt();
+                int packaging = input.readInt();
+                rows.addRow(new Object[] { id, name, breed, price, packaging });
+            }
+            return rows;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to read " + file, e);
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    // Nothing left to read
+                }
+            }
+        }
+    }
+}
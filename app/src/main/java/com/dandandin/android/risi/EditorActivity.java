@@ -42,12 +42,28 @@ import com.dandandin.android.risi.data.RiceContract.RiceEntry;
 
 /**
  * Allows user to create a new pet or edit an existing one.
+ *
+ * An existing rice is shown right away with the values passed by the catalog. The loader
+ * still queries the rice in the background, a query that the row cache of the provider
+ * usually serves without reading the database, and shows its values if they differ. The
+ * loader queries the rice again whenever it changes. If the user has already edited the
+ * fields, their input is kept and they are warned that the rice changed instead.
  */
 public class EditorActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor> {
     /** Identifier for the pet data loader */
     private static final int EXISTING_RICE_LOADER = 0;
 
+    /**
+     * Extra of the intent with the values of the rice as the catalog shows them, see
+     * {@link #readRice(Cursor)}. The editor shows them right away, then checks them against
+     * the database in the background.
+     */
+    static final String EXTRA_RICE_VALUES = "com.dandandin.android.risi.extra.RICE_VALUES";
+
+    /** Key of {@link #mShownValues} in the saved state */
+    private static final String STATE_SHOWN_VALUES = "shown_values";
+
     /** Content URI for the existing pet (null if it's a new pet) */
     private Uri mCurrentRiceUri;
 
@@ -69,6 +85,9 @@ public class EditorActivity extends AppCompatActivity implements
      */
     private int mPackaging = RiceEntry.PACK_VACUUM;
 
+    /** Values of the rice shown by the editor, null if none yet */
+    private ContentValues mShownValues;
+
     /** Boolean flag that keeps track of whether the pet has been edited (true) or not (false) */
     private boolean mRiceHasChanged = false;
     /**
@@ -101,8 +120,6 @@ public class EditorActivity extends AppCompatActivity implements
         } else {
             // Otherwise this is an existing rice, so change app bar to say "Edit Rice"
             setTitle(getString(R.string.editor_activity_title_edit_rice));
-            // Initialize a loader to read the pet data from the database and display the current values in the editor
-            getLoaderManager().initLoader(EXISTING_RICE_LOADER, null, this);
         }
 
         // Find all relevant views that we will need to read user input from
@@ -120,6 +137,46 @@ public class EditorActivity extends AppCompatActivity implements
         mPackagingSpinner.setOnTouchListener(mTouchListener);
 
         setupSpinner();
+
+        if (mCurrentRiceUri != null) {
+            // Show the values passed by the catalog right away. The views keep what is shown
+            // when the activity is recreated.
+            if (savedInstanceState != null) {
+                mShownValues = savedInstanceState.getParcelable(STATE_SHOWN_VALUES);
+            } else {
+                mShownValues = intent.getParcelableExtra(EXTRA_RICE_VALUES);
+                if (mShownValues != null) {
+                    showRice(mShownValues);
+                }
+            }
+            // Initialize a loader to read the pet data from the database in the background:
+            // the values shown are only replaced if they are not current
+            getLoaderManager().initLoader(EXISTING_RICE_LOADER, null, this);
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(STATE_SHOWN_VALUES, mShownValues);
+    }
+
+    /**
+     * Returns the values of the rice at the current position of the cursor that the editor
+     * shows. The cursor must have the columns of the name, the breed, the packaging and the
+     * price.
+     */
+    static ContentValues readRice(Cursor cursor) {
+        ContentValues values = new ContentValues();
+        values.put(RiceEntry.COLUMN_RICE_NAME,
+                cursor.getString(cursor.getColumnIndex(RiceEntry.COLUMN_RICE_NAME)));
+        values.put(RiceEntry.COLUMN_BREED,
+                cursor.getString(cursor.getColumnIndex(RiceEntry.COLUMN_BREED)));
+        values.put(RiceEntry.COLUMN_PACKAGING,
+                cursor.getInt(cursor.getColumnIndex(RiceEntry.COLUMN_PACKAGING)));
+        values.put(RiceEntry.COLUMN_PRICE,
+                cursor.getInt(cursor.getColumnIndex(RiceEntry.COLUMN_PRICE)));
+        return values;
     }
 
     /**
@@ -188,7 +245,6 @@ public class EditorActivity extends AppCompatActivity implements
         values.put(RiceEntry.COLUMN_RICE_NAME, nameString);
         values.put(RiceEntry.COLUMN_BREED, breedString);
         values.put(RiceEntry.COLUMN_PACKAGING, mPackaging);
-        values.put(RiceEntry.COLUMN_PRICE, priceString);
 
         // If the price is not provided by the user, don't try to parse the string into an integer value. Use 0 by default.
         int price = 0;
@@ -197,33 +253,19 @@ public class EditorActivity extends AppCompatActivity implements
         }
         values.put(RiceEntry.COLUMN_PRICE,price);
 
+        // The write is applied in the background, so the editor can close right away: assume
+        // it succeeds, the queue shows a toast if it doesn't
         //vediamo se è un nuovo riso o una modifica di uno esistente
         if (mCurrentRiceUri==null){
-            // è nuovo! Insert a new rice into the provider, returning the content URI for the new rice.
-            Uri newUri = getContentResolver().insert(RiceEntry.CONTENT_URI, values);
-
-            // Show a toast message depending on whether or not the insertion was successful
-            if (newUri == null) {
-                // If the row ID is null, then there was an error with insertion.
-                Toast.makeText(this, "Error with saving rice", Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the insertion was successful and we can display a toast with the row ID.
-                Toast.makeText(this, "Rice saved", Toast.LENGTH_SHORT).show();
-            }
+            // è nuovo! Insert a new rice into the provider
+            RiceWriteQueue.getInstance(this).insert(values);
+            Toast.makeText(this, "Rice saved", Toast.LENGTH_SHORT).show();
         }
         else {
-            // Otherwise this is an EXISTING rice, so update it with content URI: mCurrentRiceUri
-            // and pass in the new ContentValues. Pass in null for the selection and selection args
-            // because mCurrentRiceUri will already identify the correct row in the database that we want to modify.
-            int rowsAffected = getContentResolver().update(mCurrentRiceUri, values, null, null);
-            // Show a toast message depending on whether or not the update was successful.
-            if (rowsAffected == 0) {
-                // If no rows were affected, then there was an error with the update.
-                Toast.makeText(this, "Error updating rice",Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the update was successful and we can display a toast.
-                Toast.makeText(this, "Edited",Toast.LENGTH_SHORT).show();
-            }
+            // Otherwise this is an EXISTING rice, so update it with content URI: mCurrentRiceUri.
+            // A save of the same rice still waiting takes these values instead.
+            RiceWriteQueue.getInstance(this).update(mCurrentRiceUri, values);
+            Toast.makeText(this, "Edited",Toast.LENGTH_SHORT).show();
         }
 
 
@@ -340,42 +382,53 @@ public class EditorActivity extends AppCompatActivity implements
         // Proceed with moving to the first row of the cursor and reading data from it
         // (This should be the only row in the cursor)
         if (cursor.moveToFirst()) {
-            // Find the columns of pet attributes that we're interested in
-            int nameColumnIndex = cursor.getColumnIndex(RiceEntry.COLUMN_RICE_NAME);
-            int breedColumnIndex = cursor.getColumnIndex(RiceEntry.COLUMN_BREED);
-            int packColumnIndex = cursor.getColumnIndex(RiceEntry.COLUMN_PACKAGING);
-            int priceColumnIndex = cursor.getColumnIndex(RiceEntry.COLUMN_PRICE);
-
-            // Extract out the value from the Cursor for the given column index
-            String name = cursor.getString(nameColumnIndex);
-            String breed = cursor.getString(breedColumnIndex);
-            int pack = cursor.getInt(packColumnIndex);
-            int price = cursor.getInt(priceColumnIndex);
-
-            // Update the views on the screen with the values from the database
-            mNameEditText.setText(name);
-            mBreedEditText.setText(breed);
-            mPriceEditText.setText(Integer.toString(price));
-
-            // Packaging is a dropdown spinner, so map the constant value from the database into one of the dropdown options
-            // Then call setSelection() so that option is displayed on screen as the current selection.
-            switch (pack) {
-                case RiceEntry.PACK_VACUUM:
-                    mPackagingSpinner.setSelection(0);
-                    break;
-                case RiceEntry.PACK_CARTON:
-                    mPackagingSpinner.setSelection(1);
-                    break;
-                case RiceEntry.PACK_VACUUMCARTON:
-                    mPackagingSpinner.setSelection(2);
-                    break;
-                case RiceEntry.PACK_BAG:
-                    mPackagingSpinner.setSelection(3);
-                    break;
-                default:
-                    mPackagingSpinner.setSelection(0);
-                    break;
+            ContentValues values = readRice(cursor);
+            // Most of the time the values passed by the catalog are still current: then
+            // there is nothing to update
+            if (values.equals(mShownValues)) {
+                return;
             }
+            mShownValues = values;
+            if (mRiceHasChanged) {
+                // Don't throw away what the user typed: saving it overwrites the new values
+                Toast.makeText(this, R.string.editor_rice_changed, Toast.LENGTH_LONG).show();
+                return;
+            }
+            showRice(values);
+        }
+    }
+
+    /**
+     * Update the views on the screen with the values of a rice, see {@link #readRice(Cursor)}.
+     */
+    private void showRice(ContentValues values) {
+        String name = values.getAsString(RiceEntry.COLUMN_RICE_NAME);
+        String breed = values.getAsString(RiceEntry.COLUMN_BREED);
+        int pack = values.getAsInteger(RiceEntry.COLUMN_PACKAGING);
+        int price = values.getAsInteger(RiceEntry.COLUMN_PRICE);
+
+        mNameEditText.setText(name);
+        mBreedEditText.setText(breed);
+        mPriceEditText.setText(Integer.toString(price));
+
+        // Packaging is a dropdown spinner, so map the constant value from the database into one of the dropdown options
+        // Then call setSelection() so that option is displayed on screen as the current selection.
+        switch (pack) {
+            case RiceEntry.PACK_VACUUM:
+                mPackagingSpinner.setSelection(0);
+                break;
+            case RiceEntry.PACK_CARTON:
+                mPackagingSpinner.setSelection(1);
+                break;
+            case RiceEntry.PACK_VACUUMCARTON:
+                mPackagingSpinner.setSelection(2);
+                break;
+            case RiceEntry.PACK_BAG:
+                mPackagingSpinner.setSelection(3);
+                break;
+            default:
+                mPackagingSpinner.setSelection(0);
+                break;
         }
     }
 
@@ -443,19 +496,10 @@ public class EditorActivity extends AppCompatActivity implements
     private void deleteRice() {
         //Only perform the delete if this is an existing rice.
         if (mCurrentRiceUri != null) {
-            // Call the ContentResolver to delete the pet at the given content URI.
-            // Pass in null for the selection and selection args because the mCurrentRiceUri
-            // content URI already identifies the pet that we want.
-            int rowsDeleted = getContentResolver().delete(mCurrentRiceUri, null, null);
-
-            // Show a toast message depending on whether or not the delete was successful.
-            if (rowsDeleted == 0) {
-                // If no rows were deleted, then there was an error with the delete.
-                Toast.makeText(this, "Error deleting",Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the delete was successful and we can display a toast.
-                Toast.makeText(this, "Successfully deleted",Toast.LENGTH_SHORT).show();
-            }
+            // Delete the rice at the given content URI in the background. The queue shows a
+            // toast if the delete fails.
+            RiceWriteQueue.getInstance(this).delete(mCurrentRiceUri);
+            Toast.makeText(this, "Successfully deleted",Toast.LENGTH_SHORT).show();
         }
         // Close the activity
         finish();
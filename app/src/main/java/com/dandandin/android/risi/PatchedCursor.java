@@ -0,0 +1,340 @@
+package com.dandandin.android.risi;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * {@link PatchedCursor} wraps a {@link Cursor} of the catalog and lets single rows be changed
+ * or removed in place, without querying the whole list again. The wrapped cursor is never
+ * modified: removed rows are skipped when moving, and the values of the changed rows are
+ * returned instead of the ones of the wrapped cursor.
+ */
+public class PatchedCursor extends CursorWrapper {
+
+    /** Positions in the wrapped cursor of the removed rows, in ascending order */
+    private final ArrayList<Integer> mRemoved;
+
+    /** New values of the changed rows, one per column, by position in the wrapped cursor */
+    private final SparseArray<Object[]> mPatches;
+
+    /** Current position, as seen by the users of this cursor */
+    private int mPos = -1;
+
+    /**
+     * Constructs a new {@link PatchedCursor} with no changes yet.
+     *
+     * @param cursor The cursor to wrap
+     */
+    public PatchedCursor(Cursor cursor) {
+        super(cursor);
+        mRemoved = new ArrayList<Integer>();
+        mPatches = new SparseArray<Object[]>();
+    }
+
+    /**
+     * Constructs a new {@link PatchedCursor} with the same changes as a previous one. The new
+     * cursor must start with the same rows as the one wrapped by the previous cursor, it can
+     * only have more rows after them (e.g. a new page).
+     *
+     * @param cursor   The cursor to wrap
+     * @param previous The cursor to copy the changes from
+     */
+    public PatchedCursor(Cursor cursor, PatchedCursor previous) {
+        super(cursor);
+        mRemoved = new ArrayList<Integer>(previous.mRemoved);
+        mPatches = new SparseArray<Object[]>(previous.mPatches.size());
+        for (int i = 0; i < previous.mPatches.size(); i++) {
+            mPatches.put(previous.mPatches.keyAt(i), previous.mPatches.valueAt(i));
+        }
+    }
+
+    /**
+     * Read all the values of the current row of a cursor, in the order of its columns.
+     */
+    public static Object[] readRow(Cursor cursor) {
+        Object[] row = new Object[cursor.getColumnCount()];
+        for (int i = 0; i < row.length; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row[i] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    row[i] = cursor.getString(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row[i] = cursor.getBlob(i);
+                    break;
+                default:
+                    row[i] = null;
+                    break;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Returns the position of the row with the given id, or -1 if it's not in the cursor.
+     *
+     * @param idColumnIndex Index of the column with the ids of the rows
+     * @param id            The id to look for
+     */
+    public int findRow(int idColumnIndex, long id) {
+        int position = mPos;
+        try {
+            for (int i = 0; moveToPosition(i); i++) {
+                if (getLong(idColumnIndex) == id) {
+                    return i;
+                }
+            }
+            return -1;
+        } finally {
+            moveToPosition(position);
+        }
+    }
+
+    /**
+     * Remove the row at the given position.
+     */
+    public void removeRow(int position) {
+        int wrappedPosition = toWrappedPosition(position);
+        int index = Collections.binarySearch(mRemoved, wrappedPosition);
+        if (index < 0) {
+            mRemoved.add(-index - 1, wrappedPosition);
+        }
+        mPatches.remove(wrappedPosition);
+        moveToPosition(mPos);
+    }
+
+    /**
+     * Change the values of the row at the given position.
+     *
+     * @param values The new values, one per column in the same order as the columns of the cursor
+     */
+    public void patchRow(int position, Object[] values) {
+        if (values.length != getColumnCount()) {
+            throw new IllegalArgumentException("Row has " + values.length + " values instead of "
+                    + getColumnCount());
+        }
+        mPatches.put(toWrappedPosition(position), values);
+    }
+
+    /**
+     * Returns the position in the wrapped cursor of the given position, skipping the removed rows.
+     */
+    private int toWrappedPosition(int position) {
+        int wrappedPosition = position;
+        for (int removed : mRemoved) {
+            if (removed <= wrappedPosition) {
+                wrappedPosition++;
+            } else {
+                break;
+            }
+        }
+        return wrappedPosition;
+    }
+
+    /**
+     * Returns the new values of the current row, or null if it hasn't been changed.
+     */
+    private Object[] getPatch() {
+        return mPatches.get(super.getPosition());
+    }
+
+    @Override
+    public int getCount() {
+        return super.getCount() - mRemoved.size();
+    }
+
+    @Override
+    public int getPosition() {
+        return mPos;
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        int count = getCount();
+        if (position >= count) {
+            mPos = count;
+            super.moveToPosition(super.getCount());
+            return false;
+        }
+        if (position < 0) {
+            mPos = -1;
+            super.moveToPosition(-1);
+            return false;
+        }
+        mPos = position;
+        return super.moveToPosition(toWrappedPosition(position));
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(mPos + offset);
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(getCount() - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(mPos + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(mPos - 1);
+    }
+
+    @Override
+    public boolean isFirst() {
+        return mPos == 0 && getCount() != 0;
+    }
+
+    @Override
+    public boolean isLast() {
+        int count = getCount();
+        return mPos == count - 1 && count != 0;
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return getCount() == 0 || mPos == -1;
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        int count = getCount();
+        return count == 0 || mPos == count;
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        Object[] patch = getPatch();
+        return patch != null ? patch[columnIndex] == null : super.isNull(columnIndex);
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        Object[] patch = getPatch();
+        if (patch == null) {
+            return super.getType(columnIndex);
+        }
+        Object value = patch[columnIndex];
+        if (value == null) {
+            return FIELD_TYPE_NULL;
+        } else if (value instanceof Long) {
+            return FIELD_TYPE_INTEGER;
+        } else if (value instanceof Double) {
+            return FIELD_TYPE_FLOAT;
+        } else if (value instanceof byte[]) {
+            return FIELD_TYPE_BLOB;
+        }
+        return FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        Object[] patch = getPatch();
+        if (patch == null) {
+            return super.getString(columnIndex);
+        }
+        Object value = patch[columnIndex];
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        Object[] patch = getPatch();
+        if (patch == null) {
+            super.copyStringToBuffer(columnIndex, buffer);
+            return;
+        }
+        // Same behaviour as the cursors of the database: grow the buffer only if needed
+        String value = getString(columnIndex);
+        if (value == null) {
+            buffer.sizeCopied = 0;
+            return;
+        }
+        if (buffer.data == null || buffer.data.length < value.length()) {
+            buffer.data = value.toCharArray();
+        } else {
+            value.getChars(0, value.length(), buffer.data, 0);
+        }
+        buffer.sizeCopied = value.length();
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        Object[] patch = getPatch();
+        if (patch == null) {
+            return super.getBlob(columnIndex);
+        }
+        Object value = patch[columnIndex];
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    @Override
+    public short getShort(int columnIndex) {
+        return (short) getLong(columnIndex);
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        return (int) getLong(columnIndex);
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        Object[] patch = getPatch();
+        if (patch == null) {
+            return super.getLong(columnIndex);
+        }
+        Object value = patch[columnIndex];
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        // Same conversion as SQLite: text that doesn't start with a number is 0
+        try {
+            return value == null ? 0 : Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public float getFloat(int columnIndex) {
+        return (float) getDouble(columnIndex);
+    }
+
+    @Override
+    public double getDouble(int columnIndex) {
+        Object[] patch = getPatch();
+        if (patch == null) {
+            return super.getDouble(columnIndex);
+        }
+        Object value = patch[columnIndex];
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        try {
+            return value == null ? 0 : Double.parseDouble(value.toString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.dandandin.android.risi;
+
+import android.app.Application;
+import android.os.StrictMode;
+
+/**
+ * {@link RiceApplication} sets up what the whole app needs before any activity starts.
+ */
+public class RiceApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (BuildConfig.DEBUG) {
+            // The database and the files are only used on background threads: report any
+            // access to the disk or the network left on the main thread
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectNetwork()
+                    .penaltyLog()
+                    .build());
+        }
+
+        // Apply the writes left by the previous run of the app, if any
+        RiceWriteQueue.getInstance(this).start();
+    }
+}
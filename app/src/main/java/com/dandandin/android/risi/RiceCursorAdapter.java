@@ -1,8 +1,8 @@
 package com.dandandin.android.risi;
 
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
-import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -18,6 +18,18 @@ import com.dandandin.android.risi.data.RiceContract.RiceEntry;
  */
 public class RiceCursorAdapter extends CursorAdapter {
 
+    /** Initial size of the buffers the name and breed are copied into, they grow if needed */
+    private static final int TEXT_BUFFER_SIZE = 64;
+
+    /** Placeholder shown when the breed is empty, read once instead of for every row */
+    private final String mUnknownBreed;
+
+    /** Index of the name column in the current cursor, -1 if there is no cursor */
+    private int mNameColumnIndex = -1;
+
+    /** Index of the breed column in the current cursor, -1 if there is no cursor */
+    private int mBreedColumnIndex = -1;
+
     /**
      * Constructs a new {@link RiceCursorAdapter}.
      *
@@ -26,6 +38,30 @@ public class RiceCursorAdapter extends CursorAdapter {
      */
     public RiceCursorAdapter(Context context, Cursor c) {
         super(context, c, 0 /* flags */);
+        mUnknownBreed = context.getString(R.string.unknown_breed);
+        findColumns(c);
+    }
+
+    /**
+     * Swap in a new cursor, and look up the columns we need once for all its rows.
+     */
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        findColumns(newCursor);
+        return super.swapCursor(newCursor);
+    }
+
+    /**
+     * Find the columns of rice attributes that we're interested in.
+     */
+    private void findColumns(Cursor cursor) {
+        if (cursor == null) {
+            mNameColumnIndex = -1;
+            mBreedColumnIndex = -1;
+        } else {
+            mNameColumnIndex = cursor.getColumnIndex(RiceEntry.COLUMN_RICE_NAME);
+            mBreedColumnIndex = cursor.getColumnIndex(RiceEntry.COLUMN_BREED);
+        }
     }
 
     /**
@@ -40,7 +76,10 @@ public class RiceCursorAdapter extends CursorAdapter {
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup parent) {
         // Inflate a list item view using the layout specified in list_item.xml
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+        View view = LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+        // Find the views once and keep them with the item, since the item is recycled
+        view.setTag(new ViewHolder(view));
+        return view;
     }
 
     /**
@@ -55,25 +94,36 @@ public class RiceCursorAdapter extends CursorAdapter {
      */
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
-        // Find individual views that we want to modify in the list item layout
-        TextView nameTextView = (TextView) view.findViewById(R.id.name);
-        TextView summaryTextView = (TextView) view.findViewById(R.id.summary);
+        // The views and the buffers were created with the item, nothing is allocated here
+        ViewHolder holder = (ViewHolder) view.getTag();
 
-        // Find the columns of pet attributes that we're interested in
-        int nameColumnIndex = cursor.getColumnIndex(RiceEntry.COLUMN_RICE_NAME);
-        int breedColumnIndex = cursor.getColumnIndex(RiceEntry.COLUMN_BREED);
-
-        // Read the pet attributes from the Cursor for the current rice
-        String riceName = cursor.getString(nameColumnIndex);
-        String riceBreed = cursor.getString(breedColumnIndex);
+        // Copy the rice attributes from the Cursor straight into the buffers of the item
+        cursor.copyStringToBuffer(mNameColumnIndex, holder.mNameBuffer);
+        cursor.copyStringToBuffer(mBreedColumnIndex, holder.mBreedBuffer);
 
+        // Update the TextViews with the attributes for the current rice
+        holder.mNameTextView.setText(holder.mNameBuffer.data, 0, holder.mNameBuffer.sizeCopied);
         //show a placeholder if the rice breed is empty
-        if (TextUtils.isEmpty(riceBreed)) {
-            riceBreed = context.getString(R.string.unknown_breed);
+        if (holder.mBreedBuffer.sizeCopied == 0) {
+            holder.mSummaryTextView.setText(mUnknownBreed);
+        } else {
+            holder.mSummaryTextView.setText(holder.mBreedBuffer.data, 0, holder.mBreedBuffer.sizeCopied);
         }
+    }
 
-        // Update the TextViews with the attributes for the current rice
-        nameTextView.setText(riceName);
-        summaryTextView.setText(riceBreed);
+    /**
+     * Views of a list item, and the buffers their text is copied into. Kept in the tag of the
+     * item so they're only looked up once, when the item is created.
+     */
+    private static class ViewHolder {
+        final TextView mNameTextView;
+        final TextView mSummaryTextView;
+        final CharArrayBuffer mNameBuffer = new CharArrayBuffer(TEXT_BUFFER_SIZE);
+        final CharArrayBuffer mBreedBuffer = new CharArrayBuffer(TEXT_BUFFER_SIZE);
+
+        ViewHolder(View view) {
+            mNameTextView = (TextView) view.findViewById(R.id.name);
+            mSummaryTextView = (TextView) view.findViewById(R.id.summary);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,568 @@
+package com.dandandin.android.risi;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.dandandin.android.risi.data.RiceContract.RiceEntry;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link RiceWriteQueue} applies the writes of the risi made from the UI on a background
+ * thread, one at a time and in the order they were made, so the activities never wait for the
+ * database: they show the result right away and the list follows when the change is notified.
+ * If a write fails a toast says so, whatever activity is shown by then.
+ *
+ * An update of a rice made while an earlier one is still waiting is merged into it, so saving
+ * the same rice many times in a row writes it only once.
+ *
+ * The waiting writes are kept in a journal file too, saved and synced to the disk on a thread
+ * of its own as soon as a write is made, whatever write is being applied meanwhile. The ones
+ * left by a previous run of the app are applied before any new one. So a write is lost only
+ * if the process is killed before its journal is saved, a few milliseconds after it's made.
+ * Each write has a sequence number, which the provider saves in the same transaction as the
+ * write (see {@link RiceEntry#QUERY_PARAMETER_WRITE_SEQUENCE}): the writes of the journal
+ * that were applied before the process was killed are skipped, so none is applied twice.
+ */
+final class RiceWriteQueue {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = RiceWriteQueue.class.getSimpleName();
+
+    /** Name of the journal, in the files directory of the app */
+    private static final String JOURNAL_FILE_NAME = "pending_writes";
+
+    /** First int of the journal, changed every time the format changes */
+    private static final int FORMAT_VERSION = 2;
+
+    /** Format of the journals without sequence numbers, still read after an update */
+    private static final int FORMAT_VERSION_UNNUMBERED = 1;
+
+    /** Sequence number of the writes made before the journal is read, numbered only then */
+    private static final long UNNUMBERED = 0;
+
+    /** Kinds of writes */
+    private static final int WRITE_INSERT = 0;
+    private static final int WRITE_UPDATE = 1;
+    private static final int WRITE_DELETE = 2;
+
+    /** Types of the values in the journal */
+    private static final int VALUE_NULL = 0;
+    private static final int VALUE_LONG = 1;
+    private static final int VALUE_STRING = 2;
+
+    private static RiceWriteQueue sInstance;
+
+    private final Context mContext;
+
+    /** Shows the failures, on the main thread */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Reads and saves the journal, one task at a time and in order */
+    private final Executor mJournalExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Whether the last save of the journal failed, so the user is told only once. Only used on
+     * the thread of the journal.
+     */
+    private boolean mJournalFailing;
+
+    /**
+     * Writes not started yet, in order. This and the other fields below are guarded by the
+     * lock of the queue.
+     */
+    private final ArrayList<Write> mPending = new ArrayList<Write>();
+
+    /** Write being applied, null if none */
+    private Write mRunning;
+
+    /** Whether {@link #mDrain} is scheduled or running */
+    private boolean mDraining;
+
+    /**
+     * Whether the journal left by the previous run has been read: until then the writes wait,
+     * so they are applied after the ones of the previous run
+     */
+    private boolean mJournalRead;
+
+    /** Whether {@link #mSaveJournal} is scheduled and has not started yet */
+    private boolean mJournalSaveScheduled;
+
+    /** Sequence number of the last write made, known once the journal has been read */
+    private long mLastSequence;
+
+    /** Applies the writes until there are none left */
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /** Saves the writes waiting or being applied, see {@link #saveJournal()} */
+    private final Runnable mSaveJournal = new Runnable() {
+        @Override
+        public void run() {
+            saveJournal();
+        }
+    };
+
+    private RiceWriteQueue(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns the queue of the app.
+     */
+    static synchronized RiceWriteQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new RiceWriteQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Apply the writes left in the journal by the previous run of the app, if any, and then
+     * the ones made in the meantime. Must be called once, before the first write.
+     */
+    void start() {
+        mJournalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Write> leftovers = readJournal(getJournalFile());
+                long applied = getAppliedSequence();
+                long last = applied;
+                for (Iterator<Write> i = leftovers.iterator(); i.hasNext(); ) {
+                    long sequence = i.next().mSequence;
+                    if (sequence != UNNUMBERED && sequence <= applied) {
+                        // Applied just before the previous run was killed
+                        i.remove();
+                    }
+                    last = Math.max(last, sequence);
+                }
+                if (!leftovers.isEmpty()) {
+                    Log.i(LOG_TAG, "Applying " + leftovers.size() + " writes of the previous run");
+                }
+                synchronized (RiceWriteQueue.this) {
+                    mPending.addAll(0, leftovers);
+                    mLastSequence = last;
+                    // Number the writes made until now, in order
+                    for (Write write : mPending) {
+                        if (write.mSequence == UNNUMBERED) {
+                            write.mSequence = ++mLastSequence;
+                        }
+                    }
+                    mJournalRead = true;
+                }
+                // The journal keeps the leftovers until the saves of the drain drop them
+                schedule();
+            }
+        });
+    }
+
+    /**
+     * Insert a rice into {@link RiceEntry#CONTENT_URI}.
+     */
+    void insert(ContentValues values) {
+        enqueue(new Write(WRITE_INSERT, RiceEntry.CONTENT_URI, new ContentValues(values)));
+    }
+
+    /**
+     * Update a single rice. The values are merged into the ones of an earlier update of the
+     * same rice that is still waiting, unless a write of all the risi or a delete of this rice
+     * comes between them.
+     */
+    void update(Uri riceUri, ContentValues values) {
+        synchronized (this) {
+            Write write = findPendingUpdate(riceUri);
+            if (write != null) {
+                write.mValues.putAll(values);
+                scheduleJournalSave();
+                return;
+            }
+        }
+        enqueue(new Write(WRITE_UPDATE, riceUri, new ContentValues(values)));
+    }
+
+    /**
+     * Delete a single rice, or all of them with {@link RiceEntry#CONTENT_URI}. The updates of
+     * the rice still waiting are dropped, since the delete would undo them anyway.
+     */
+    void delete(Uri uri) {
+        synchronized (this) {
+            Write write;
+            while ((write = findPendingUpdate(uri)) != null) {
+                mPending.remove(write);
+            }
+        }
+        enqueue(new Write(WRITE_DELETE, uri, null));
+    }
+
+    /**
+     * Returns the last update of the rice that is waiting and can take the values of a later
+     * write of it, or null if there is none.
+     */
+    private Write findPendingUpdate(Uri riceUri) {
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            Write write = mPending.get(i);
+            if (write.mUri.equals(riceUri)) {
+                return write.mKind == WRITE_UPDATE ? write : null;
+            }
+            if (write.mUri.equals(RiceEntry.CONTENT_URI) && write.mKind != WRITE_INSERT) {
+                // A write of all the risi: the later writes must stay after it
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private void enqueue(Write write) {
+        synchronized (this) {
+            if (mJournalRead) {
+                write.mSequence = ++mLastSequence;
+            }
+            mPending.add(write);
+        }
+        scheduleJournalSave();
+        schedule();
+    }
+
+    private synchronized void schedule() {
+        if (mJournalRead && !mDraining) {
+            mDraining = true;
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(mDrain);
+        }
+    }
+
+    /**
+     * Save the journal on its thread, unless a save is already scheduled: since it saves the
+     * writes of the time it runs, a single save covers all the changes made until then.
+     */
+    private synchronized void scheduleJournalSave() {
+        if (!mJournalSaveScheduled) {
+            mJournalSaveScheduled = true;
+            mJournalExecutor.execute(mSaveJournal);
+        }
+    }
+
+    /**
+     * Apply the waiting writes in order, saving the journal after each one, until there are
+     * none left.
+     */
+    private void drain() {
+        while (true) {
+            Write write;
+            synchronized (this) {
+                if (mPending.isEmpty()) {
+                    mDraining = false;
+                    return;
+                }
+                write = mPending.remove(0);
+                mRunning = write;
+            }
+            if (!apply(write)) {
+                // Dropped from the journal by the save below, like the writes applied
+                showFailure(write.mKind);
+            }
+            synchronized (this) {
+                mRunning = null;
+            }
+            scheduleJournalSave();
+        }
+    }
+
+    /**
+     * Save the write being applied and the waiting ones to the journal, or delete it if there
+     * are none. If the journal can't be saved the user is told that the changes may be lost.
+     */
+    private void saveJournal() {
+        byte[] encoded;
+        synchronized (this) {
+            mJournalSaveScheduled = false;
+            encoded = mRunning == null && mPending.isEmpty() ? null : encodeJournal();
+        }
+        File journal = getJournalFile();
+        try {
+            if (encoded != null) {
+                writeJournal(journal, encoded);
+            } else if (journal.exists() && !journal.delete()) {
+                // The next run would apply again the writes in it
+                throw new IOException("Failed to delete " + journal);
+            }
+            mJournalFailing = false;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to save the journal", e);
+            if (!mJournalFailing) {
+                mJournalFailing = true;
+                showMessage(R.string.write_journal_failed);
+            }
+        }
+    }
+
+    /**
+     * Returns the sequence number of the last write applied by the provider, or 0 if it can't
+     * be read, in which case the writes of the journal are all applied again.
+     */
+    private long getAppliedSequence() {
+        try {
+            Bundle result = mContext.getContentResolver().call(RiceEntry.CONTENT_URI,
+                    RiceEntry.METHOD_WRITE_SEQUENCE, null, null);
+            return result.getLong(RiceEntry.KEY_WRITE_SEQUENCE);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to read the last write applied", e);
+            return 0;
+        }
+    }
+
+    private File getJournalFile() {
+        return new File(mContext.getFilesDir(), JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * Replace the journal with the given content at once, synced to the disk before the
+     * rename, so after a crash the journal is either the previous one or this one in full.
+     */
+    private static void writeJournal(File file, byte[] encoded) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(temp);
+        try {
+            output.write(encoded);
+            output.flush();
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    /**
+     * Apply a write. A write that fails is not tried again: the caller drops it from the queue,
+     * and from the journal with it, so a write that can't be applied doesn't fail again on
+     * every launch of the app.
+     *
+     * @return false if it failed
+     */
+    private boolean apply(Write write) {
+        ContentResolver resolver = mContext.getContentResolver();
+        Uri uri = write.mUri.buildUpon().appendQueryParameter(
+                RiceEntry.QUERY_PARAMETER_WRITE_SEQUENCE, String.valueOf(write.mSequence)).build();
+        try {
+            switch (write.mKind) {
+                case WRITE_INSERT:
+                    return resolver.insert(uri, write.mValues) != null;
+                case WRITE_UPDATE:
+                    return resolver.update(uri, write.mValues, null, null) > 0;
+                default:
+                    int rowsDeleted = resolver.delete(uri, null, null);
+                    // Deleting all the risi of an empty catalog is not an error
+                    return rowsDeleted > 0 || write.mUri.equals(RiceEntry.CONTENT_URI);
+            }
+        } catch (IllegalArgumentException e) {
+            // The values are not valid: applying them again would fail again
+            Log.w(LOG_TAG, "Failed to write " + write.mUri, e);
+            return false;
+        } catch (RuntimeException e) {
+            // SQLException, or any other failure of the provider: thrown on this thread it
+            // would crash the app and leave the queue stuck
+            Log.e(LOG_TAG, "Failed to write " + write.mUri, e);
+            return false;
+        }
+    }
+
+    /**
+     * Tell the user that a write failed.
+     */
+    private void showFailure(int kind) {
+        switch (kind) {
+            case WRITE_INSERT:
+                showMessage(R.string.write_failed_insert);
+                break;
+            case WRITE_UPDATE:
+                showMessage(R.string.write_failed_update);
+                break;
+            default:
+                showMessage(R.string.write_failed_delete);
+                break;
+        }
+    }
+
+    /**
+     * Show a toast, on the main thread.
+     */
+    private void showMessage(final int message) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(mContext, message, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    /**
+     * Encode the write being applied and the waiting ones. Must hold the lock of the queue.
+     */
+    private byte[] encodeJournal() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        try {
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(mPending.size() + (mRunning == null ? 0 : 1));
+            if (mRunning != null) {
+                encodeWrite(output, mRunning);
+            }
+            for (Write write : mPending) {
+                encodeWrite(output, write);
+            }
+            output.flush();
+        } catch (IOException e) {
+            // Writing to memory doesn't fail
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void encodeWrite(DataOutputStream output, Write write) throws IOException {
+        output.writeInt(write.mKind);
+        output.writeLong(write.mSequence);
+        writeString(output, write.mUri.toString());
+        if (write.mValues == null) {
+            output.writeInt(-1);
+            return;
+        }
+        output.writeInt(write.mValues.size());
+        for (Map.Entry<String, Object> entry : write.mValues.valueSet()) {
+            writeString(output, entry.getKey());
+            Object value = entry.getValue();
+            if (value == null) {
+                output.writeByte(VALUE_NULL);
+            } else if (value instanceof Integer || value instanceof Long) {
+                output.writeByte(VALUE_LONG);
+                output.writeLong(((Number) value).longValue());
+            } else {
+                output.writeByte(VALUE_STRING);
+                writeString(output, value.toString());
+            }
+        }
+    }
+
+    /**
+     * Write a string as its length and its UTF-8 bytes: writeUTF() can't write the strings
+     * longer than 64 KB, e.g. a long description.
+     */
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Read a string written by {@link #writeString}, or by writeUTF() in the journals without
+     * sequence numbers.
+     */
+    private static String readString(DataInputStream input, int version) throws IOException {
+        if (version == FORMAT_VERSION_UNNUMBERED) {
+            return input.readUTF();
+        }
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Read the writes saved in the journal, if any.
+     */
+    private static List<Write> readJournal(File file) {
+        List<Write> writes = new ArrayList<Write>();
+        if (!file.exists()) {
+            return writes;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int version = input.readInt();
+            if (version != FORMAT_VERSION && version != FORMAT_VERSION_UNNUMBERED) {
+                Log.w(LOG_TAG, "Dropping the writes of an unknown version of the app");
+                return writes;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                int kind = input.readInt();
+                long sequence = version == FORMAT_VERSION_UNNUMBERED
+                        ? UNNUMBERED : input.readLong();
+                Uri uri = Uri.parse(readString(input, version));
+                int size = input.readInt();
+                ContentValues values = size == -1 ? null : new ContentValues();
+                for (int j = 0; j < size; j++) {
+                    String key = readString(input, version);
+                    switch (input.readByte()) {
+                        case VALUE_NULL:
+                            values.putNull(key);
+                            break;
+                        case VALUE_LONG:
+                            values.put(key, input.readLong());
+                            break;
+                        default:
+                            values.put(key, readString(input, version));
+                            break;
+                    }
+                }
+                Write write = new Write(kind, uri, values);
+                write.mSequence = sequence;
+                writes.add(write);
+            }
+        } catch (IOException e) {
+            // Keep the writes read in full
+            Log.w(LOG_TAG, "Failed to read " + file, e);
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    // Nothing left to read
+                }
+            }
+        }
+        return writes;
+    }
+
+    /**
+     * A write of the risi: the values are null for the deletes.
+     */
+    private static final class Write {
+        final int mKind;
+        final Uri mUri;
+        final ContentValues mValues;
+
+        /** Sequence number, {@link #UNNUMBERED} until the journal is read. Guarded by the queue. */
+        long mSequence = UNNUMBERED;
+
+        Write(int kind, Uri uri, ContentValues values) {
+            mKind = kind;
+            mUri = uri;
+            mValues = values;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.dandandin.android.risi.data;
+
+import android.os.Bundle;
+
+import com.dandandin.android.risi.data.RiceContract.RiceEntry;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the operations of {@link RiceProvider}, one set for each
+ * operation and URI. Everything is kept in a single {@link AtomicLongArray}, so recording an
+ * operation never takes a lock and never allocates: it only costs a few atomic additions.
+ */
+final class ProviderMetrics {
+
+    /**
+     * Number of buckets of the latency histograms. Bucket 0 counts the operations that took
+     * less than 1 microsecond, bucket i (from 1 on) the ones that took from 2^(i-1) to 2^i
+     * microseconds, and the last bucket everything slower (about 4 seconds or more).
+     */
+    static final int LATENCY_BUCKETS = 24;
+
+    /** Offsets of the values of one operation on one URI */
+    private static final int COUNT = 0;
+    private static final int ERRORS = 1;
+    private static final int ROWS = 2;
+    private static final int TOTAL_NANOS = 3;
+    private static final int FIRST_BUCKET = 4;
+    private static final int CELL_SIZE = FIRST_BUCKET + LATENCY_BUCKETS;
+
+    /** Names of the operations and of the URIs, used as keys of the snapshots */
+    private final String[] mOperations;
+    private final String[] mUris;
+
+    private final AtomicLongArray mValues;
+
+    /**
+     * Constructs a new {@link ProviderMetrics} with all the counters at 0.
+     *
+     * @param operations names of the operations, indexed like the operation of {@link #record}
+     * @param uris       names of the URIs, indexed like the uri of {@link #record}
+     */
+    ProviderMetrics(String[] operations, String[] uris) {
+        mOperations = operations;
+        mUris = uris;
+        mValues = new AtomicLongArray(operations.length * uris.length * CELL_SIZE);
+    }
+
+    /**
+     * Record an operation.
+     *
+     * @param operation index of the operation
+     * @param uri       index of the URI
+     * @param rows      number of rows read or written
+     * @param startNanos value of System.nanoTime() when the operation started
+     * @param succeeded false if the operation threw an exception
+     */
+    void record(int operation, int uri, int rows, long startNanos, boolean succeeded) {
+        record(operation, uri, rows, startNanos, System.nanoTime(), succeeded);
+    }
+
+    /**
+     * Record an operation that ended before now, e.g. a query whose cursor was returned and
+     * closed later without being read.
+     *
+     * @param endNanos value of System.nanoTime() when the operation ended
+     * @see #record(int, int, int, long, boolean)
+     */
+    void record(int operation, int uri, int rows, long startNanos, long endNanos,
+                boolean succeeded) {
+        long nanos = endNanos - startNanos;
+        int cell = (operation * mUris.length + uri) * CELL_SIZE;
+        mValues.incrementAndGet(cell + COUNT);
+        if (!succeeded) {
+            mValues.incrementAndGet(cell + ERRORS);
+        }
+        if (rows > 0) {
+            mValues.addAndGet(cell + ROWS, rows);
+        }
+        mValues.addAndGet(cell + TOTAL_NANOS, nanos);
+        int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+        mValues.incrementAndGet(cell + FIRST_BUCKET + Math.min(bucket, LATENCY_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the current values, with one Bundle for each operation and URI that has been
+     * recorded at least once, under the key "operation uri". The values are read one at a
+     * time, so operations that run during the snapshot may be only partly in it.
+     */
+    Bundle snapshot() {
+        Bundle snapshot = new Bundle();
+        for (int operation = 0; operation < mOperations.length; operation++) {
+            for (int uri = 0; uri < mUris.length; uri++) {
+                int cell = (operation * mUris.length + uri) * CELL_SIZE;
+                if (mValues.get(cell + COUNT) == 0) {
+                    continue;
+                }
+                Bundle values = new Bundle();
+                values.putLong(RiceEntry.KEY_METRICS_COUNT, mValues.get(cell + COUNT));
+                values.putLong(RiceEntry.KEY_METRICS_ERRORS, mValues.get(cell + ERRORS));
+                values.putLong(RiceEntry.KEY_METRICS_ROWS, mValues.get(cell + ROWS));
+                values.putLong(RiceEntry.KEY_METRICS_TOTAL_MICROS,
+                        mValues.get(cell + TOTAL_NANOS) / 1000);
+                long[] histogram = new long[LATENCY_BUCKETS];
+                for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                    histogram[i] = mValues.get(cell + FIRST_BUCKET + i);
+                }
+                values.putLongArray(RiceEntry.KEY_METRICS_LATENCY_HISTOGRAM, histogram);
+                snapshot.putBundle(mOperations[operation] + " " + mUris[uri], values);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Set all the values back to 0.
+     */
+    void reset() {
+        for (int i = 0; i < mValues.length(); i++) {
+            mValues.set(i, 0);
+        }
+    }
+
+    /**
+     * Write the current values as text, one line for each operation and URI that has been
+     * recorded at least once: operation, URI, count, errors, rows, total microseconds and
+     * the buckets of the histogram, separated by tabs.
+     */
+    void dump(Writer writer) throws IOException {
+        writer.write("operation\turi\tcount\terrors\trows\ttotal_us");
+        for (int i = 0; i < LATENCY_BUCKETS - 1; i++) {
+            writer.write("\tlt_" + (1L << i) + "us");
+        }
+        writer.write("\tge_" + (1L << (LATENCY_BUCKETS - 2)) + "us");
+        writer.write('\n');
+        for (int operation = 0; operation < mOperations.length; operation++) {
+            for (int uri = 0; uri < mUris.length; uri++) {
+                int cell = (operation * mUris.length + uri) * CELL_SIZE;
+                if (mValues.get(cell + COUNT) == 0) {
+                    continue;
+                }
+                writer.write(mOperations[operation] + "\t" + mUris[uri]);
+                for (int i = COUNT; i < CELL_SIZE; i++) {
+                    long value = mValues.get(cell + i);
+                    writer.write("\t" + (i == TOTAL_NANOS ? value / 1000 : value));
+                }
+                writer.write('\n');
+            }
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package com.dandandin.android.risi.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
+
+import java.util.List;
 
 public final class RiceContract {
 
@@ -12,11 +16,146 @@ public final class RiceContract {
     public static final String CONTENT_AUTHORITY = "com.dandandin.android.risi";
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
     public static final String PATH_RICE = "rices";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_STATS = "stats";
+    public static final String PATH_CSV = "csv";
+    public static final String PATH_PRICES = "prices";
+    public static final String PATH_HISTOGRAM = "histogram";
+    public static final String PATH_CHANGES = "changes";
 
     public static final class RiceEntry implements BaseColumns {
 
+        /**
+         * All the risi. Deleting it without a selection empties the table at once, with a
+         * single notification, instead of deleting the risi one by one; the space they used
+         * is given back to the file system in the background.
+         */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_RICE);
 
+        /**
+         * Full-text search over the name, breed and description of the risi. Append the
+         * (encoded) search text as the last path segment, e.g. with
+         * Uri.withAppendedPath(CONTENT_SEARCH_URI, Uri.encode("carnaroli")). Every word of
+         * the text matches as a prefix (a single letter only as a whole word), and the best
+         * matches come first. A search ranks at most a thousand matches.
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        /**
+         * Statistics of the risi: one row per packaging (or per breed, see
+         * {@link #QUERY_PARAMETER_GROUP_BY}) with the number of risi and their total and average
+         * price in cents. They are kept up to date while the risi change, so reading them
+         * doesn't depend on how many risi there are.
+         */
+        public static final Uri CONTENT_STATS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_STATS);
+
+        /**
+         * Query parameter of {@link #CONTENT_STATS_URI} with the column to group the risi by:
+         * {@link #COLUMN_PACKAGING} (the default) or {@link #COLUMN_BREED}. The value of the
+         * group is returned in the column with the same name; the risi without a breed are in
+         * the group with an empty breed.
+         */
+        public static final String QUERY_PARAMETER_GROUP_BY = "group_by";
+
+        /**
+         * The risi with a price in a range, see {@link #buildPriceRangeUri}, sorted by price
+         * and then by _id unless a sort order is given. The range is read from the index on the
+         * price, so the cost depends on the number of risi in the range and not on the size of
+         * the table. The selection, if any, is applied to the risi in the range.
+         */
+        public static final Uri CONTENT_PRICES_URI = Uri.withAppendedPath(CONTENT_URI, PATH_PRICES);
+
+        /**
+         * Histogram of the prices of the risi, see {@link #buildPriceHistogramUri}: one row per
+         * bucket of prices, with the number of risi whose price is in the bucket. The buckets
+         * without risi are left out, and the rows are sorted by price. The counts are computed
+         * by SQLite from the index on the price, and only for the risi in the range; the
+         * selection, if any, is applied to the risi before counting them.
+         */
+        public static final Uri CONTENT_PRICE_HISTOGRAM_URI =
+                Uri.withAppendedPath(CONTENT_PRICES_URI, PATH_HISTOGRAM);
+
+        /**
+         * Query parameters of {@link #CONTENT_PRICES_URI} and {@link #CONTENT_PRICE_HISTOGRAM_URI}
+         * with the lowest and highest price in cents (both included). Either can be left out
+         * to leave the range open on that side.
+         */
+        public static final String QUERY_PARAMETER_MIN_PRICE = "min_price";
+        public static final String QUERY_PARAMETER_MAX_PRICE = "max_price";
+
+        /**
+         * The log of the changes to the risi, see {@link #buildChangesUri}: one row per insert,
+         * update or delete of a rice, with an increasing sequence number, so a consumer that
+         * keeps a copy of the risi can read only what changed since the last time instead of
+         * reading all of them again. The rows are sorted by sequence number, unless a sort
+         * order is given.
+         *
+         * To start, a consumer reads the last sequence number (e.g. with the sort order
+         * "seq DESC" and a limit of 1; it's 0 if the log is empty), then all the risi, then
+         * the changes since that number. The log is compacted from time to time, keeping
+         * only the last change of each rice and nothing before the last
+         * {@link #CHANGE_DELETE_ALL}: a consumer applying the changes to its copy ends up with
+         * the same risi, but it may not see all the intermediate changes. So it should read the
+         * current values of each changed rice, and take an update of a rice it doesn't have
+         * as an insert.
+         */
+        public static final Uri CONTENT_CHANGES_URI = Uri.withAppendedPath(CONTENT_URI, PATH_CHANGES);
+
+        /**
+         * Query parameter of {@link #CONTENT_CHANGES_URI} with the last sequence number already
+         * read: only the later changes are returned. 0 (the default) returns the whole log.
+         */
+        public static final String QUERY_PARAMETER_SINCE = "since";
+
+        /**
+         * Query parameter of {@link #CONTENT_PRICE_HISTOGRAM_URI} with the width of the buckets
+         * in cents, {@link #DEFAULT_BUCKET_SIZE} if it's left out. The buckets start at 0.
+         */
+        public static final String QUERY_PARAMETER_BUCKET_SIZE = "bucket_size";
+        public static final int DEFAULT_BUCKET_SIZE = 50;
+
+        /**
+         * All the risi as a CSV file, streamed through a pipe. Read it with
+         * ContentResolver.openInputStream() to export the risi, or write a file in the same
+         * format to ContentResolver.openOutputStream() to import new risi: the rows are
+         * inserted in chunks while the file is being written, invalid rows are skipped, and
+         * the progress is notified with the URIs built by {@link #buildImportProgressUri}. If
+         * the import fails midway the chunks already committed are kept.
+         * It's outside of {@link #CONTENT_URI}, so the progress doesn't refresh the lists of risi.
+         */
+        public static final Uri CONTENT_CSV_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_CSV);
+
+        /** The MIME type of the {@link #CONTENT_CSV_URI} */
+        public static final String CONTENT_CSV_TYPE = "text/csv";
+
+        /** Query parameters of the URIs notified while importing a CSV file */
+        public static final String QUERY_PARAMETER_IMPORTED = "imported";
+        public static final String QUERY_PARAMETER_REJECTED = "rejected";
+        public static final String QUERY_PARAMETER_FINISHED = "finished";
+        public static final String QUERY_PARAMETER_FAILED = "failed";
+
+        /**
+         * Query parameter that set to false skips the cache of the query results, e.g. for a
+         * query that is never repeated. The lists, the searches, the statistics, the price
+         * ranges and the histograms of the prices are cached; the results with many rows are not.
+         */
+        public static final String QUERY_PARAMETER_CACHE = "cache";
+
+        /** Query parameter with the maximum number of rows returned by a search or a page */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameters of a page of the list of risi, see {@link #buildPageUri}. The rows
+         * are sorted by the sort key (one of _id, name, breed or price) and then by _id, and a
+         * page starts right after the sort key and _id of the last row of the previous page.
+         * Unlike an offset, this lets every page be read straight from the index, so reading a
+         * page costs the same wherever it is in the list.
+         */
+        public static final String QUERY_PARAMETER_SORT_KEY = "sort_key";
+        public static final String QUERY_PARAMETER_DESCENDING = "descending";
+        public static final String QUERY_PARAMETER_AFTER_KEY = "after_key";
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of risi.
          */
@@ -29,6 +168,24 @@ public final class RiceContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_RICE;
 
+        /**
+         * The MIME type of the {@link #CONTENT_STATS_URI} for the statistics of the risi.
+         */
+        public static final String CONTENT_STATS_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_RICE + "/" + PATH_STATS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_PRICE_HISTOGRAM_URI} for the histogram of the prices.
+         */
+        public static final String CONTENT_HISTOGRAM_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_RICE + "/" + PATH_PRICES + "/" + PATH_HISTOGRAM;
+
+        /**
+         * The MIME type of the {@link #CONTENT_CHANGES_URI} for the log of the changes.
+         */
+        public static final String CONTENT_CHANGES_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_RICE + "/" + PATH_CHANGES;
+
         //nome tabella
         public static final String TABLE_NAME = "rices";
         public final static String _ID = BaseColumns._ID;
@@ -43,6 +200,37 @@ public final class RiceContract {
         //descrizione
         public static final String COLUMN_DESCRIPTION = "description";
 
+        /** Columns of {@link #CONTENT_STATS_URI}: number of risi, total and average price */
+        public static final String COLUMN_COUNT = "count";
+        public static final String COLUMN_TOTAL_PRICE = "total_price";
+        public static final String COLUMN_AVERAGE_PRICE = "average_price";
+
+        /**
+         * Columns of {@link #CONTENT_PRICE_HISTOGRAM_URI}, together with {@link #COLUMN_COUNT}:
+         * the lowest price of the bucket (included) and the highest one (excluded), in cents.
+         * The _id is the number of the bucket, counting from the one that starts at 0.
+         */
+        public static final String COLUMN_BUCKET_START = "bucket_start";
+        public static final String COLUMN_BUCKET_END = "bucket_end";
+
+        /**
+         * Columns of {@link #CONTENT_CHANGES_URI}: sequence number of the change, _id of the
+         * changed rice (null for {@link #CHANGE_DELETE_ALL}) and kind of change, one of
+         * CHANGE_INSERT, CHANGE_UPDATE, CHANGE_DELETE and CHANGE_DELETE_ALL.
+         */
+        public static final String COLUMN_SEQUENCE = "seq";
+        public static final String COLUMN_RICE_ID = "rice_id";
+        public static final String COLUMN_CHANGE = "change";
+
+        /**
+         * Sort orders for the list of risi. Each one can be served by an index of the table,
+         * so sorting doesn't need a full table scan.
+         */
+        public static final String SORT_BY_NAME = COLUMN_RICE_NAME + " COLLATE NOCASE ASC";
+        public static final String SORT_BY_BREED = COLUMN_BREED + " ASC";
+        public static final String SORT_BY_PRICE_ASC = COLUMN_PRICE + " ASC";
+        public static final String SORT_BY_PRICE_DESC = COLUMN_PRICE + " DESC";
+
         /**
          * Possible values for the style of the headphone.
          */
@@ -51,6 +239,320 @@ public final class RiceContract {
         public static final int PACK_VACUUMCARTON = 2;
         public static final int PACK_BAG = 3;
 
+        /**
+         * Query parameter added to the URI of a single rice when listeners are notified of a
+         * change to it, with the kind of change: one of CHANGE_INSERT, CHANGE_UPDATE and
+         * CHANGE_DELETE. Changes that may touch many rows are notified on {@link #CONTENT_URI},
+         * without a kind.
+         */
+        public static final String QUERY_PARAMETER_CHANGE = "change";
+        public static final String CHANGE_INSERT = "insert";
+        public static final String CHANGE_UPDATE = "update";
+        public static final String CHANGE_DELETE = "delete";
+
+        /**
+         * Query parameter of an insert, update or delete with the sequence number of the write,
+         * for a client that may apply a write again after a crash, e.g. from a journal: the
+         * number is saved in the same transaction as the write, and
+         * {@link #METHOD_WRITE_SEQUENCE} returns the last one saved, so the client can skip
+         * the writes already applied. The numbers must grow from one write to the next.
+         */
+        public static final String QUERY_PARAMETER_WRITE_SEQUENCE = "write_sequence";
+
+        /**
+         * Method of {@link android.content.ContentResolver#call} that returns the sequence
+         * number of the last write applied with {@link #QUERY_PARAMETER_WRITE_SEQUENCE}, in
+         * {@link #KEY_WRITE_SEQUENCE}, or 0 if there is none.
+         */
+        public static final String METHOD_WRITE_SEQUENCE = "write_sequence";
+        /** long */
+        public static final String KEY_WRITE_SEQUENCE = "sequence";
+
+        /**
+         * Kind of change only found in {@link #CONTENT_CHANGES_URI}: all the risi were deleted
+         * at once, and the consumers should empty their copy.
+         */
+        public static final String CHANGE_DELETE_ALL = "delete_all";
+
+        /**
+         * Method of {@link android.content.ContentResolver#call} that syncs the risi with the
+         * central price list, whose API is at the base URL given as the argument, or at the
+         * one of the sync_base_url resource if the argument is null: the risi changed here are
+         * sent to it, and the ones changed there are applied here, with the server winning the
+         * conflicts. It runs on the calling thread, which must not be the
+         * main thread. An interrupted sync goes on from where it stopped the next time.
+         *
+         * The returned Bundle has the number of risi sent ({@link #KEY_SYNC_PUSHED}), received
+         * ({@link #KEY_SYNC_PULLED}) and replaced by the server in a conflict
+         * ({@link #KEY_SYNC_CONFLICTS}), and the error in {@link #KEY_SYNC_ERROR} if it failed.
+         */
+        public static final String METHOD_SYNC = "sync";
+        public static final String KEY_SYNC_PUSHED = "pushed";
+        public static final String KEY_SYNC_PULLED = "pulled";
+        public static final String KEY_SYNC_CONFLICTS = "conflicts";
+        public static final String KEY_SYNC_ERROR = "error";
+
+        /**
+         * Methods of {@link android.content.ContentResolver#call} for the change notifications.
+         * The notifications of a burst of writes are merged: the first one is sent right away,
+         * the ones that follow within a short window are held and sent together at the end of
+         * it, one per URI, and only one for {@link #CONTENT_URI} if many risi changed. The
+         * flush sends the held notifications right away, e.g. at the end of a script.
+         *
+         * Both return a Bundle with the number of notifications raised by the writes
+         * ({@link #KEY_NOTIFICATIONS_REQUESTED}) and actually sent to the listeners
+         * ({@link #KEY_NOTIFICATIONS_SENT}): the difference is the number of requeries saved.
+         */
+        public static final String METHOD_FLUSH_NOTIFICATIONS = "flush_notifications";
+        public static final String METHOD_NOTIFICATION_STATS = "notification_stats";
+        /** long */
+        public static final String KEY_NOTIFICATIONS_REQUESTED = "requested";
+        /** long */
+        public static final String KEY_NOTIFICATIONS_SENT = "sent";
+
+        /**
+         * Method of {@link android.content.ContentResolver#call} that compacts the log of the
+         * changes right away (it's also done by the background maintenance). The returned
+         * Bundle has the number of changes removed from the log in {@link #KEY_CHANGES_REMOVED}.
+         */
+        public static final String METHOD_COMPACT_CHANGES = "compact_changes";
+        public static final String KEY_CHANGES_REMOVED = "removed";
+
+        /**
+         * Method of {@link android.content.ContentResolver#call} that rebuilds a database
+         * created by an older version of the app, so the background maintenance can give its
+         * free pages back to the file system. It copies the whole database and blocks the
+         * other writes until it's done: only call it when the user asks, off the main thread.
+         * The returned Bundle says in {@link #KEY_DATABASE_REBUILT} whether it was needed. It
+         * fails with an IllegalStateException while other threads use the database.
+         */
+        public static final String METHOD_REBUILD_DATABASE = "rebuild_database";
+        /** boolean */
+        public static final String KEY_DATABASE_REBUILT = "rebuilt";
+
+        /**
+         * Method of {@link android.content.ContentResolver#call} that returns the counters of
+         * the cache of the risi read by id, in a Bundle with the KEY_CACHE_* keys.
+         */
+        public static final String METHOD_ROW_CACHE_STATS = "row_cache_stats";
+        public static final String KEY_CACHE_HITS = "hits";
+        public static final String KEY_CACHE_MISSES = "misses";
+        public static final String KEY_CACHE_EVICTIONS = "evictions";
+        public static final String KEY_CACHE_SIZE = "size";
+        public static final String KEY_CACHE_MAX_SIZE = "max_size";
+
+        /**
+         * Method of {@link android.content.ContentResolver#call} that returns the counters of
+         * the cache of the query results, in a Bundle with the KEY_CACHE_* keys (the sizes are
+         * in rows) and the share of the queries served from the cache in
+         * {@link #KEY_CACHE_HIT_RATE}.
+         */
+        public static final String METHOD_QUERY_CACHE_STATS = "query_cache_stats";
+        /** double, from 0 to 1 */
+        public static final String KEY_CACHE_HIT_RATE = "hit_rate";
+
+        /**
+         * Method of {@link android.content.ContentResolver#call} that checks the statistics
+         * against the whole table and rebuilds them if they don't match. The returned Bundle
+         * has {@link #KEY_STATS_REBUILT} set to true if they had to be rebuilt.
+         */
+        public static final String METHOD_CHECK_STATS = "check_stats";
+        public static final String KEY_STATS_REBUILT = "rebuilt";
+
+        /**
+         * Method of {@link android.content.ContentResolver#call} that returns the metrics of the
+         * provider: a Bundle with a Bundle for each operation and URI used so far, under keys
+         * like "query rices/#", with the KEY_METRICS_* values. The argument can be null,
+         * {@link #METRICS_RESET} to set the metrics back to 0 after reading them, or
+         * {@link #METRICS_DUMP} to also write them to a file, whose path is returned in
+         * {@link #KEY_METRICS_FILE}.
+         */
+        public static final String METHOD_METRICS = "metrics";
+        public static final String METRICS_RESET = "reset";
+        public static final String METRICS_DUMP = "dump";
+        public static final String KEY_METRICS_FILE = "file";
+
+        /** Number of operations, failed operations, rows read or written, total latency */
+        public static final String KEY_METRICS_COUNT = "count";
+        public static final String KEY_METRICS_ERRORS = "errors";
+        public static final String KEY_METRICS_ROWS = "rows";
+        public static final String KEY_METRICS_TOTAL_MICROS = "total_us";
+
+        /**
+         * Histogram of the latencies: element 0 counts the operations that took less than 1
+         * microsecond, element i the ones that took from 2^(i-1) to 2^i microseconds, and the
+         * last element everything slower.
+         */
+        public static final String KEY_METRICS_LATENCY_HISTOGRAM = "latency_histogram";
+
+        /**
+         * Methods of {@link android.content.ContentResolver#call} that insert or update many
+         * risi from typed records, without going through ContentValues: the extras hold one
+         * array for each column (with the KEY_RECORD_* keys), all of the same length, and the
+         * i-th element of each array is a value of the i-th rice. For the insert the names and
+         * the packagings are required, the other columns get their default values when their
+         * array is missing. For the update the ids are required, and only the columns with an
+         * array are updated. The arrays are written directly to compiled statements, in a
+         * single transaction.
+         *
+         * The returned Bundle has the ids of the risi written in {@link #KEY_RECORD_IDS}
+         * (-1 for the invalid records, which are skipped) and their number in
+         * {@link #KEY_RECORD_COUNT}.
+         */
+        public static final String METHOD_INSERT_RECORDS = "insert_records";
+        public static final String METHOD_UPDATE_RECORDS = "update_records";
+        /** long[] */
+        public static final String KEY_RECORD_IDS = "ids";
+        /** String[] */
+        public static final String KEY_RECORD_NAMES = "names";
+        /** String[] */
+        public static final String KEY_RECORD_BREEDS = "breeds";
+        /** int[], see {@link #isValidPackaging(int)} */
+        public static final String KEY_RECORD_PACKAGINGS = "packagings";
+        /** int[], in cents */
+        public static final String KEY_RECORD_PRICES = "prices";
+        /** String[] */
+        public static final String KEY_RECORD_DESCRIPTIONS = "descriptions";
+        /** int */
+        public static final String KEY_RECORD_COUNT = "count";
+
+        /**
+         * Method of {@link android.content.ContentResolver#call} that inserts many risi like
+         * {@link android.content.ContentResolver#bulkInsert}, from the ContentValues array in
+         * {@link #KEY_BULK_VALUES}, and also tells which ones were rejected. The returned Bundle
+         * has the number of risi inserted in {@link #KEY_RECORD_COUNT}, the indexes of the
+         * rejected ones in {@link #KEY_BULK_REJECTED_INDEXES}, in order, and why each one was
+         * rejected in {@link #KEY_BULK_REJECTED_REASONS}. A rice is rejected when its values are
+         * invalid or when the database refuses it; the others are inserted anyway.
+         */
+        public static final String METHOD_BULK_INSERT = "bulk_insert";
+        /** ContentValues[] */
+        public static final String KEY_BULK_VALUES = "values";
+        /** int[] */
+        public static final String KEY_BULK_REJECTED_INDEXES = "rejected_indexes";
+        /** String[] */
+        public static final String KEY_BULK_REJECTED_REASONS = "rejected_reasons";
+
+        /**
+         * Returns the URI notified when a single rice changes.
+         *
+         * @param id     the id of the rice
+         * @param change the kind of change, one of the CHANGE_* constants
+         */
+        public static Uri buildChangeUri(long id, String change) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_CHANGE, change)
+                    .build();
+        }
+
+        /**
+         * Returns the URI notified with the progress of a CSV import.
+         *
+         * @param imported the number of rows imported so far
+         * @param rejected the number of invalid rows skipped so far
+         * @param finished true when the import is over, whether it read the whole file or not
+         * @param failed true when the import stopped before the end of the file, e.g. because
+         *               the file or the database could not be read or written: only the rows
+         *               counted in imported have been kept
+         */
+        public static Uri buildImportProgressUri(int imported, int rejected, boolean finished,
+                                                 boolean failed) {
+            return CONTENT_CSV_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_IMPORTED, String.valueOf(imported))
+                    .appendQueryParameter(QUERY_PARAMETER_REJECTED, String.valueOf(rejected))
+                    .appendQueryParameter(QUERY_PARAMETER_FINISHED, String.valueOf(finished))
+                    .appendQueryParameter(QUERY_PARAMETER_FAILED, String.valueOf(failed))
+                    .build();
+        }
+
+        /**
+         * Returns the id of the rice a notified URI refers to, or -1 if the URI refers to
+         * the whole list.
+         */
+        public static long getChangedId(Uri uri) {
+            List<String> segments = uri.getPathSegments();
+            if (segments.size() != 2 || !PATH_RICE.equals(segments.get(0))
+                    || !TextUtils.isDigitsOnly(segments.get(1))) {
+                return -1;
+            }
+            return Long.parseLong(segments.get(1));
+        }
+
+        /**
+         * Returns the URI of a page of the list of risi.
+         *
+         * @param sortKey    column to sort by: _id, name, breed or price
+         * @param descending true to sort from the highest value to the lowest
+         * @param afterKey   the sort key of the last row of the previous page (may be null
+         *                   if that row had no value for it)
+         * @param afterId    the _id of the last row of the previous page, or null for the
+         *                   first page
+         * @param limit      maximum number of rows in the page
+         */
+        public static Uri buildPageUri(String sortKey, boolean descending, String afterKey,
+                                       Long afterId, int limit) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SORT_KEY, sortKey)
+                    .appendQueryParameter(QUERY_PARAMETER_DESCENDING, String.valueOf(descending))
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+            if (afterId != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId));
+                if (afterKey != null) {
+                    builder.appendQueryParameter(QUERY_PARAMETER_AFTER_KEY, afterKey);
+                }
+            }
+            return builder.build();
+        }
+
+        /**
+         * Returns the URI of the changes after a sequence number.
+         *
+         * @param since the last sequence number already read, 0 for the whole log
+         * @param limit maximum number of changes returned, 0 for no limit
+         */
+        public static Uri buildChangesUri(long since, int limit) {
+            Uri.Builder builder = CONTENT_CHANGES_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SINCE, String.valueOf(since));
+            if (limit > 0) {
+                builder.appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Returns the URI of the risi with a price in a range.
+         *
+         * @param minPrice the lowest price in cents, or null for no lower bound
+         * @param maxPrice the highest price in cents, or null for no upper bound
+         */
+        public static Uri buildPriceRangeUri(Integer minPrice, Integer maxPrice) {
+            return appendPriceRange(CONTENT_PRICES_URI.buildUpon(), minPrice, maxPrice).build();
+        }
+
+        /**
+         * Returns the URI of the histogram of the prices of the risi in a range.
+         *
+         * @param bucketSize the width of the buckets in cents
+         * @param minPrice   the lowest price in cents, or null for no lower bound
+         * @param maxPrice   the highest price in cents, or null for no upper bound
+         */
+        public static Uri buildPriceHistogramUri(int bucketSize, Integer minPrice, Integer maxPrice) {
+            Uri.Builder builder = CONTENT_PRICE_HISTOGRAM_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_BUCKET_SIZE, String.valueOf(bucketSize));
+            return appendPriceRange(builder, minPrice, maxPrice).build();
+        }
+
+        private static Uri.Builder appendPriceRange(Uri.Builder builder, Integer minPrice,
+                                                    Integer maxPrice) {
+            if (minPrice != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_MIN_PRICE, String.valueOf(minPrice));
+            }
+            if (maxPrice != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_MAX_PRICE, String.valueOf(maxPrice));
+            }
+            return builder;
+        }
+
         /**
         * Returns whether or not the given packaging is valid
          */
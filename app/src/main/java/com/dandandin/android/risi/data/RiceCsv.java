@@ -0,0 +1,169 @@
+package com.dandandin.android.risi.data;
+
+import android.database.Cursor;
+
+import com.dandandin.android.risi.data.RiceContract.RiceEntry;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * CSV format of the risi exported and imported through {@link RiceEntry#CONTENT_CSV_URI}:
+ * one line per rice, with a header line with the names of the columns. Fields that contain
+ * commas, quotes or line breaks are quoted, and quotes inside them are doubled (RFC 4180).
+ * Empty fields are null values.
+ */
+final class RiceCsv {
+
+    /** Columns written by the export, in this order, and accepted by the import */
+    static final String[] COLUMNS = {
+            RiceEntry.COLUMN_RICE_NAME,
+            RiceEntry.COLUMN_BREED,
+            RiceEntry.COLUMN_PACKAGING,
+            RiceEntry.COLUMN_PRICE,
+            RiceEntry.COLUMN_DESCRIPTION
+    };
+
+    private RiceCsv() {}
+
+    /**
+     * Write the header line with the names of the {@link #COLUMNS}.
+     */
+    static void writeHeader(Writer writer) throws IOException {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeField(writer, COLUMNS[i]);
+        }
+        writer.write("\r\n");
+    }
+
+    /**
+     * Write the current row of a cursor, which must have the {@link #COLUMNS} in the same order.
+     */
+    static void writeRow(Writer writer, Cursor cursor) throws IOException {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            if (!cursor.isNull(i)) {
+                writeField(writer, cursor.getString(i));
+            }
+        }
+        writer.write("\r\n");
+    }
+
+    /**
+     * Write a single field, quoting it only if needed.
+     */
+    private static void writeField(Writer writer, String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Reads the records of a CSV stream one at a time, so the whole file is never in memory.
+     */
+    static final class RecordReader {
+
+        /** The stream, read one character at a time: it should be buffered */
+        private final Reader mReader;
+
+        /** Reused for every field and every record */
+        private final StringBuilder mField = new StringBuilder();
+        private final ArrayList<String> mRecord = new ArrayList<String>();
+
+        /** Character read after the end of the previous record, or -2 if there is none */
+        private int mPending = -2;
+
+        RecordReader(Reader reader) {
+            mReader = reader;
+        }
+
+        /**
+         * Returns the fields of the next record, or null at the end of the stream. Empty lines
+         * are skipped.
+         *
+         * @throws IOException if the stream can't be read or ends inside a quoted field
+         */
+        String[] readRecord() throws IOException {
+            mRecord.clear();
+            mField.setLength(0);
+            boolean quoted = false;
+            boolean empty = true;
+            int c = next();
+            while (true) {
+                if (quoted) {
+                    if (c == -1) {
+                        throw new IOException("End of stream inside a quoted field");
+                    }
+                    if (c == '"') {
+                        c = next();
+                        if (c != '"') {
+                            // End of the quoted part, c is the character after it
+                            quoted = false;
+                            continue;
+                        }
+                    }
+                    mField.append((char) c);
+                } else if (c == '"') {
+                    quoted = true;
+                    empty = false;
+                } else if (c == ',') {
+                    mRecord.add(mField.toString());
+                    mField.setLength(0);
+                    empty = false;
+                } else if (c == '\r' || c == '\n' || c == -1) {
+                    if (c == '\r') {
+                        // Swallow the \n of a \r\n line break
+                        int after = next();
+                        if (after != '\n') {
+                            mPending = after;
+                        }
+                    }
+                    if (empty && mField.length() == 0) {
+                        if (c == -1) {
+                            return null;
+                        }
+                        c = next();
+                        continue;
+                    }
+                    mRecord.add(mField.toString());
+                    return mRecord.toArray(new String[mRecord.size()]);
+                } else {
+                    mField.append((char) c);
+                    empty = false;
+                }
+                c = next();
+            }
+        }
+
+        private int next() throws IOException {
+            if (mPending != -2) {
+                int c = mPending;
+                mPending = -2;
+                return c;
+            }
+            return mReader.read();
+        }
+    }
+}
@@ -1,10 +1,20 @@
 package com.dandandin.android.risi.data;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
+
 import com.dandandin.android.risi.data.RiceContract.RiceEntry;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
 public class RiceDbHelper extends SQLiteOpenHelper {
     public static final String LOG_TAG = RiceDbHelper.class.getSimpleName();
     /** Name of the database file */
@@ -13,15 +23,345 @@ public class RiceDbHelper extends SQLiteOpenHelper {
     /**
      * Database version. If you change the database schema, you must increment the database version.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 8;
+
+    /**
+     * Full-text index over the name, breed and description of the risi (added in version 3).
+     * The docid of each row is the _id of the rice, and the triggers below keep it in sync.
+     */
+    static final String FTS_TABLE_NAME = "rices_fts";
+
+    /**
+     * Data migrations left to do in the background after a schema upgrade (added in version 5),
+     * see {@link #runMigrations()}. Each row is a pending migration, with the range of _id of
+     * the rices table it still has to go through: after position and up to end (for
+     * {@link #MIGRATION_RICE_INDEXES}, {@link #MIGRATION_SYNC_INDEXES} and
+     * {@link #MIGRATION_PACKAGING_INDEXES}, the indexes built so far and the number of indexes).
+     */
+    private static final String MIGRATIONS_TABLE_NAME = "migrations";
+    private static final String MIGRATIONS_COLUMN_NAME = "name";
+    private static final String MIGRATIONS_COLUMN_POSITION = "position";
+    private static final String MIGRATIONS_COLUMN_END = "end_id";
+
+    /** Background migrations: build the secondary indexes, one at a time (version 2) */
+    private static final String MIGRATION_RICE_INDEXES = "rice_indexes";
+
+    /** Background migrations: index the risi already there in the full-text index (version 3) */
+    private static final String MIGRATION_FTS_BACKFILL = "fts_backfill";
+
+    /** Background migrations: compute the summary of the risi already there (version 4) */
+    private static final String MIGRATION_STATS_REBUILD = "stats_rebuild";
+
+    /** Background migrations: build the indexes of the sync, one at a time (version 7) */
+    private static final String MIGRATION_SYNC_INDEXES = "sync_indexes";
+
+    /** Background migrations: build the indexes of the filtered pages, one at a time (version 8) */
+    private static final String MIGRATION_PACKAGING_INDEXES = "packaging_indexes";
+
+    /**
+     * Rows of the rices table processed by each transaction of a chunked migration: small
+     * enough that the other readers and writers never wait long for one.
+     */
+    private static final int MIGRATION_CHUNK_SIZE = 2000;
+
+    /**
+     * Summary of the risi (added in version 4): number of risi and total price for each
+     * packaging and for each breed, kept up to date by the triggers below, so the statistics
+     * are read without going through the whole rices table. The group_by column is the name
+     * of the grouped column and value is its value, with '' for the risi without a breed.
+     */
+    static final String STATS_TABLE_NAME = "rices_stats";
+    static final String STATS_COLUMN_GROUP_BY = "group_by";
+    static final String STATS_COLUMN_VALUE = "value";
+
+    /** Columns of the stats table, in the order used by the statements below */
+    private static final String SQL_STATS_COLUMNS = STATS_COLUMN_GROUP_BY + ", "
+            + STATS_COLUMN_VALUE + ", " + RiceEntry.COLUMN_COUNT + ", "
+            + RiceEntry.COLUMN_TOTAL_PRICE;
+
+    /**
+     * Statements that add a rice (the new row of a trigger) to its groups in the summary,
+     * creating the groups if they don't exist yet.
+     */
+    private static final String SQL_STATS_ADD_NEW =
+            statsAddSql(RiceEntry.COLUMN_PACKAGING, "new." + RiceEntry.COLUMN_PACKAGING)
+            + statsAddSql(RiceEntry.COLUMN_BREED, "IFNULL(new." + RiceEntry.COLUMN_BREED + ", '')");
 
     /**
-     * Constructs a new instance of {@link RiceDbHelper}.
+     * Statements that remove a rice (the old row of a trigger) from its groups in the summary,
+     * dropping the groups that become empty.
+     */
+    private static final String SQL_STATS_REMOVE_OLD =
+            statsRemoveSql(RiceEntry.COLUMN_PACKAGING, "old." + RiceEntry.COLUMN_PACKAGING)
+            + statsRemoveSql(RiceEntry.COLUMN_BREED, "IFNULL(old." + RiceEntry.COLUMN_BREED + ", '')");
+
+    /** Triggers that keep the summary in sync with the rices table */
+    private static final String[] SQL_CREATE_STATS_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS rices_stats_insert AFTER INSERT ON "
+                    + RiceEntry.TABLE_NAME + " BEGIN" + SQL_STATS_ADD_NEW + " END;",
+            "CREATE TRIGGER IF NOT EXISTS rices_stats_update AFTER UPDATE OF "
+                    + RiceEntry.COLUMN_BREED + ", " + RiceEntry.COLUMN_PACKAGING + ", "
+                    + RiceEntry.COLUMN_PRICE + " ON " + RiceEntry.TABLE_NAME
+                    + " BEGIN" + SQL_STATS_REMOVE_OLD + SQL_STATS_ADD_NEW + " END;",
+            "CREATE TRIGGER IF NOT EXISTS rices_stats_delete AFTER DELETE ON "
+                    + RiceEntry.TABLE_NAME + " BEGIN" + SQL_STATS_REMOVE_OLD + " END;"
+    };
+
+    /**
+     * Log of the changes to the risi (added in version 6), filled by the triggers below, see
+     * {@link RiceEntry#CONTENT_CHANGES_URI}. The sequence number is an AUTOINCREMENT key, so
+     * it keeps growing even when the last changes are removed by the compaction.
+     */
+    static final String CHANGES_TABLE_NAME = "rices_changes";
+
+    /** Triggers that record every change of the rices table in the log */
+    private static final String[] SQL_CREATE_CHANGES_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS rices_changes_insert AFTER INSERT ON "
+                    + RiceEntry.TABLE_NAME + " BEGIN" + changeLogSql("new", RiceEntry.CHANGE_INSERT)
+                    + " END;",
+            "CREATE TRIGGER IF NOT EXISTS rices_changes_update AFTER UPDATE OF "
+                    + RiceEntry.COLUMN_RICE_NAME + ", " + RiceEntry.COLUMN_BREED + ", "
+                    + RiceEntry.COLUMN_PACKAGING + ", " + RiceEntry.COLUMN_PRICE + ", "
+                    + RiceEntry.COLUMN_DESCRIPTION + " ON " + RiceEntry.TABLE_NAME
+                    + " BEGIN" + changeLogSql("new", RiceEntry.CHANGE_UPDATE) + " END;",
+            "CREATE TRIGGER IF NOT EXISTS rices_changes_delete AFTER DELETE ON "
+                    + RiceEntry.TABLE_NAME + " BEGIN" + changeLogSql("old", RiceEntry.CHANGE_DELETE)
+                    + " END;"
+    };
+
+    /**
+     * Columns of the rices table used by the sync with the central price list (added in
+     * version 7), see {@link RiceSync}: the key of the rice on the server (assigned by the
+     * app to the new risi before they are sent, so sending them again is harmless), the
+     * version of the rice on the server the last time it was synced (null if it never was),
+     * and whether the rice has local changes that the server doesn't have yet. They are not
+     * part of the contract: only the sync uses them.
+     */
+    static final String SYNC_COLUMN_REMOTE_ID = "remote_id";
+    static final String SYNC_COLUMN_VERSION = "version";
+    static final String SYNC_COLUMN_DIRTY = "dirty";
+
+    /**
+     * Risi deleted locally after being synced, which the server still has to be told about
+     * (added in version 7). Filled by a trigger, emptied by the sync.
+     */
+    static final String SYNC_DELETIONS_TABLE_NAME = "sync_deletions";
+
+    /**
+     * State of the sync (added in version 7) and of the other writers that must survive an
+     * interruption, as key and value pairs: it's changed in the same transactions as the
+     * risi, so it always matches them.
+     */
+    static final String SYNC_STATE_TABLE_NAME = "sync_state";
+    static final String SYNC_STATE_COLUMN_KEY = "key";
+    static final String SYNC_STATE_COLUMN_VALUE = "value";
+
+    /** Key of the sync state with the position of the server changes already pulled */
+    static final String SYNC_STATE_PULL_TOKEN = "pull_token";
+
+    /**
+     * Key of the state with the sequence number of the last write applied, see
+     * {@link RiceEntry#QUERY_PARAMETER_WRITE_SEQUENCE}
+     */
+    static final String SYNC_STATE_WRITE_SEQUENCE = "write_sequence";
+
+    /**
+     * Triggers that track the local changes for the sync. An update from the app marks the
+     * rice as dirty; the updates done by the sync change the version too, so they don't. A
+     * delete of a rice the server knows leaves a tombstone for the sync.
+     */
+    private static final String[] SQL_CREATE_SYNC_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS rices_sync_update AFTER UPDATE OF "
+                    + RiceEntry.COLUMN_RICE_NAME + ", " + RiceEntry.COLUMN_BREED + ", "
+                    + RiceEntry.COLUMN_PACKAGING + ", " + RiceEntry.COLUMN_PRICE + ", "
+                    + RiceEntry.COLUMN_DESCRIPTION + " ON " + RiceEntry.TABLE_NAME
+                    + " WHEN new." + SYNC_COLUMN_VERSION + " IS old." + SYNC_COLUMN_VERSION
+                    + " BEGIN UPDATE " + RiceEntry.TABLE_NAME + " SET " + SYNC_COLUMN_DIRTY
+                    + "=1 WHERE " + RiceEntry._ID + "=new." + RiceEntry._ID + "; END;",
+            "CREATE TRIGGER IF NOT EXISTS rices_sync_delete AFTER DELETE ON "
+                    + RiceEntry.TABLE_NAME + " WHEN old." + SYNC_COLUMN_REMOTE_ID
+                    + " IS NOT NULL BEGIN INSERT OR REPLACE INTO " + SYNC_DELETIONS_TABLE_NAME
+                    + " (" + SYNC_COLUMN_REMOTE_ID + ", " + SYNC_COLUMN_VERSION + ") VALUES (old."
+                    + SYNC_COLUMN_REMOTE_ID + ", old." + SYNC_COLUMN_VERSION + "); END;"
+    };
+
+    /**
+     * The summary computed from scratch, in the same layout as the stats table: used both to
+     * rebuild it and to check that it didn't drift from the rices table.
+     */
+    private static final String SQL_SELECT_STATS = "SELECT '" + RiceEntry.COLUMN_PACKAGING + "', "
+            + RiceEntry.COLUMN_PACKAGING + ", COUNT(*), SUM(" + RiceEntry.COLUMN_PRICE + ") FROM "
+            + RiceEntry.TABLE_NAME + " GROUP BY " + RiceEntry.COLUMN_PACKAGING
+            + " UNION ALL SELECT '" + RiceEntry.COLUMN_BREED + "', IFNULL("
+            + RiceEntry.COLUMN_BREED + ", ''), COUNT(*), SUM(" + RiceEntry.COLUMN_PRICE + ") FROM "
+            + RiceEntry.TABLE_NAME + " GROUP BY IFNULL(" + RiceEntry.COLUMN_BREED + ", '')";
+
+    /**
+     * Secondary indexes on the rices table (added in version 2), used by the catalog sort orders
+     * and filters, see {@link RiceEntry#SORT_BY_NAME} and the other SORT_BY_* constants.
+     */
+    private static final String[] SQL_CREATE_RICE_INDEXES = {
+            "CREATE INDEX IF NOT EXISTS rices_name_index ON " + RiceEntry.TABLE_NAME
+                    + " (" + RiceEntry.COLUMN_RICE_NAME + " COLLATE NOCASE);",
+            "CREATE INDEX IF NOT EXISTS rices_breed_index ON " + RiceEntry.TABLE_NAME
+                    + " (" + RiceEntry.COLUMN_BREED + ");",
+            "CREATE INDEX IF NOT EXISTS rices_packaging_index ON " + RiceEntry.TABLE_NAME
+                    + " (" + RiceEntry.COLUMN_PACKAGING + ");",
+            "CREATE INDEX IF NOT EXISTS rices_price_index ON " + RiceEntry.TABLE_NAME
+                    + " (" + RiceEntry.COLUMN_PRICE + ");"
+    };
+
+    /**
+     * Indexes of the pages of a single packaging (added in version 8), one for each sort key
+     * but the _id, which the packaging index already has after the packaging. SQLite seeks to
+     * the packaging and to the start of the page at once, and reads the page in order; with
+     * the index of the sort key alone it goes through the risi of every packaging.
+     */
+    private static final String[] SQL_CREATE_PACKAGING_INDEXES = {
+            "CREATE INDEX IF NOT EXISTS rices_packaging_name_index ON " + RiceEntry.TABLE_NAME
+                    + " (" + RiceEntry.COLUMN_PACKAGING + ", " + RiceEntry.COLUMN_RICE_NAME
+                    + " COLLATE NOCASE);",
+            "CREATE INDEX IF NOT EXISTS rices_packaging_breed_index ON " + RiceEntry.TABLE_NAME
+                    + " (" + RiceEntry.COLUMN_PACKAGING + ", " + RiceEntry.COLUMN_BREED + ");",
+            "CREATE INDEX IF NOT EXISTS rices_packaging_price_index ON " + RiceEntry.TABLE_NAME
+                    + " (" + RiceEntry.COLUMN_PACKAGING + ", " + RiceEntry.COLUMN_PRICE + ");"
+    };
+
+    /** Unique index of the server keys, which the sync relies on, see {@link #hasSyncIndexes} */
+    private static final String SYNC_REMOTE_ID_INDEX_NAME = "rices_remote_id_index";
+
+    /**
+     * Indexes of the sync (added in version 7): the sync looks the risi up by key on the
+     * server, and goes through the dirty ones.
+     */
+    private static final String[] SQL_CREATE_SYNC_INDEXES = {
+            "CREATE UNIQUE INDEX IF NOT EXISTS " + SYNC_REMOTE_ID_INDEX_NAME + " ON "
+                    + RiceEntry.TABLE_NAME + " (" + SYNC_COLUMN_REMOTE_ID + ");",
+            "CREATE INDEX IF NOT EXISTS rices_dirty_index ON " + RiceEntry.TABLE_NAME
+                    + " (" + SYNC_COLUMN_DIRTY + ");"
+    };
+
+    /** Triggers that copy every change of the rices table into the full-text index */
+    private static final String[] SQL_CREATE_FTS_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS rices_fts_insert AFTER INSERT ON " + RiceEntry.TABLE_NAME
+                    + " BEGIN INSERT INTO " + FTS_TABLE_NAME + " (docid, "
+                    + RiceEntry.COLUMN_RICE_NAME + ", " + RiceEntry.COLUMN_BREED + ", "
+                    + RiceEntry.COLUMN_DESCRIPTION + ") VALUES (new." + RiceEntry._ID + ", new."
+                    + RiceEntry.COLUMN_RICE_NAME + ", new." + RiceEntry.COLUMN_BREED + ", new."
+                    + RiceEntry.COLUMN_DESCRIPTION + "); END;",
+            "CREATE TRIGGER IF NOT EXISTS rices_fts_update AFTER UPDATE OF "
+                    + RiceEntry.COLUMN_RICE_NAME + ", " + RiceEntry.COLUMN_BREED + ", "
+                    + RiceEntry.COLUMN_DESCRIPTION + " ON " + RiceEntry.TABLE_NAME
+                    + " BEGIN UPDATE " + FTS_TABLE_NAME + " SET "
+                    + RiceEntry.COLUMN_RICE_NAME + "=new." + RiceEntry.COLUMN_RICE_NAME + ", "
+                    + RiceEntry.COLUMN_BREED + "=new." + RiceEntry.COLUMN_BREED + ", "
+                    + RiceEntry.COLUMN_DESCRIPTION + "=new." + RiceEntry.COLUMN_DESCRIPTION
+                    + " WHERE docid=old." + RiceEntry._ID + "; END;",
+            "CREATE TRIGGER IF NOT EXISTS rices_fts_delete AFTER DELETE ON " + RiceEntry.TABLE_NAME
+                    + " BEGIN DELETE FROM " + FTS_TABLE_NAME
+                    + " WHERE docid=old." + RiceEntry._ID + "; END;"
+    };
+
+    /**
+     * Possible values for the synchronous level of the database, see
+     * https://www.sqlite.org/pragma.html#pragma_synchronous
+     * In write-ahead logging mode NORMAL is safe from corruption and only the last transactions
+     * may be lost on a power failure, so it's the default for the concurrent mode.
+     */
+    public static final int SYNCHRONOUS_OFF = 0;
+    public static final int SYNCHRONOUS_NORMAL = 1;
+    public static final int SYNCHRONOUS_FULL = 2;
+
+    /** Default number of WAL pages after which SQLite checkpoints the log automatically */
+    public static final int DEFAULT_AUTO_CHECKPOINT = 1000;
+
+    /** Value of PRAGMA auto_vacuum for the incremental mode, see {@link #vacuumIncrementally} */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /** Whether the database runs in write-ahead logging (concurrent readers) mode */
+    private final boolean mConcurrent;
+
+    /** WAL pages after which a checkpoint is run automatically, 0 to only checkpoint manually */
+    private final int mAutoCheckpoint;
+
+    /** One of the SYNCHRONOUS_* constants */
+    private final int mSynchronous;
+
+    /** The database file, null for an in-memory database */
+    private final File mFile;
+
+    /** Whether the file of the database exists, see {@link #createDatabaseFile()} */
+    private volatile boolean mFileCreated;
+
+    /**
+     * Constructs a new instance of {@link RiceDbHelper}, in concurrent mode: the database uses
+     * write-ahead logging, so readers (e.g. the catalog loader) never wait for a writer
+     * (e.g. the editor) and the other way round.
      *
      * @param context of the app
      */
     public RiceDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, true, DEFAULT_AUTO_CHECKPOINT, SYNCHRONOUS_NORMAL);
+    }
+
+    /**
+     * Constructs a new instance of {@link RiceDbHelper} on the database of the app.
+     *
+     * @param context        of the app
+     * @param concurrent     true to use write-ahead logging, false for the rollback journal
+     * @param autoCheckpoint WAL pages after which SQLite checkpoints automatically; 0 disables
+     *                       automatic checkpoints, so only {@link #checkpoint()} runs them
+     * @param synchronous    one of the SYNCHRONOUS_* constants
+     */
+    public RiceDbHelper(Context context, boolean concurrent, int autoCheckpoint, int synchronous) {
+        this(context, DATABASE_NAME, concurrent, autoCheckpoint, synchronous);
+    }
+
+    /**
+     * Constructs a new instance of {@link RiceDbHelper} on a database other than the one of
+     * the app, e.g. a scratch database to measure the cost of the queries against, without
+     * touching the real catalog.
+     *
+     * @param context        of the app
+     * @param name           name of the database file, or null for an in-memory database
+     *                       (which can't use write-ahead logging, so concurrent is ignored)
+     * @param concurrent     true to use write-ahead logging, false for the rollback journal
+     * @param autoCheckpoint WAL pages after which SQLite checkpoints automatically; 0 disables
+     *                       automatic checkpoints, so only {@link #checkpoint()} runs them
+     * @param synchronous    one of the SYNCHRONOUS_* constants
+     */
+    public RiceDbHelper(Context context, String name, boolean concurrent, int autoCheckpoint,
+                        int synchronous) {
+        this(context, name, null, concurrent, autoCheckpoint, synchronous);
+    }
+
+    /**
+     * Constructs a new instance of {@link RiceDbHelper} whose queries return the cursors of the
+     * given factory, e.g. to look at the SQL the provider runs.
+     *
+     * @param factory to create the cursors of the queries, or null for the default ones
+     * @see #RiceDbHelper(Context, String, boolean, int, int)
+     */
+    RiceDbHelper(Context context, String name, SQLiteDatabase.CursorFactory factory,
+                 boolean concurrent, int autoCheckpoint, int synchronous) {
+        super(context, name, factory, DATABASE_VERSION);
+        concurrent = concurrent && name != null;
+        if (autoCheckpoint < 0) {
+            throw new IllegalArgumentException("Invalid auto checkpoint " + autoCheckpoint);
+        }
+        if (synchronous < SYNCHRONOUS_OFF || synchronous > SYNCHRONOUS_FULL) {
+            throw new IllegalArgumentException("Invalid synchronous level " + synchronous);
+        }
+        mConcurrent = concurrent;
+        mAutoCheckpoint = autoCheckpoint;
+        mSynchronous = synchronous;
+        mFile = name == null ? null : context.getDatabasePath(name);
+
+        // From Jelly Bean on the open helper enables WAL itself before the database is used,
+        // on older versions it's done in onOpen()
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(concurrent);
+        }
     }
 
     /**
@@ -35,17 +375,658 @@ public class RiceDbHelper extends SQLiteOpenHelper {
                 + RiceEntry.COLUMN_RICE_NAME + " TEXT NOT NULL, "
                 + RiceEntry.COLUMN_BREED + " TEXT, "
                 + RiceEntry.COLUMN_PACKAGING + " INTEGER NOT NULL, "
-                + RiceEntry.COLUMN_PRICE + " INTEGER NOT NULL DEFAULT 0);";
+                + RiceEntry.COLUMN_PRICE + " INTEGER NOT NULL DEFAULT 0, "
+                + RiceEntry.COLUMN_DESCRIPTION + " TEXT, "
+                + SYNC_COLUMN_REMOTE_ID + " TEXT, "
+                + SYNC_COLUMN_VERSION + " INTEGER, "
+                + SYNC_COLUMN_DIRTY + " INTEGER NOT NULL DEFAULT 1);";
 
         // Execute the SQL statement
         db.execSQL(SQL_CREATE_RICE_TABLE);
+        createRiceIndexes(db);
+        createFullTextIndex(db);
+        createStats(db);
+        createChangeLog(db);
+        createSync(db);
+        for (String sql : SQL_CREATE_SYNC_INDEXES) {
+            db.execSQL(sql);
+        }
+        createMigrations(db);
     }
 
     /**
-     * This is called when the database needs to be upgraded.
+     * This is called when the database needs to be upgraded. The changes of every version after
+     * the old one are applied in order, all in the same transaction: only the schema changes are
+     * done here, while the changes that have to go through all the risi are scheduled and done
+     * later by {@link #runMigrations()}, so opening the database stays quick whatever its size.
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+        // The older versions can schedule background migrations too
+        createMigrations(db);
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            upgradeTo(db, version);
+        }
+    }
+
+    /**
+     * Apply the changes of a version of the database to the one before it.
+     */
+    private static void upgradeTo(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 2:
+                // Version 2 added the secondary indexes. SQLite builds an index in a single
+                // statement, which takes seconds on a big catalog: they are built in the
+                // background, one per chunk, and the catalog is read without them until then.
+                scheduleMigration(db, MIGRATION_RICE_INDEXES, SQL_CREATE_RICE_INDEXES.length);
+                break;
+            case 3:
+                // Version 3 added the description column and the full-text index
+                db.execSQL("ALTER TABLE " + RiceEntry.TABLE_NAME + " ADD COLUMN "
+                        + RiceEntry.COLUMN_DESCRIPTION + " TEXT;");
+                createFullTextIndex(db);
+                // The risi that are already there are indexed in the background, the triggers
+                // take care of the new ones
+                scheduleMigration(db, MIGRATION_FTS_BACKFILL);
+                break;
+            case 4:
+                // Version 4 added the summary table for the statistics, filled in the background
+                createStats(db);
+                scheduleMigration(db, MIGRATION_STATS_REBUILD);
+                break;
+            case 5:
+                // Version 5 added the table of the background migrations, see onUpgrade()
+                break;
+            case 6:
+                // Version 6 added the log of the changes, which starts empty: the consumers
+                // start from a full read of the risi anyway
+                createChangeLog(db);
+                break;
+            case 7:
+                // Version 7 added the sync with the central price list. The risi already
+                // there are dirty, so the first sync sends them to the server. The log of
+                // the changes stops recording the updates that only touch the sync columns.
+                // Its indexes are built in the background, like the ones of version 2.
+                db.execSQL("ALTER TABLE " + RiceEntry.TABLE_NAME + " ADD COLUMN "
+                        + SYNC_COLUMN_REMOTE_ID + " TEXT;");
+                db.execSQL("ALTER TABLE " + RiceEntry.TABLE_NAME + " ADD COLUMN "
+                        + SYNC_COLUMN_VERSION + " INTEGER;");
+                db.execSQL("ALTER TABLE " + RiceEntry.TABLE_NAME + " ADD COLUMN "
+                        + SYNC_COLUMN_DIRTY + " INTEGER NOT NULL DEFAULT 1;");
+                db.execSQL("DROP TRIGGER IF EXISTS rices_changes_update;");
+                createChangeLog(db);
+                createSync(db);
+                scheduleMigration(db, MIGRATION_SYNC_INDEXES, SQL_CREATE_SYNC_INDEXES.length);
+                break;
+            case 8:
+                // Version 8 added the indexes of the pages of a single packaging, built in the
+                // background like the ones of version 2
+                scheduleMigration(db, MIGRATION_PACKAGING_INDEXES,
+                        SQL_CREATE_PACKAGING_INDEXES.length);
+                break;
+            default:
+                throw new IllegalStateException("No upgrade to version " + version);
+        }
+    }
+
+    /**
+     * Create the table of the background migrations.
+     */
+    private static void createMigrations(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + MIGRATIONS_TABLE_NAME + " ("
+                + MIGRATIONS_COLUMN_NAME + " TEXT PRIMARY KEY, "
+                + MIGRATIONS_COLUMN_POSITION + " INTEGER NOT NULL, "
+                + MIGRATIONS_COLUMN_END + " INTEGER NOT NULL);");
+    }
+
+    /**
+     * Schedule a background migration over the risi that are in the table now. The risi
+     * inserted later have a greater _id, so they are left out.
+     */
+    private static void scheduleMigration(SQLiteDatabase db, String name) {
+        db.execSQL("INSERT OR REPLACE INTO " + MIGRATIONS_TABLE_NAME + " ("
+                + MIGRATIONS_COLUMN_NAME + ", " + MIGRATIONS_COLUMN_POSITION + ", "
+                + MIGRATIONS_COLUMN_END + ") SELECT ?, 0, IFNULL(MAX(" + RiceEntry._ID + "), 0) FROM "
+                + RiceEntry.TABLE_NAME + ";", new Object[] { name });
+    }
+
+    /**
+     * Schedule a background migration that goes through the given number of steps.
+     */
+    private static void scheduleMigration(SQLiteDatabase db, String name, long end) {
+        db.execSQL("INSERT OR REPLACE INTO " + MIGRATIONS_TABLE_NAME + " ("
+                + MIGRATIONS_COLUMN_NAME + ", " + MIGRATIONS_COLUMN_POSITION + ", "
+                + MIGRATIONS_COLUMN_END + ") VALUES (?, 0, ?);", new Object[] { name, end });
+    }
+
+    /**
+     * Run the background migrations scheduled by the upgrades, in the order they were scheduled.
+     * Every chunk runs in its own transaction, which also saves the progress of the migration:
+     * the other readers and writers only wait for a chunk at most, and if the process dies in
+     * the middle the next call goes on from the last chunk. Must not be called on the main thread.
+     *
+     * @return true if at least a chunk was migrated
+     */
+    public synchronized boolean runMigrations() {
+        SQLiteDatabase db = getWritableDatabase();
+        boolean migrated = false;
+        while (true) {
+            db.beginTransaction();
+            try {
+                String name;
+                long position;
+                long end;
+                Cursor cursor = db.query(MIGRATIONS_TABLE_NAME, new String[] {
+                                MIGRATIONS_COLUMN_NAME, MIGRATIONS_COLUMN_POSITION,
+                                MIGRATIONS_COLUMN_END },
+                        null, null, null, null, "rowid", "1");
+                try {
+                    if (!cursor.moveToFirst()) {
+                        return migrated;
+                    }
+                    name = cursor.getString(0);
+                    position = cursor.getLong(1);
+                    end = cursor.getLong(2);
+                } finally {
+                    cursor.close();
+                }
+
+                position = runMigrationChunk(db, name, position, end);
+                if (position >= end) {
+                    Log.i(LOG_TAG, "Migration " + name + " done");
+                    db.delete(MIGRATIONS_TABLE_NAME, MIGRATIONS_COLUMN_NAME + "=?",
+                            new String[] { name });
+                } else {
+                    ContentValues values = new ContentValues();
+                    values.put(MIGRATIONS_COLUMN_POSITION, position);
+                    db.update(MIGRATIONS_TABLE_NAME, values, MIGRATIONS_COLUMN_NAME + "=?",
+                            new String[] { name });
+                }
+                db.setTransactionSuccessful();
+                migrated = true;
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Run the next chunk of a background migration.
+     *
+     * @param position the _id of the last rice already migrated, or the steps already done
+     * @param end      the _id of the last rice to migrate, or the number of steps
+     * @return the _id of the last rice migrated by this chunk, or the steps done
+     */
+    private static long runMigrationChunk(SQLiteDatabase db, String name, long position, long end) {
+        if (MIGRATION_RICE_INDEXES.equals(name)) {
+            // The position is the number of indexes already built
+            db.execSQL(SQL_CREATE_RICE_INDEXES[(int) position]);
+            return position + 1;
+        }
+        if (MIGRATION_SYNC_INDEXES.equals(name)) {
+            db.execSQL(SQL_CREATE_SYNC_INDEXES[(int) position]);
+            return position + 1;
+        }
+        if (MIGRATION_PACKAGING_INDEXES.equals(name)) {
+            db.execSQL(SQL_CREATE_PACKAGING_INDEXES[(int) position]);
+            return position + 1;
+        }
+        if (MIGRATION_STATS_REBUILD.equals(name)) {
+            // The summary of a part of the risi would be wrong as soon as one of the others
+            // changes, so it's computed all at once (a single read of the table)
+            rebuildStats(db);
+            return end;
+        }
+        if (MIGRATION_FTS_BACKFILL.equals(name)) {
+            String[] range = { String.valueOf(position), String.valueOf(end) };
+            long chunkEnd = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + RiceEntry._ID
+                    + "), ?2) FROM (SELECT " + RiceEntry._ID + " FROM " + RiceEntry.TABLE_NAME
+                    + " WHERE " + RiceEntry._ID + ">?1 AND " + RiceEntry._ID + "<=?2 ORDER BY "
+                    + RiceEntry._ID + " LIMIT " + MIGRATION_CHUNK_SIZE + ")", range);
+            // The risi changed since the upgrade are indexed with their current values, and
+            // the deleted ones are not there anymore
+            db.execSQL("INSERT INTO " + FTS_TABLE_NAME + " (docid, "
+                    + RiceEntry.COLUMN_RICE_NAME + ", " + RiceEntry.COLUMN_BREED + ", "
+                    + RiceEntry.COLUMN_DESCRIPTION + ") SELECT " + RiceEntry._ID + ", "
+                    + RiceEntry.COLUMN_RICE_NAME + ", " + RiceEntry.COLUMN_BREED + ", "
+                    + RiceEntry.COLUMN_DESCRIPTION + " FROM " + RiceEntry.TABLE_NAME + " WHERE "
+                    + RiceEntry._ID + ">? AND " + RiceEntry._ID + "<=?;",
+                    new Object[] { position, chunkEnd });
+            return chunkEnd;
+        }
+        Log.w(LOG_TAG, "Unknown migration " + name + ", skipping it");
+        return end;
+    }
+
+    /**
+     * Create the secondary indexes of the rices table.
+     */
+    private static void createRiceIndexes(SQLiteDatabase db) {
+        for (String sql : SQL_CREATE_RICE_INDEXES) {
+            db.execSQL(sql);
+        }
+        for (String sql : SQL_CREATE_PACKAGING_INDEXES) {
+            db.execSQL(sql);
+        }
+    }
+
+    /**
+     * Create the full-text index and the triggers that keep it in sync with the rices table.
+     */
+    private static void createFullTextIndex(SQLiteDatabase db) {
+        // Prefix indexes make the "search as you type" prefix queries much cheaper, but the
+        // option is only understood by the SQLite shipped from Jelly Bean on
+        String prefixOption = "";
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            prefixOption = ", prefix=\"1,2,3\"";
+        }
+        // IF NOT EXISTS is only understood for virtual tables from SQLite 3.7.11 (Jelly Bean)
+        if (DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master WHERE type='table'"
+                + " AND name=?", new String[] { FTS_TABLE_NAME }) == 0) {
+            db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4("
+                    + RiceEntry.COLUMN_RICE_NAME + ", " + RiceEntry.COLUMN_BREED + ", "
+                    + RiceEntry.COLUMN_DESCRIPTION + prefixOption + ");");
+        }
+        for (String sql : SQL_CREATE_FTS_TRIGGERS) {
+            db.execSQL(sql);
+        }
+    }
+
+    /**
+     * Create the summary table for the statistics and the triggers that keep it up to date.
+     */
+    private static void createStats(SQLiteDatabase db) {
+        // The value column has no type, so packagings stay integers and breeds stay text
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + STATS_TABLE_NAME + " ("
+                + STATS_COLUMN_GROUP_BY + " TEXT NOT NULL, "
+                + STATS_COLUMN_VALUE + " NOT NULL, "
+                + RiceEntry.COLUMN_COUNT + " INTEGER NOT NULL, "
+                + RiceEntry.COLUMN_TOTAL_PRICE + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + STATS_COLUMN_GROUP_BY + ", " + STATS_COLUMN_VALUE + "));");
+        for (String sql : SQL_CREATE_STATS_TRIGGERS) {
+            db.execSQL(sql);
+        }
+    }
+
+    /**
+     * Create the log of the changes and the triggers that fill it.
+     */
+    private static void createChangeLog(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + CHANGES_TABLE_NAME + " ("
+                + RiceEntry.COLUMN_SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + RiceEntry.COLUMN_RICE_ID + " INTEGER, "
+                + RiceEntry.COLUMN_CHANGE + " TEXT NOT NULL);");
+        for (String sql : SQL_CREATE_CHANGES_TRIGGERS) {
+            db.execSQL(sql);
+        }
+    }
+
+    /**
+     * Create the tables and the triggers used by the sync. Its indexes are created on their
+     * own, see {@link #SQL_CREATE_SYNC_INDEXES}.
+     */
+    private static void createSync(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + SYNC_DELETIONS_TABLE_NAME + " ("
+                + SYNC_COLUMN_REMOTE_ID + " TEXT PRIMARY KEY, "
+                + SYNC_COLUMN_VERSION + " INTEGER);");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + SYNC_STATE_TABLE_NAME + " ("
+                + SYNC_STATE_COLUMN_KEY + " TEXT PRIMARY KEY, "
+                + SYNC_STATE_COLUMN_VALUE + " TEXT);");
+        for (String sql : SQL_CREATE_SYNC_TRIGGERS) {
+            db.execSQL(sql);
+        }
+    }
+
+    /**
+     * Returns whether the unique index of the server keys exists: the pull inserts the risi
+     * of the server while ignoring the conflicts on it, so without it a rice the sync already
+     * has would be inserted twice. After the upgrade to version 7 it only exists once the
+     * background migrations have built it.
+     */
+    boolean hasSyncIndexes() {
+        return DatabaseUtils.longForQuery(getReadableDatabase(), "SELECT COUNT(*) FROM "
+                + "sqlite_master WHERE type='index' AND name=?",
+                new String[] { SYNC_REMOTE_ID_INDEX_NAME }) > 0;
+    }
+
+    /**
+     * Returns the statement that records the row of a trigger in the log of the changes.
+     *
+     * @param row    the row of the trigger, new or old
+     * @param change the kind of change, one of the RiceEntry.CHANGE_* constants
+     */
+    private static String changeLogSql(String row, String change) {
+        return " INSERT INTO " + CHANGES_TABLE_NAME + " (" + RiceEntry.COLUMN_RICE_ID + ", "
+                + RiceEntry.COLUMN_CHANGE + ") VALUES (" + row + "." + RiceEntry._ID + ", '"
+                + change + "');";
+    }
+
+    /**
+     * Compact the log of the changes: only the last change of each rice is kept, and nothing
+     * before the last deletion of all the risi. A consumer that applies the log to its copy of
+     * the risi gets the same result with or without the removed changes.
+     *
+     * @return the number of changes removed
+     */
+    public int compactChanges() {
+        SQLiteDatabase db = getWritableDatabase();
+        // The CHANGE_DELETE_ALL rows have a null rice_id, so they are a group of their own
+        return db.delete(CHANGES_TABLE_NAME, RiceEntry.COLUMN_SEQUENCE + " NOT IN (SELECT MAX("
+                + RiceEntry.COLUMN_SEQUENCE + ") FROM " + CHANGES_TABLE_NAME + " GROUP BY "
+                + RiceEntry.COLUMN_RICE_ID + ") OR " + RiceEntry.COLUMN_SEQUENCE
+                + "<(SELECT IFNULL(MAX(" + RiceEntry.COLUMN_SEQUENCE + "), 0) FROM "
+                + CHANGES_TABLE_NAME + " WHERE " + RiceEntry.COLUMN_CHANGE + "=?)",
+                new String[] { RiceEntry.CHANGE_DELETE_ALL });
+    }
+
+    /**
+     * Returns the statements that add the row of a trigger to a group of the summary.
+     *
+     * @param groupBy the grouped column
+     * @param value   SQL expression with the value of the group
+     */
+    private static String statsAddSql(String groupBy, String value) {
+        String group = STATS_COLUMN_GROUP_BY + "='" + groupBy + "' AND " + STATS_COLUMN_VALUE
+                + "=" + value;
+        return " INSERT OR IGNORE INTO " + STATS_TABLE_NAME + " (" + SQL_STATS_COLUMNS
+                + ") VALUES ('" + groupBy + "', " + value + ", 0, 0);"
+                + " UPDATE " + STATS_TABLE_NAME + " SET "
+                + RiceEntry.COLUMN_COUNT + "=" + RiceEntry.COLUMN_COUNT + "+1, "
+                + RiceEntry.COLUMN_TOTAL_PRICE + "=" + RiceEntry.COLUMN_TOTAL_PRICE + "+new."
+                + RiceEntry.COLUMN_PRICE + " WHERE " + group + ";";
+    }
+
+    /**
+     * Returns the statements that remove the row of a trigger from a group of the summary.
+     *
+     * @param groupBy the grouped column
+     * @param value   SQL expression with the value of the group
+     */
+    private static String statsRemoveSql(String groupBy, String value) {
+        String group = STATS_COLUMN_GROUP_BY + "='" + groupBy + "' AND " + STATS_COLUMN_VALUE
+                + "=" + value;
+        return " UPDATE " + STATS_TABLE_NAME + " SET "
+                + RiceEntry.COLUMN_COUNT + "=" + RiceEntry.COLUMN_COUNT + "-1, "
+                + RiceEntry.COLUMN_TOTAL_PRICE + "=" + RiceEntry.COLUMN_TOTAL_PRICE + "-old."
+                + RiceEntry.COLUMN_PRICE + " WHERE " + group + ";"
+                + " DELETE FROM " + STATS_TABLE_NAME + " WHERE " + group + " AND "
+                + RiceEntry.COLUMN_COUNT + "=0;";
+    }
+
+    /**
+     * Compute the summary from scratch, replacing its content.
+     */
+    private static void rebuildStats(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + STATS_TABLE_NAME + ";");
+        db.execSQL("INSERT INTO " + STATS_TABLE_NAME + " (" + SQL_STATS_COLUMNS + ") "
+                + SQL_SELECT_STATS + ";");
+    }
+
+    /**
+     * Check that the summary matches the rices table, and rebuild it if it doesn't (e.g. after
+     * the table was changed with the triggers missing). Costs a full scan of the rices table,
+     * so it's meant for maintenance, not for every read.
+     *
+     * @return true if the summary had drifted and was rebuilt
+     */
+    public boolean checkStats() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            // Rows in one of the two summaries and not in the other
+            String stored = "SELECT " + SQL_STATS_COLUMNS + " FROM " + STATS_TABLE_NAME;
+            String computed = "SELECT * FROM (" + SQL_SELECT_STATS + ")";
+            Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM ("
+                    + "SELECT * FROM (" + stored + " EXCEPT " + computed + ")"
+                    + " UNION ALL "
+                    + "SELECT * FROM (" + computed + " EXCEPT " + stored + "))", null);
+            boolean drifted;
+            try {
+                drifted = cursor.moveToFirst() && cursor.getLong(0) != 0;
+            } finally {
+                cursor.close();
+            }
+            if (drifted) {
+                Log.w(LOG_TAG, "Statistics out of sync with " + RiceEntry.TABLE_NAME + ", rebuilding");
+                rebuildStats(db);
+            }
+            db.setTransactionSuccessful();
+            return drifted;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Delete all the risi at once. A DELETE without a WHERE clause is normally done by SQLite
+     * as a truncate of the table, but not when the table has triggers: then every row is
+     * deleted and indexed out of the full-text index and of the summary one by one. So the
+     * triggers are dropped, the table is truncated, the full-text index and the summary are
+     * emptied and the triggers are created again, all in a single transaction. The log of the
+     * changes gets a single {@link RiceEntry#CHANGE_DELETE_ALL}, and the sync starts again from
+     * scratch. The _id of the deleted risi are not reused.
+     *
+     * @return the number of risi deleted
+     */
+    public int deleteAllRices() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            int count = (int) DatabaseUtils.queryNumEntries(db, RiceEntry.TABLE_NAME);
+            Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type='trigger'"
+                    + " AND tbl_name=?", new String[] { RiceEntry.TABLE_NAME });
+            List<String> triggers = new ArrayList<String>();
+            try {
+                while (cursor.moveToNext()) {
+                    triggers.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            for (String trigger : triggers) {
+                db.execSQL("DROP TRIGGER " + trigger + ";");
+            }
+            db.execSQL("DELETE FROM " + RiceEntry.TABLE_NAME + ";");
+            // Dropping the full-text index frees its pages at once, while a DELETE would go
+            // through all of its documents
+            db.execSQL("DROP TABLE IF EXISTS " + FTS_TABLE_NAME + ";");
+            db.execSQL("DELETE FROM " + STATS_TABLE_NAME + ";");
+            // A single entry in the log, instead of one for every rice
+            db.execSQL("INSERT INTO " + CHANGES_TABLE_NAME + " (" + RiceEntry.COLUMN_CHANGE
+                    + ") VALUES (?);", new Object[] { RiceEntry.CHANGE_DELETE_ALL });
+            createFullTextIndex(db);
+            createStats(db);
+            createChangeLog(db);
+            // Only the local copy is deleted, not the risi on the server: the next sync pulls
+            // them all again. The local changes not sent yet are lost with the risi.
+            db.delete(SYNC_STATE_TABLE_NAME, SYNC_STATE_COLUMN_KEY + "=?",
+                    new String[] { SYNC_STATE_PULL_TOKEN });
+            createSync(db);
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Give back to the file system some of the pages freed by the deleted rows, so the size
+     * of the database file follows the size of the data. Each call is a short transaction of
+     * its own that frees at most the given number of pages, so the other readers and writers
+     * don't wait long for it, unlike a full VACUUM.
+     *
+     * Incremental vacuum needs auto_vacuum=INCREMENTAL: the databases created by this version
+     * have it, the older ones only after {@link #rebuildForIncrementalVacuum()}. Until then
+     * nothing is freed. Must not be called on the main thread, nor inside a transaction.
+     *
+     * @param maxPages the maximum number of pages to free
+     * @return the number of free pages left in the file
+     */
+    public synchronized long vacuumIncrementally(int maxPages) {
+        if (maxPages <= 0) {
+            throw new IllegalArgumentException("Invalid number of pages " + maxPages);
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        if (freePages == 0 || !isIncrementalVacuumEnabled()) {
+            return freePages;
+        }
+        // Frees one page every time the statement is stepped, which the cursor does until
+        // the end
+        runPragma(db, "PRAGMA incremental_vacuum(" + maxPages + ")");
+        return DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+    }
+
+    /**
+     * Returns whether the database is in incremental vacuum mode, see
+     * {@link #vacuumIncrementally(int)}.
+     */
+    public boolean isIncrementalVacuumEnabled() {
+        return DatabaseUtils.longForQuery(getWritableDatabase(), "PRAGMA auto_vacuum", null)
+                == AUTO_VACUUM_INCREMENTAL;
+    }
+
+    /**
+     * Turn on the incremental vacuum mode of a database created by an older version of the
+     * app, which can only be done by rebuilding the whole file with a VACUUM. This frees all
+     * the free pages too, but it copies the whole database and blocks every other reader and
+     * writer until it's done, so it only runs when the user asks for it. Does nothing if the
+     * database is already in incremental mode. Must not be called on the main thread, nor
+     * inside a transaction.
+     *
+     * @return whether the database has been rebuilt
+     */
+    public synchronized boolean rebuildForIncrementalVacuum() {
+        if (isIncrementalVacuumEnabled()) {
+            return false;
+        }
+        Log.i(LOG_TAG, "Rebuilding the database to enable incremental vacuum");
+        enableIncrementalVacuum(getWritableDatabase());
+        return true;
+    }
+
+    /**
+     * Switch the database to incremental vacuum mode with a VACUUM. In WAL mode the VACUUM
+     * keeps the vacuum mode of the file, so the database goes back to the rollback journal
+     * while it runs, and the pragmas reset by the change of journal mode are applied again.
+     * The framework refuses to change the journal mode while another thread has a connection,
+     * with an IllegalStateException.
+     */
+    private void enableIncrementalVacuum(SQLiteDatabase db) {
+        if (mConcurrent) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                db.disableWriteAheadLogging();
+            } else {
+                runPragma(db, "PRAGMA journal_mode=DELETE");
+            }
+        }
+        try {
+            runPragma(db, "PRAGMA auto_vacuum=" + AUTO_VACUUM_INCREMENTAL);
+            db.execSQL("VACUUM;");
+        } finally {
+            if (mConcurrent) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                    db.enableWriteAheadLogging();
+                } else {
+                    runPragma(db, "PRAGMA journal_mode=WAL");
+                }
+                applyPragmas(db);
+            }
+        }
+    }
+
+    /**
+     * Create the file of a new database in incremental vacuum mode, so it never needs the
+     * rebuild of {@link #rebuildForIncrementalVacuum()}. The mode only applies to a file
+     * without tables, and the framework adds android_metadata as soon as it opens one, even
+     * before onConfigure(): so the empty file is created here, before the framework opens it.
+     */
+    private void createDatabaseFile() {
+        if (mFileCreated) {
+            return;
+        }
+        synchronized (this) {
+            if (mFile != null && !mFile.exists()) {
+                File directory = mFile.getParentFile();
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    Log.w(LOG_TAG, "Failed to create " + directory);
+                }
+                SQLiteDatabase db = SQLiteDatabase.openDatabase(mFile.getPath(), null,
+                        SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+                try {
+                    runPragma(db, "PRAGMA auto_vacuum=" + AUTO_VACUUM_INCREMENTAL);
+                    // Writes the first page of the file, which fixes the mode
+                    db.execSQL("CREATE TABLE android_metadata (locale TEXT)");
+                } finally {
+                    db.close();
+                }
+            }
+            mFileCreated = true;
+        }
+    }
+
+    @Override
+    public SQLiteDatabase getWritableDatabase() {
+        createDatabaseFile();
+        return super.getWritableDatabase();
+    }
+
+    @Override
+    public SQLiteDatabase getReadableDatabase() {
+        createDatabaseFile();
+        return super.getReadableDatabase();
+    }
+
+    /**
+     * This is called every time the database is opened: apply the journal mode, the checkpoint
+     * policy and the synchronous level.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+        if (mConcurrent && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+        applyPragmas(db);
+    }
+
+    /**
+     * Apply the checkpoint policy and the synchronous level, which the framework sets again
+     * when it changes the journal mode.
+     */
+    private void applyPragmas(SQLiteDatabase db) {
+        if (mConcurrent) {
+            runPragma(db, "PRAGMA wal_autocheckpoint=" + mAutoCheckpoint);
+        }
+        runPragma(db, "PRAGMA synchronous=" + mSynchronous);
+    }
+
+    /**
+     * Copy the content of the write-ahead log back into the database file, without waiting
+     * for the readers. Useful when automatic checkpoints are disabled, e.g. to run it when
+     * the app goes idle. Does nothing in rollback journal mode.
+     */
+    public void checkpoint() {
+        if (!mConcurrent) {
+            return;
+        }
+        runPragma(getWritableDatabase(), "PRAGMA wal_checkpoint(PASSIVE)");
+    }
+
+    /**
+     * Run a PRAGMA statement. Some of them return a row, which execSQL() doesn't accept,
+     * so they go through rawQuery() and the cursor is stepped to actually execute them.
+     * A failure is thrown to the caller, like the one of any other statement.
+     */
+    private static void runPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 }
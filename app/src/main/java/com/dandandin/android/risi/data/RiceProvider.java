@@ -1,109 +1,1829 @@
 package com.dandandin.android.risi.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONException;
+
+import com.dandandin.android.risi.R;
 import com.dandandin.android.risi.data.RiceContract.RiceEntry;
 
 public class RiceProvider extends ContentProvider {
     /** Tag for the log messages */
     public static final String LOG_TAG = RiceProvider.class.getSimpleName();
 
-    /** URI matcher code for the content URI for the rice table */
-    private static final int RICES = 100;
+    /** URI matcher code for the content URI for the rice table */
+    private static final int RICES = 100;
+
+    /** URI matcher code for the content URI for a single rice in the rices table */
+    private static final int RICE_ID = 101;
+
+    /** URI matcher code for the content URI of a full-text search over the rices table */
+    private static final int RICE_SEARCH = 102;
+
+    /** URI matcher code for the content URI of the statistics of the rices table */
+    private static final int RICE_STATS = 103;
+
+    /** URI matcher code for the content URI of the CSV file with all the risi */
+    private static final int RICE_CSV = 104;
+
+    /** URI matcher code for the content URI of the risi in a price range */
+    private static final int RICE_PRICES = 105;
+
+    /** URI matcher code for the content URI of the histogram of the prices */
+    private static final int RICE_PRICE_HISTOGRAM = 106;
+
+    /** URI matcher code for the content URI of the log of the changes */
+    private static final int RICE_CHANGES = 107;
+
+    /**
+     * UriMatcher object to match a content URI to a corresponding code.
+     * The input passed into the constructor represents the code to return for the root URI.
+     * It's common to use NO_MATCH as the input for this case.
+     */
+    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+    // Static initializer. This is run the first time anything is called from this class.
+    static {
+        // The calls to addURI() go here, for all of the content URI patterns that the provider
+        // should recognize. All paths added to the UriMatcher have a corresponding code to return
+        // when a match is found.
+
+        // The content URI of the form "content://com.example.android.pets/pets" will map to the
+        // integer code {@link #RICES}. This URI is used to provide access to MULTIPLE rows
+        // of the rice table.
+        sUriMatcher.addURI(RiceContract.CONTENT_AUTHORITY, RiceContract.PATH_RICE, RICES);
+
+        // The content URI of the form "content://com.example.android.pets/pets/#" will map to the
+        // integer code {@link #RICE_ID}. This URI is used to provide access to ONE single row
+        // of the rice table.
+        //
+        // In this case, the "#" wildcard is used where "#" can be substituted for an integer.
+        // For example, "content://com.dandandin.android.risi/rice/3" matches, but
+        // "content://com.dandandin.android.risi/rice" (without a number at the end) doesn't match.
+        sUriMatcher.addURI(RiceContract.CONTENT_AUTHORITY, RiceContract.PATH_RICE + "/#", RICE_ID);
+
+        // The content URI of the form "content://com.dandandin.android.risi/rices/search/text"
+        // will map to the integer code {@link #RICE_SEARCH}, and returns the risi matching text.
+        sUriMatcher.addURI(RiceContract.CONTENT_AUTHORITY,
+                RiceContract.PATH_RICE + "/" + RiceContract.PATH_SEARCH + "/*", RICE_SEARCH);
+
+        // The content URI of the form "content://com.dandandin.android.risi/rices/stats" will map
+        // to the integer code {@link #RICE_STATS}, and returns the statistics of the risi.
+        sUriMatcher.addURI(RiceContract.CONTENT_AUTHORITY,
+                RiceContract.PATH_RICE + "/" + RiceContract.PATH_STATS, RICE_STATS);
+
+        // The content URI "content://com.dandandin.android.risi/csv" will map to the integer code
+        // {@link #RICE_CSV}, and can only be opened as a file with openFile().
+        sUriMatcher.addURI(RiceContract.CONTENT_AUTHORITY, RiceContract.PATH_CSV, RICE_CSV);
+
+        // The content URIs "content://com.dandandin.android.risi/rices/prices" and
+        // "content://com.dandandin.android.risi/rices/prices/histogram" will map to the integer
+        // codes {@link #RICE_PRICES} and {@link #RICE_PRICE_HISTOGRAM}, and return the risi in a
+        // price range and the histogram of their prices.
+        sUriMatcher.addURI(RiceContract.CONTENT_AUTHORITY,
+                RiceContract.PATH_RICE + "/" + RiceContract.PATH_PRICES, RICE_PRICES);
+        sUriMatcher.addURI(RiceContract.CONTENT_AUTHORITY, RiceContract.PATH_RICE + "/"
+                + RiceContract.PATH_PRICES + "/" + RiceContract.PATH_HISTOGRAM, RICE_PRICE_HISTOGRAM);
+
+        // The content URI "content://com.dandandin.android.risi/rices/changes" will map to the
+        // integer code {@link #RICE_CHANGES}, and returns the log of the changes.
+        sUriMatcher.addURI(RiceContract.CONTENT_AUTHORITY,
+                RiceContract.PATH_RICE + "/" + RiceContract.PATH_CHANGES, RICE_CHANGES);
+    }
+
+    /** All the columns of the rices table */
+    private static final String[] ALL_COLUMNS = {
+            RiceEntry._ID,
+            RiceEntry.COLUMN_RICE_NAME,
+            RiceEntry.COLUMN_BREED,
+            RiceEntry.COLUMN_PACKAGING,
+            RiceEntry.COLUMN_PRICE,
+            RiceEntry.COLUMN_DESCRIPTION
+    };
+
+    /**
+     * Weight of a match in each column of the full-text index (name, breed, description)
+     * when ranking the search results: a match in the name counts more than one in the breed,
+     * which counts more than one in the description.
+     */
+    private static final double[] SEARCH_COLUMN_WEIGHTS = { 4.0, 2.0, 1.0 };
+
+    /** Columns of the full-text index, in the order of {@link #SEARCH_COLUMN_WEIGHTS} */
+    private static final String[] SEARCH_COLUMNS = {
+            RiceEntry.COLUMN_RICE_NAME,
+            RiceEntry.COLUMN_BREED,
+            RiceEntry.COLUMN_DESCRIPTION
+    };
+
+    /**
+     * Most matches of a search that are ranked, see {@link #searchRices}: when more risi match,
+     * the ones saved first are ranked and the others left out.
+     */
+    private static final int SEARCH_MAX_CANDIDATES = 1000;
+
+    /**
+     * Shortest word of a search that matches as a prefix; a shorter one (a single letter, as
+     * the user starts typing) only matches whole words, instead of most of the index.
+     */
+    private static final int SEARCH_MIN_PREFIX_LENGTH = 2;
+
+    /**
+     * Number of rows of a CSV import written in each transaction: the rows are visible to the
+     * readers (and safe from a crash) one chunk at a time, and a long import doesn't keep the
+     * database locked.
+     */
+    private static final int IMPORT_CHUNK_SIZE = 1000;
+
+    /**
+     * Free pages of the database file given back to the file system by each slice of the
+     * maintenance, and pause between the slices, so the maintenance never holds the database
+     * for long and the other writers get in between the slices.
+     */
+    private static final int VACUUM_SLICE_PAGES = 128;
+    private static final long VACUUM_SLICE_PAUSE_MILLIS = 100;
+
+    /**
+     * Most slices run by a single maintenance, so it ends even if the deletions go on while it
+     * runs: the pages left are freed by the next one.
+     */
+    private static final int VACUUM_MAX_SLICES = 64;
+
+    /**
+     * Results with more rows than this are not cached: they would push many smaller results
+     * out of the cache, and copying them costs almost as much as reading them again.
+     */
+    private static final int QUERY_CACHE_MAX_ROWS = 500;
+
+    /** Operations recorded in the metrics, indexes of {@link #METRICS_OPERATIONS} */
+    private static final int OP_QUERY = 0;
+    private static final int OP_INSERT = 1;
+    private static final int OP_BULK_INSERT = 2;
+    private static final int OP_UPDATE = 3;
+    private static final int OP_DELETE = 4;
+    private static final int OP_APPLY_BATCH = 5;
+    private static final int OP_INSERT_RECORDS = 6;
+    private static final int OP_UPDATE_RECORDS = 7;
+    private static final String[] METRICS_OPERATIONS = {
+            "query", "insert", "bulk_insert", "update", "delete", "apply_batch",
+            "insert_records", "update_records" };
+
+    /**
+     * URIs recorded in the metrics, in the order of the URI matcher codes, and then the
+     * unknown URIs. Batches are recorded on the URI of the whole table.
+     */
+    private static final String[] METRICS_URIS = {
+            "rices", "rices/#", "rices/search/*", "rices/stats", "csv", "rices/prices",
+            "rices/prices/histogram", "rices/changes", "unknown" };
+
+    /** Name of the file written by {@link RiceEntry#METRICS_DUMP}, in the files of the app */
+    private static final String METRICS_FILE_NAME = "provider_metrics.tsv";
+
+    /** Database helper object */
+    private RiceDbHelper mDbHelper;
+
+    /** Compiled statements for the writes of single risi, of the current thread */
+    private final ThreadLocal<RiceStatements> mStatements = new ThreadLocal<RiceStatements>() {
+        @Override
+        protected RiceStatements initialValue() {
+            return new RiceStatements();
+        }
+    };
+
+    /** Counters and latencies of the operations of the provider */
+    private final ProviderMetrics mMetrics =
+            new ProviderMetrics(METRICS_OPERATIONS, METRICS_URIS);
+
+    /**
+     * Cache of the rows read by id, with the values of {@link #ALL_COLUMNS}. The editor reads
+     * a rice by id every time it opens, so reopening the same rice doesn't touch the database.
+     * The size is set by the row_cache_size resource.
+     */
+    private LruCache<Long, Object[]> mRowCache;
+
+    /**
+     * Incremented (under the lock of {@link #mRowCache}) every time rows are removed from the
+     * cache. A row read from the database is only cached if no change happened while it was
+     * being read, otherwise it could be older than the change and stay in the cache.
+     */
+    private long mRowCacheGeneration;
+
+    /**
+     * Cache of the results of the queries, by {@link #getQueryCacheKey shape of the query},
+     * so the screens and the jobs that run the same query don't repeat the same work in
+     * SQLite. Its size is in rows, set by the query_cache_rows resource. All the cached
+     * results come from the rices table, so every change to it empties the whole cache.
+     */
+    private LruCache<String, CachedResult> mQueryCache;
+
+    /**
+     * Incremented (under the lock of {@link #mQueryCache}) every time the cache is emptied,
+     * for the same reason as {@link #mRowCacheGeneration}.
+     */
+    private long mQueryCacheGeneration;
+
+    /**
+     * Set to true on the thread that is running {@link #applyBatch(ArrayList)}, so the single
+     * operations don't notify on their own and the batch can send one notification at the end.
+     */
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
+
+    /** Whether an operation of the running batch changed some data and the batch must notify */
+    private final ThreadLocal<Boolean> mBatchChanged = new ThreadLocal<Boolean>();
+
+    /**
+     * Change notifications of the write with a sequence number running on this thread, held
+     * until it's committed, see {@link #beginSequencedWrite()}
+     */
+    private final ThreadLocal<List<Uri>> mSequencedWriteChanges = new ThreadLocal<List<Uri>>();
+
+    /**
+     * Change notifications held until the end of the current window, by path: the last URI
+     * of each path is kept, so a rice changed twice is notified once, with the last change.
+     * All the notification fields are guarded by the lock of this map.
+     */
+    private final LinkedHashMap<String, Uri> mPendingNotifications = new LinkedHashMap<String, Uri>();
+
+    /** Length of the window, from the notify_window_millis resource */
+    private int mNotifyWindowMillis;
+
+    /** Uptime at which the current window ends, see {@link #notifyChange(Uri)} */
+    private long mNotifyWindowEnd;
+
+    /** Whether the flush at the end of the window is posted */
+    private boolean mFlushPosted;
+
+    /** Notifications raised by the writes and actually sent, since the provider started */
+    private long mNotificationsRequested;
+    private long mNotificationsSent;
+
+    /** Runs the flush at the end of the window, on the main thread */
+    private Handler mNotifyHandler;
+
+    private final Runnable mFlushNotifications = new Runnable() {
+        @Override
+        public void run() {
+            flushNotifications();
+        }
+    };
+
+    /** Held while a sync runs, so there is only one at a time */
+    private final Object mSyncLock = new Object();
+
+    /** Whether the maintenance is scheduled or running, see {@link #scheduleMaintenance()} */
+    private final AtomicBoolean mMaintenanceScheduled = new AtomicBoolean();
+
+    //Initialize the provider and the database helper object.
+    @Override
+    public boolean onCreate() {
+        mDbHelper = createDbHelper();
+        mRowCache = new LruCache<Long, Object[]>(
+                getContext().getResources().getInteger(R.integer.row_cache_size));
+        mNotifyWindowMillis = getContext().getResources().getInteger(R.integer.notify_window_millis);
+        mNotifyHandler = new Handler(getContext().getMainLooper());
+        mQueryCache = new LruCache<String, CachedResult>(
+                getContext().getResources().getInteger(R.integer.query_cache_rows)) {
+            @Override
+            protected int sizeOf(String key, CachedResult value) {
+                // The empty results take some memory too
+                return value.mRows.length + 1;
+            }
+        };
+
+        // Open (and upgrade, if needed) the database in the background, then go on with the
+        // migrations left to do by the upgrades
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mDbHelper.runMigrations()) {
+                    // The search results and the statistics may have changed
+                    notifyChange(RiceEntry.CONTENT_URI);
+                }
+                // Reclaim the space left by the deletions of the previous runs
+                scheduleMaintenance();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns the helper of the database of the provider: risi.db in concurrent mode. The
+     * tests and the benchmarks override it to run on a database of their own.
+     */
+    RiceDbHelper createDbHelper() {
+        return new RiceDbHelper(getContext());
+    }
+
+    /**
+     * Run the maintenance of the database in the background, unless it's already scheduled:
+     * the free pages are given back to the file system a slice at a time, with a pause between
+     * the slices, until there are none left, a slice frees nothing (e.g. the database is not in
+     * incremental vacuum mode yet) or {@link #VACUUM_MAX_SLICES} have run. The log of the
+     * changes is compacted first. Called after the deletions of many risi.
+     */
+    private void scheduleMaintenance() {
+        if (!mMaintenanceScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // The compaction of the log frees pages too
+                    mDbHelper.compactChanges();
+                    long freePages = Long.MAX_VALUE;
+                    for (int slice = 0; slice < VACUUM_MAX_SLICES; slice++) {
+                        long left = mDbHelper.vacuumIncrementally(VACUUM_SLICE_PAGES);
+                        if (left == 0 || left >= freePages) {
+                            break;
+                        }
+                        freePages = left;
+                        SystemClock.sleep(VACUUM_SLICE_PAUSE_MILLIS);
+                    }
+                } catch (RuntimeException e) {
+                    // The space is reclaimed by the next run
+                    Log.w(LOG_TAG, "Failed to reclaim free pages", e);
+                } finally {
+                    mMaintenanceScheduled.set(false);
+                }
+            }
+        });
+    }
+
+    //Perform the query for the given URI. Use the given projection, selection, selection arguments, and sort order.
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        long start = System.nanoTime();
+        int metricsUri = getMetricsUri(uri);
+        boolean succeeded = false;
+        try {
+            Cursor cursor = queryThroughCache(uri, projection, selection, selectionArgs, sortOrder);
+            succeeded = true;
+            // A cursor of the database only runs its query when it's first filled, so that's
+            // when the query is recorded: recording it here would leave out most of its time
+            return new MetricsCursor(cursor, mMetrics, metricsUri, start);
+        } finally {
+            if (!succeeded) {
+                mMetrics.record(OP_QUERY, metricsUri, 0, start, false);
+            }
+        }
+    }
+
+    /**
+     * Run a query through the cache of the query results, if its URI can be cached. On a miss
+     * the result is read in full and cached, unless it has too many rows. Every caller gets a
+     * cursor of its own over the cached values, which are never changed.
+     */
+    private Cursor queryThroughCache(Uri uri, String[] projection, String selection,
+                                     String[] selectionArgs, String sortOrder) {
+        int match = sUriMatcher.match(uri);
+        boolean cacheable = match == RICES || match == RICE_SEARCH || match == RICE_STATS
+                || match == RICE_PRICES || match == RICE_PRICE_HISTOGRAM;
+        if (!cacheable || !uri.getBooleanQueryParameter(RiceEntry.QUERY_PARAMETER_CACHE, true)) {
+            return queryUri(uri, projection, selection, selectionArgs, sortOrder);
+        }
+        // Same as queryUri(): only the lists are notified on their own URI
+        Uri notificationUri = match == RICES ? uri : RiceEntry.CONTENT_URI;
+
+        String key = getQueryCacheKey(uri, projection, selection, selectionArgs, sortOrder);
+        CachedResult result = mQueryCache.get(key);
+        if (result == null) {
+            long generation;
+            synchronized (mQueryCache) {
+                generation = mQueryCacheGeneration;
+            }
+            Cursor cursor = queryUri(uri, projection, selection, selectionArgs, sortOrder);
+            if (cursor.getCount() > QUERY_CACHE_MAX_ROWS) {
+                return cursor;
+            }
+            try {
+                Object[][] rows = new Object[cursor.getCount()][];
+                int columnCount = cursor.getColumnCount();
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    rows[i] = readRow(cursor, columnCount);
+                }
+                result = new CachedResult(cursor.getColumnNames(), rows);
+            } finally {
+                cursor.close();
+            }
+            synchronized (mQueryCache) {
+                if (generation == mQueryCacheGeneration) {
+                    mQueryCache.put(key, result);
+                }
+            }
+        }
+
+        MatrixCursor cursor = new MatrixCursor(result.mColumns, result.mRows.length);
+        for (Object[] row : result.mRows) {
+            cursor.addRow(row);
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+        return cursor;
+    }
+
+    /**
+     * Returns the key of a query in the cache of the query results: the same for the queries
+     * that return the same rows, whatever the order of the parameters of their URI.
+     */
+    private static String getQueryCacheKey(Uri uri, String[] projection, String selection,
+                                           String[] selectionArgs, String sortOrder) {
+        // Null values and separators can't be confused with the text of the query
+        StringBuilder key = new StringBuilder(uri.getPath());
+        List<String> names = new ArrayList<String>(uri.getQueryParameterNames());
+        Collections.sort(names);
+        for (String name : names) {
+            if (!RiceEntry.QUERY_PARAMETER_CACHE.equals(name)) {
+                key.append('\u0001').append(name).append('=')
+                        .append(uri.getQueryParameter(name));
+            }
+        }
+        appendQueryCacheKey(key, projection);
+        appendQueryCacheKey(key, selection);
+        appendQueryCacheKey(key, selectionArgs);
+        appendQueryCacheKey(key, sortOrder);
+        return key.toString();
+    }
+
+    private static void appendQueryCacheKey(StringBuilder key, String value) {
+        key.append('\u0000');
+        if (value == null) {
+            key.append('\u0002');
+        } else {
+            key.append(value);
+        }
+    }
+
+    private static void appendQueryCacheKey(StringBuilder key, String[] values) {
+        key.append('\u0000');
+        if (values == null) {
+            key.append('\u0002');
+        } else {
+            for (String value : values) {
+                key.append('\u0001').append(value == null ? "\u0002" : value);
+            }
+        }
+    }
+
+    /**
+     * Empty the cache of the query results after the rices table changed.
+     */
+    private void invalidateQueryCache() {
+        synchronized (mQueryCache) {
+            mQueryCacheGeneration++;
+            mQueryCache.evictAll();
+        }
+    }
+
+    /**
+     * Return the counters of the cache of the query results, for
+     * {@link #call(String, String, Bundle)}.
+     */
+    private Bundle getQueryCacheStats() {
+        Bundle stats = new Bundle();
+        synchronized (mQueryCache) {
+            int hits = mQueryCache.hitCount();
+            int misses = mQueryCache.missCount();
+            stats.putInt(RiceEntry.KEY_CACHE_HITS, hits);
+            stats.putInt(RiceEntry.KEY_CACHE_MISSES, misses);
+            stats.putInt(RiceEntry.KEY_CACHE_EVICTIONS, mQueryCache.evictionCount());
+            stats.putInt(RiceEntry.KEY_CACHE_SIZE, mQueryCache.size());
+            stats.putInt(RiceEntry.KEY_CACHE_MAX_SIZE, mQueryCache.maxSize());
+            stats.putDouble(RiceEntry.KEY_CACHE_HIT_RATE,
+                    hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+        }
+        return stats;
+    }
+
+    /**
+     * Run a query, see {@link #query(Uri, String[], String, String[], String)}.
+     */
+    private Cursor queryUri(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                            String sortOrder) {
+        // Get readable database
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+
+        // This cursor will hold the result of the query
+        Cursor cursor = null;
+
+        // Figure out if the URI matcher can match the URI to a specific code
+        int match = sUriMatcher.match(uri);
+        switch (match) {
+            case RICES:
+                // For the RICES code, query the risi table directly with the given
+                // projection, selection, selection arguments, and sort order. The cursor
+                // could contain multiple rows of the risi table.
+                if (uri.getQueryParameter(RiceEntry.QUERY_PARAMETER_SORT_KEY) != null) {
+                    // A single page of the list, see RiceEntry.buildPageUri()
+                    cursor = queryRicePage(database, uri, projection, selection, selectionArgs);
+                } else {
+                    cursor = database.query(RiceEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                }
+                break;
+            case RICE_ID:
+                // For the RICE_ID code, extract out the ID from the URI.
+                // For an example URI such as "content://com.dandandin.android.risi/rice/3",
+                // the selection will be "_id=?" and the selection argument will be a
+                // String array containing the actual ID of 3 in this case.
+                //
+                // For every "?" in the selection, we need to have an element in the selection
+                // arguments that will fill in the "?". Since we have 1 question mark in the
+                // selection, we have 1 String in the selection arguments' String array.
+                selection = RiceEntry._ID + "=?";
+                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+
+                // Rows read before are served from the cache, when the projection only has
+                // columns of the table
+                cursor = queryCachedRice(database, ContentUris.parseId(uri), projection);
+                if (cursor == null) {
+                    // This will perform a query on the risi table where the _id equals 3 to return a
+                    // Cursor containing that row of the table.
+                    cursor = database.query(RiceEntry.TABLE_NAME, projection, selection, selectionArgs,
+                            null, null, sortOrder);
+                }
+                break;
+            case RICE_SEARCH:
+                // For the RICE_SEARCH code, the last segment of the URI is the text to look for.
+                // The results are ranked, so the selection and the sort order don't apply.
+                cursor = searchRices(database, projection, uri.getLastPathSegment(),
+                        uri.getQueryParameter(RiceEntry.QUERY_PARAMETER_LIMIT));
+                // Any change to the risi may change the results
+                cursor.setNotificationUri(getContext().getContentResolver(), RiceEntry.CONTENT_URI);
+                return cursor;
+            case RICE_STATS:
+                // For the RICE_STATS code, read the summary kept up to date by the triggers
+                cursor = queryStats(database, uri, projection, selection, selectionArgs, sortOrder);
+                // Any change to the risi may change the statistics
+                cursor.setNotificationUri(getContext().getContentResolver(), RiceEntry.CONTENT_URI);
+                return cursor;
+            case RICE_PRICES:
+                // For the RICE_PRICES code, read the range of prices from the index
+                if (sortOrder == null) {
+                    sortOrder = RiceEntry.SORT_BY_PRICE_ASC + ", " + RiceEntry._ID + " ASC";
+                }
+                cursor = queryPriceRange(database, uri, projection, selection, selectionArgs,
+                        sortOrder);
+                // The changes are notified on the URIs of the single risi, which are not
+                // descendants of this one
+                cursor.setNotificationUri(getContext().getContentResolver(), RiceEntry.CONTENT_URI);
+                return cursor;
+            case RICE_PRICE_HISTOGRAM:
+                // For the RICE_PRICE_HISTOGRAM code, count the risi of each bucket in SQLite.
+                // The rows are always sorted by bucket, so the sort order doesn't apply.
+                cursor = queryPriceHistogram(database, uri, projection, selection, selectionArgs);
+                // Any change to the risi may change the histogram
+                cursor.setNotificationUri(getContext().getContentResolver(), RiceEntry.CONTENT_URI);
+                return cursor;
+            case RICE_CHANGES:
+                // For the RICE_CHANGES code, read the log after the given sequence number
+                if (sortOrder == null) {
+                    sortOrder = RiceEntry.COLUMN_SEQUENCE + " ASC";
+                }
+                cursor = queryChanges(database, uri, projection, selection, selectionArgs,
+                        sortOrder);
+                // Every change to the risi adds to the log
+                cursor.setNotificationUri(getContext().getContentResolver(), RiceEntry.CONTENT_URI);
+                return cursor;
+            default:
+                throw new IllegalArgumentException("Cannot query unknown URI " + uri);
+        }
+        // Set notification URI on the Cursor, so we know what content URI the Cursor was created
+        // If the data at this URI changes, then we know we need to update the Cursor.
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+
+        // Return the cursor
+        return cursor;
+    }
+
+    /**
+     * Query the statistics of the risi, grouped by the column in the group_by parameter of the
+     * URI. The statistics are read from the summary table, so the cost depends on the number
+     * of groups and not on the number of risi.
+     */
+    private Cursor queryStats(SQLiteDatabase database, Uri uri, String[] projection,
+                              String selection, String[] selectionArgs, String sortOrder) {
+        String groupBy = uri.getQueryParameter(RiceEntry.QUERY_PARAMETER_GROUP_BY);
+        if (groupBy == null) {
+            groupBy = RiceEntry.COLUMN_PACKAGING;
+        }
+        if (!RiceEntry.COLUMN_PACKAGING.equals(groupBy) && !RiceEntry.COLUMN_BREED.equals(groupBy)) {
+            throw new IllegalArgumentException("Cannot group statistics by " + groupBy);
+        }
+
+        // Columns of the result, as expressions on the summary table
+        HashMap<String, String> columns = new HashMap<String, String>();
+        columns.put(RiceEntry._ID, "rowid AS " + RiceEntry._ID);
+        columns.put(groupBy, RiceDbHelper.STATS_COLUMN_VALUE + " AS " + groupBy);
+        columns.put(RiceEntry.COLUMN_COUNT, RiceEntry.COLUMN_COUNT);
+        columns.put(RiceEntry.COLUMN_TOTAL_PRICE, RiceEntry.COLUMN_TOTAL_PRICE);
+        columns.put(RiceEntry.COLUMN_AVERAGE_PRICE, "CAST(" + RiceEntry.COLUMN_TOTAL_PRICE
+                + " AS REAL) / " + RiceEntry.COLUMN_COUNT + " AS " + RiceEntry.COLUMN_AVERAGE_PRICE);
+        if (projection == null) {
+            projection = new String[] { RiceEntry._ID, groupBy, RiceEntry.COLUMN_COUNT,
+                    RiceEntry.COLUMN_TOTAL_PRICE, RiceEntry.COLUMN_AVERAGE_PRICE };
+        }
+        if (sortOrder == null) {
+            sortOrder = groupBy + " ASC";
+        }
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(RiceDbHelper.STATS_TABLE_NAME);
+        builder.setProjectionMap(columns);
+        builder.setStrict(true);
+        builder.appendWhere(RiceDbHelper.STATS_COLUMN_GROUP_BY + "=");
+        builder.appendWhereEscapeString(groupBy);
+        return builder.query(database, projection, selection, selectionArgs, null, null, sortOrder);
+    }
+
+    /**
+     * Query the risi with a price in the range given by the min_price and max_price parameters
+     * of the URI. The range is a search on the index on the price, so only the risi in the
+     * range are read.
+     */
+    private Cursor queryPriceRange(SQLiteDatabase database, Uri uri, String[] projection,
+                                   String selection, String[] selectionArgs, String sortOrder) {
+        String limit = uri.getQueryParameter(RiceEntry.QUERY_PARAMETER_LIMIT);
+        if (limit != null && !TextUtils.isDigitsOnly(limit)) {
+            throw new IllegalArgumentException("Invalid range limit " + limit);
+        }
+
+        List<String> args = new ArrayList<String>();
+        StringBuilder where = new StringBuilder();
+        appendPriceRange(uri, where, args);
+        if (selection != null) {
+            if (where.length() > 0) {
+                where.append(" AND ");
+            }
+            where.append('(').append(selection).append(')');
+            if (selectionArgs != null) {
+                Collections.addAll(args, selectionArgs);
+            }
+        }
+        return database.query(RiceEntry.TABLE_NAME, projection,
+                where.length() > 0 ? where.toString() : null,
+                args.toArray(new String[args.size()]), null, null, sortOrder, limit);
+    }
+
+    /**
+     * Query the changes after the sequence number in the since parameter of the URI. The
+     * sequence number is the key of the log, so only the later changes are read.
+     */
+    private Cursor queryChanges(SQLiteDatabase database, Uri uri, String[] projection,
+                                String selection, String[] selectionArgs, String sortOrder) {
+        String since = uri.getQueryParameter(RiceEntry.QUERY_PARAMETER_SINCE);
+        String limit = uri.getQueryParameter(RiceEntry.QUERY_PARAMETER_LIMIT);
+        if (since != null && !TextUtils.isDigitsOnly(since)) {
+            throw new IllegalArgumentException("Invalid change sequence number " + since);
+        }
+        if (limit != null && !TextUtils.isDigitsOnly(limit)) {
+            throw new IllegalArgumentException("Invalid change limit " + limit);
+        }
+
+        List<String> args = new ArrayList<String>();
+        StringBuilder where = new StringBuilder();
+        if (since != null) {
+            where.append(RiceEntry.COLUMN_SEQUENCE).append(">?");
+            args.add(since);
+        }
+        if (selection != null) {
+            if (where.length() > 0) {
+                where.append(" AND ");
+            }
+            where.append('(').append(selection).append(')');
+            if (selectionArgs != null) {
+                Collections.addAll(args, selectionArgs);
+            }
+        }
+        if (projection == null) {
+            projection = new String[] { RiceEntry.COLUMN_SEQUENCE, RiceEntry.COLUMN_RICE_ID,
+                    RiceEntry.COLUMN_CHANGE };
+        }
+        return database.query(RiceDbHelper.CHANGES_TABLE_NAME, projection,
+                where.length() > 0 ? where.toString() : null,
+                args.toArray(new String[args.size()]), null, null, sortOrder, limit);
+    }
+
+    /**
+     * Query the histogram of the prices of the risi in the range given by the URI, with the
+     * bucket size given by the URI.
+     *
+     * The inner query counts the risi of each distinct price: it walks the index on the price
+     * in order, so the counts come out already grouped, without sorting the risi. The outer
+     * query then adds up the prices of each bucket, and only has to sort the distinct prices.
+     * When there is a selection on other columns the rows are read too, but still only the
+     * ones in the range.
+     */
+    private Cursor queryPriceHistogram(SQLiteDatabase database, Uri uri, String[] projection,
+                                       String selection, String[] selectionArgs) {
+        int bucketSize = RiceEntry.DEFAULT_BUCKET_SIZE;
+        String bucketSizeString = uri.getQueryParameter(RiceEntry.QUERY_PARAMETER_BUCKET_SIZE);
+        if (bucketSizeString != null) {
+            bucketSize = parsePrice(bucketSizeString);
+            if (bucketSize == 0) {
+                throw new IllegalArgumentException("Invalid bucket size " + bucketSizeString);
+            }
+        }
+
+        // Columns of the result, as expressions on the counts of the inner query. The bucket
+        // size is a parsed int, so it can go straight into the SQL.
+        String bucket = RiceEntry.COLUMN_PRICE + " / " + bucketSize;
+        HashMap<String, String> columns = new HashMap<String, String>();
+        columns.put(RiceEntry._ID, bucket + " AS " + RiceEntry._ID);
+        columns.put(RiceEntry.COLUMN_BUCKET_START, bucket + " * " + bucketSize
+                + " AS " + RiceEntry.COLUMN_BUCKET_START);
+        columns.put(RiceEntry.COLUMN_BUCKET_END, "(" + bucket + " + 1) * " + bucketSize
+                + " AS " + RiceEntry.COLUMN_BUCKET_END);
+        columns.put(RiceEntry.COLUMN_COUNT, "sum(" + RiceEntry.COLUMN_COUNT + ") AS "
+                + RiceEntry.COLUMN_COUNT);
+        if (projection == null) {
+            projection = new String[] { RiceEntry._ID, RiceEntry.COLUMN_BUCKET_START,
+                    RiceEntry.COLUMN_BUCKET_END, RiceEntry.COLUMN_COUNT };
+        }
+        StringBuilder select = new StringBuilder();
+        for (String column : projection) {
+            String expression = columns.get(column);
+            if (expression == null) {
+                throw new IllegalArgumentException("Invalid histogram column " + column);
+            }
+            if (select.length() > 0) {
+                select.append(", ");
+            }
+            select.append(expression);
+        }
+
+        List<String> args = new ArrayList<String>();
+        StringBuilder where = new StringBuilder();
+        appendPriceRange(uri, where, args);
+        if (selection != null) {
+            if (where.length() > 0) {
+                where.append(" AND ");
+            }
+            where.append('(').append(selection).append(')');
+            if (selectionArgs != null) {
+                Collections.addAll(args, selectionArgs);
+            }
+        }
+
+        String sql = "SELECT " + select + " FROM (SELECT " + RiceEntry.COLUMN_PRICE
+                + ", count(*) AS " + RiceEntry.COLUMN_COUNT + " FROM " + RiceEntry.TABLE_NAME
+                + (where.length() > 0 ? " WHERE " + where : "")
+                + " GROUP BY " + RiceEntry.COLUMN_PRICE + ") GROUP BY " + bucket
+                + " ORDER BY " + bucket;
+        return database.rawQuery(sql, args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Append the conditions on the price given by the min_price and max_price parameters of
+     * the URI, written as a range on the column so SQLite searches it in the index.
+     */
+    private static void appendPriceRange(Uri uri, StringBuilder where, List<String> args) {
+        String minPrice = uri.getQueryParameter(RiceEntry.QUERY_PARAMETER_MIN_PRICE);
+        String maxPrice = uri.getQueryParameter(RiceEntry.QUERY_PARAMETER_MAX_PRICE);
+        if (minPrice != null) {
+            where.append(RiceEntry.COLUMN_PRICE).append(">=?");
+            args.add(String.valueOf(parsePrice(minPrice)));
+        }
+        if (maxPrice != null) {
+            if (where.length() > 0) {
+                where.append(" AND ");
+            }
+            where.append(RiceEntry.COLUMN_PRICE).append("<=?");
+            args.add(String.valueOf(parsePrice(maxPrice)));
+        }
+    }
+
+    /**
+     * Parse a price in cents from a parameter of a URI.
+     */
+    private static int parsePrice(String price) {
+        try {
+            int cents = Integer.parseInt(price);
+            if (cents >= 0) {
+                return cents;
+            }
+        } catch (NumberFormatException e) {
+            // Same as a negative price
+        }
+        throw new IllegalArgumentException("Invalid price " + price);
+    }
+
+    /**
+     * Query a single rice through the row cache: on a miss the whole row is read and cached,
+     * then the requested columns are returned.
+     *
+     * @return a cursor with the rice (or no rows if it doesn't exist), or null if the
+     * projection asks for something that is not a column of the table
+     */
+    private Cursor queryCachedRice(SQLiteDatabase database, long id, String[] projection) {
+        if (projection == null) {
+            projection = ALL_COLUMNS;
+        }
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = Arrays.asList(ALL_COLUMNS).indexOf(projection[i]);
+            if (columns[i] == -1) {
+                return null;
+            }
+        }
+
+        Object[] row = mRowCache.get(id);
+        if (row == null) {
+            long generation;
+            synchronized (mRowCache) {
+                generation = mRowCacheGeneration;
+            }
+            Cursor cursor = database.query(RiceEntry.TABLE_NAME, ALL_COLUMNS, RiceEntry._ID + "=?",
+                    new String[] { String.valueOf(id) }, null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    row = readRow(cursor, ALL_COLUMNS.length);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (row == null) {
+                return new MatrixCursor(projection, 0);
+            }
+            synchronized (mRowCache) {
+                if (generation == mRowCacheGeneration) {
+                    mRowCache.put(id, row);
+                }
+            }
+        }
+
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = row[columns[i]];
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(values);
+        return cursor;
+    }
+
+    /**
+     * Remove a rice from the row cache after it changed, or all of them if id is -1.
+     */
+    private void invalidateRowCache(long id) {
+        synchronized (mRowCache) {
+            mRowCacheGeneration++;
+            if (id == -1) {
+                mRowCache.evictAll();
+            } else {
+                mRowCache.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Return the counters of the row cache, for {@link #call(String, String, Bundle)}.
+     */
+    private Bundle getRowCacheStats() {
+        Bundle stats = new Bundle();
+        synchronized (mRowCache) {
+            stats.putInt(RiceEntry.KEY_CACHE_HITS, mRowCache.hitCount());
+            stats.putInt(RiceEntry.KEY_CACHE_MISSES, mRowCache.missCount());
+            stats.putInt(RiceEntry.KEY_CACHE_EVICTIONS, mRowCache.evictionCount());
+            stats.putInt(RiceEntry.KEY_CACHE_SIZE, mRowCache.size());
+            stats.putInt(RiceEntry.KEY_CACHE_MAX_SIZE, mRowCache.maxSize());
+        }
+        return stats;
+    }
+
+    /**
+     * Insert or update risi from typed records, see {@link RiceEntry#METHOD_INSERT_RECORDS}.
+     * The values go straight from the arrays to the compiled statements, without boxing them
+     * or looking them up by name.
+     */
+    private Bundle writeRecords(Bundle records, boolean update) {
+        if (records == null) {
+            throw new IllegalArgumentException("Records required");
+        }
+        long[] ids = records.getLongArray(RiceEntry.KEY_RECORD_IDS);
+        String[] names = records.getStringArray(RiceEntry.KEY_RECORD_NAMES);
+        String[] breeds = records.getStringArray(RiceEntry.KEY_RECORD_BREEDS);
+        int[] packagings = records.getIntArray(RiceEntry.KEY_RECORD_PACKAGINGS);
+        int[] prices = records.getIntArray(RiceEntry.KEY_RECORD_PRICES);
+        String[] descriptions = records.getStringArray(RiceEntry.KEY_RECORD_DESCRIPTIONS);
+        if (update ? ids == null : names == null || packagings == null) {
+            throw new IllegalArgumentException(update ? "Records require ids"
+                    : "Records require names and packagings");
+        }
+
+        // All the arrays must have one value per record, the mask tells which ones are there
+        int count = update ? ids.length : names.length;
+        int mask = 0;
+        // In the order of RiceStatements.COLUMNS, -1 for the missing arrays
+        int[] lengths = {
+                names == null ? -1 : names.length,
+                breeds == null ? -1 : breeds.length,
+                packagings == null ? -1 : packagings.length,
+                prices == null ? -1 : prices.length,
+                descriptions == null ? -1 : descriptions.length
+        };
+        for (int i = 0; i < lengths.length; i++) {
+            int length = lengths[i];
+            if (length == -1) {
+                continue;
+            }
+            if (length != count) {
+                throw new IllegalArgumentException("Records have " + length + " "
+                        + RiceStatements.COLUMNS[i] + " values instead of " + count);
+            }
+            mask |= 1 << i;
+        }
+
+        long[] written = new long[count];
+        int writtenCount = 0;
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        RiceStatements statements = mStatements.get();
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                String problem = null;
+                if (names != null && names[i] == null) {
+                    problem = "Rice requires a name";
+                } else if (packagings != null && !RiceEntry.isValidPackaging(packagings[i])) {
+                    problem = "Rice requires valid packaging";
+                } else if (prices != null && prices[i] < 0) {
+                    problem = "Rice requires valid price";
+                }
+                if (problem != null) {
+                    Log.w(LOG_TAG, "Rejected record " + i + ": " + problem);
+                    written[i] = -1;
+                    continue;
+                }
+
+                String name = names == null ? null : names[i];
+                String breed = breeds == null ? null : breeds[i];
+                int packaging = packagings == null ? 0 : packagings[i];
+                // The price column defaults to 0 when it's not provided
+                int price = prices == null ? 0 : prices[i];
+                String description = descriptions == null ? null : descriptions[i];
+                if (update) {
+                    int rows = mask == 0 ? 0 : statements.updateById(database, ids[i], mask,
+                            name, breed, packaging, price, description);
+                    written[i] = rows == 0 ? -1 : ids[i];
+                } else {
+                    written[i] = statements.insert(database, name, breed, packaging, price,
+                            description);
+                }
+                if (written[i] != -1) {
+                    writtenCount++;
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (writtenCount != 0) {
+            String change = update ? RiceEntry.CHANGE_UPDATE : RiceEntry.CHANGE_INSERT;
+            long singleId = -1;
+            for (long id : written) {
+                if (id != -1) {
+                    singleId = id;
+                    // Only now that the new values are committed, otherwise the old ones
+                    // could be cached again in the meantime
+                    if (update) {
+                        invalidateRowCache(id);
+                    }
+                }
+            }
+            // Like for the single writes, a single rice is notified on its own URI
+            notifyChange(writtenCount == 1 ? RiceEntry.buildChangeUri(singleId, change)
+                    : RiceEntry.CONTENT_URI);
+        }
+
+        Bundle result = new Bundle();
+        result.putLongArray(RiceEntry.KEY_RECORD_IDS, written);
+        result.putInt(RiceEntry.KEY_RECORD_COUNT, writtenCount);
+        return result;
+    }
+
+    /**
+     * Sync the risi with the central price list, see {@link RiceEntry#METHOD_SYNC}.
+     */
+    private Bundle sync(String baseUrl) {
+        Bundle result = new Bundle();
+        synchronized (mSyncLock) {
+            RiceSync sync = new RiceSync(mDbHelper, baseUrl);
+            try {
+                sync.run();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Sync with " + baseUrl + " failed", e);
+                result.putString(RiceEntry.KEY_SYNC_ERROR, e.toString());
+            } catch (JSONException e) {
+                Log.w(LOG_TAG, "Sync with " + baseUrl + " got an invalid answer", e);
+                result.putString(RiceEntry.KEY_SYNC_ERROR, e.toString());
+            }
+            result.putInt(RiceEntry.KEY_SYNC_PUSHED, sync.getPushed());
+            result.putInt(RiceEntry.KEY_SYNC_PULLED, sync.getPulled());
+            result.putInt(RiceEntry.KEY_SYNC_CONFLICTS, sync.getConflicts());
+
+            // Even a failed sync may have changed some risi before failing. The migrations
+            // it ran first may have changed the search results and the statistics.
+            if (sync.getPulled() + sync.getConflicts() > 0 || sync.hasMigrated()) {
+                invalidateRowCache(-1);
+                notifyChange(RiceEntry.CONTENT_URI);
+            } else if (sync.getPushed() > 0) {
+                // Only the sync columns changed, which the listeners don't care about
+                invalidateQueryCache();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the index of a URI in {@link #METRICS_URIS}.
+     */
+    private static int getMetricsUri(Uri uri) {
+        int match = sUriMatcher.match(uri);
+        return match == UriMatcher.NO_MATCH ? METRICS_URIS.length - 1 : match - RICES;
+    }
+
+    /**
+     * Return the metrics of the provider, for {@link #call(String, String, Bundle)}, and reset
+     * them or write them to a file if the argument asks so.
+     */
+    private Bundle getMetrics(String arg) {
+        Bundle metrics = mMetrics.snapshot();
+        if (RiceEntry.METRICS_RESET.equals(arg)) {
+            mMetrics.reset();
+        } else if (RiceEntry.METRICS_DUMP.equals(arg)) {
+            File file = new File(getContext().getFilesDir(), METRICS_FILE_NAME);
+            Writer writer = null;
+            try {
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                        "UTF-8"));
+                mMetrics.dump(writer);
+                metrics.putString(RiceEntry.KEY_METRICS_FILE, file.getAbsolutePath());
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to write the metrics to " + file, e);
+            } finally {
+                if (writer != null) {
+                    closeQuietly(writer);
+                }
+            }
+        } else if (arg != null) {
+            throw new IllegalArgumentException("Unknown metrics argument " + arg);
+        }
+        return metrics;
+    }
+
+    /**
+     * Provider-specific methods, called through ContentResolver.call(): see the METHOD_*
+     * constants of {@link RiceEntry}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (RiceEntry.METHOD_ROW_CACHE_STATS.equals(method)) {
+            return getRowCacheStats();
+        }
+        if (RiceEntry.METHOD_METRICS.equals(method)) {
+            return getMetrics(arg);
+        }
+        if (RiceEntry.METHOD_WRITE_SEQUENCE.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(RiceEntry.KEY_WRITE_SEQUENCE, DatabaseUtils.longForQuery(
+                    mDbHelper.getReadableDatabase(), "SELECT IFNULL((SELECT CAST("
+                            + RiceDbHelper.SYNC_STATE_COLUMN_VALUE + " AS INTEGER) FROM "
+                            + RiceDbHelper.SYNC_STATE_TABLE_NAME + " WHERE "
+                            + RiceDbHelper.SYNC_STATE_COLUMN_KEY + "=?), 0)",
+                    new String[] { RiceDbHelper.SYNC_STATE_WRITE_SEQUENCE }));
+            return result;
+        }
+        if (RiceEntry.METHOD_INSERT_RECORDS.equals(method)
+                || RiceEntry.METHOD_UPDATE_RECORDS.equals(method)) {
+            boolean update = RiceEntry.METHOD_UPDATE_RECORDS.equals(method);
+            long start = System.nanoTime();
+            int rows = 0;
+            boolean succeeded = false;
+            try {
+                Bundle result = writeRecords(extras, update);
+                rows = result.getInt(RiceEntry.KEY_RECORD_COUNT);
+                succeeded = true;
+                return result;
+            } finally {
+                mMetrics.record(update ? OP_UPDATE_RECORDS : OP_INSERT_RECORDS,
+                        getMetricsUri(RiceEntry.CONTENT_URI), rows, start, succeeded);
+            }
+        }
+        if (RiceEntry.METHOD_BULK_INSERT.equals(method)) {
+            Parcelable[] parcelables = extras == null ? null
+                    : extras.getParcelableArray(RiceEntry.KEY_BULK_VALUES);
+            if (parcelables == null) {
+                throw new IllegalArgumentException("Bulk insert requires values");
+            }
+            // The array comes back from a Parcel as a Parcelable[], the elements are fine
+            ContentValues[] values = new ContentValues[parcelables.length];
+            for (int i = 0; i < parcelables.length; i++) {
+                values[i] = (ContentValues) parcelables[i];
+            }
+            long start = System.nanoTime();
+            int rows = 0;
+            boolean succeeded = false;
+            try {
+                Bundle result = bulkInsertUri(RiceEntry.CONTENT_URI, values);
+                rows = result.getInt(RiceEntry.KEY_RECORD_COUNT);
+                succeeded = true;
+                return result;
+            } finally {
+                mMetrics.record(OP_BULK_INSERT, getMetricsUri(RiceEntry.CONTENT_URI), rows,
+                        start, succeeded);
+            }
+        }
+        if (RiceEntry.METHOD_FLUSH_NOTIFICATIONS.equals(method)) {
+            flushNotifications();
+            return getNotificationStats();
+        }
+        if (RiceEntry.METHOD_NOTIFICATION_STATS.equals(method)) {
+            return getNotificationStats();
+        }
+        if (RiceEntry.METHOD_QUERY_CACHE_STATS.equals(method)) {
+            return getQueryCacheStats();
+        }
+        if (RiceEntry.METHOD_SYNC.equals(method)) {
+            String baseUrl = arg != null ? arg : getContext().getString(R.string.sync_base_url);
+            if (baseUrl.length() == 0) {
+                throw new IllegalArgumentException("Sync requires a base URL");
+            }
+            return sync(baseUrl);
+        }
+        if (RiceEntry.METHOD_COMPACT_CHANGES.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(RiceEntry.KEY_CHANGES_REMOVED, mDbHelper.compactChanges());
+            return result;
+        }
+        if (RiceEntry.METHOD_REBUILD_DATABASE.equals(method)) {
+            Bundle result = new Bundle();
+            boolean rebuilt = mDbHelper.rebuildForIncrementalVacuum();
+            if (!rebuilt) {
+                // Already in incremental mode: the maintenance frees whatever is left
+                scheduleMaintenance();
+            }
+            result.putBoolean(RiceEntry.KEY_DATABASE_REBUILT, rebuilt);
+            return result;
+        }
+        if (RiceEntry.METHOD_CHECK_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            boolean rebuilt = mDbHelper.checkStats();
+            if (rebuilt) {
+                notifyChange(RiceEntry.CONTENT_STATS_URI);
+            }
+            result.putBoolean(RiceEntry.KEY_STATS_REBUILT, rebuilt);
+            return result;
+        }
+        throw new IllegalArgumentException("Unknown method " + method);
+    }
+
+    /**
+     * Query a page of the list of risi with keyset pagination: the rows are sorted by the sort
+     * key and _id given in the URI, and the page starts right after the given sort key and _id.
+     * Each sort key has an index, so SQLite seeks straight to the first row of the page instead
+     * of skipping all the previous ones like it would with an OFFSET.
+     */
+    private Cursor queryRicePage(SQLiteDatabase database, Uri uri, String[] projection,
+                                 String selection, String[] selectionArgs) {
+        String sortKey = uri.getQueryParameter(RiceEntry.QUERY_PARAMETER_SORT_KEY);
+        boolean descending = uri.getBooleanQueryParameter(RiceEntry.QUERY_PARAMETER_DESCENDING, false);
+        String afterKey = uri.getQueryParameter(RiceEntry.QUERY_PARAMETER_AFTER_KEY);
+        String afterId = uri.getQueryParameter(RiceEntry.QUERY_PARAMETER_AFTER_ID);
+        String limit = uri.getQueryParameter(RiceEntry.QUERY_PARAMETER_LIMIT);
+
+        // Only the indexed columns can be used as sort keys. The name index is case insensitive,
+        // so the name has to be sorted and compared the same way to use it. The breed is the
+        // only one that can be null, and null values come first in ascending order.
+        String key;
+        boolean nullable = false;
+        if (RiceEntry._ID.equals(sortKey)) {
+            key = RiceEntry._ID;
+        } else if (RiceEntry.COLUMN_RICE_NAME.equals(sortKey)) {
+            key = RiceEntry.COLUMN_RICE_NAME + " COLLATE NOCASE";
+        } else if (RiceEntry.COLUMN_BREED.equals(sortKey)) {
+            key = RiceEntry.COLUMN_BREED;
+            nullable = true;
+        } else if (RiceEntry.COLUMN_PRICE.equals(sortKey)) {
+            key = RiceEntry.COLUMN_PRICE;
+        } else {
+            throw new IllegalArgumentException("Cannot sort a page by " + sortKey);
+        }
+        if (limit != null && !TextUtils.isDigitsOnly(limit)) {
+            throw new IllegalArgumentException("Invalid page limit " + limit);
+        }
+
+        List<String> args = new ArrayList<String>();
+        StringBuilder where = new StringBuilder();
+        boolean nullsAfter = false;
+        if (selection != null) {
+            where.append('(').append(selection).append(')');
+            if (selectionArgs != null) {
+                Collections.addAll(args, selectionArgs);
+            }
+        }
+
+        // Keep only the rows that come after the last one of the previous page
+        if (afterId != null) {
+            try {
+                Long.parseLong(afterId);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid page start " + afterId);
+            }
+            String after = descending ? "<" : ">";
+            String keyset;
+            if (key.equals(RiceEntry._ID)) {
+                keyset = RiceEntry._ID + after + "?";
+                args.add(afterId);
+            } else if (afterKey != null) {
+                // Written as a range on the key, plus a check on the _id for the ties,
+                // so the index can be used to find the start of the page
+                keyset = key + after + "=? AND (" + key + after + "? OR "
+                        + RiceEntry._ID + after + "?)";
+                args.add(afterKey);
+                args.add(afterKey);
+                args.add(afterId);
+                // Null values come last in descending order, they are read on their own
+                nullsAfter = nullable && descending;
+            } else if (nullable) {
+                // The previous page ended on a null value
+                keyset = key + " IS NULL AND " + RiceEntry._ID + after + "?";
+                args.add(afterId);
+                if (!descending) {
+                    // Null values come first
+                    keyset = "(" + keyset + ") OR " + key + " IS NOT NULL";
+                }
+            } else {
+                throw new IllegalArgumentException("Page start requires a sort key value");
+            }
+            if (where.length() > 0) {
+                where.append(" AND ");
+            }
+            where.append('(').append(keyset).append(')');
+        }
+
+        String direction = descending ? " DESC" : " ASC";
+        String orderBy = key + direction;
+        if (!key.equals(RiceEntry._ID)) {
+            orderBy += ", " + RiceEntry._ID + direction;
+        }
+        Cursor cursor = database.query(RiceEntry.TABLE_NAME, projection,
+                where.length() > 0 ? where.toString() : null,
+                args.toArray(new String[args.size()]), null, null, orderBy, limit);
+        if (!nullsAfter) {
+            return cursor;
+        }
+
+        // The null values follow the last non-null one. Read with an OR in the same query, the
+        // two parts would be merged and sorted in full before the limit applies; read apart,
+        // both come in order straight from the index.
+        long rest = limit == null ? -1 : Long.parseLong(limit) - cursor.getCount();
+        if (rest == 0) {
+            return cursor;
+        }
+        String nulls = key + " IS NULL";
+        if (selection != null) {
+            nulls = "(" + selection + ") AND " + nulls;
+        }
+        Cursor nullRows = database.query(RiceEntry.TABLE_NAME, projection, nulls, selectionArgs,
+                null, null, RiceEntry._ID + direction, rest < 0 ? null : String.valueOf(rest));
+        return new MergeCursor(new Cursor[] { cursor, nullRows });
+    }
+
+    /**
+     * Search the risi through the full-text index. Every word of the text matches as a prefix
+     * (or as a whole word if it's shorter than {@link #SEARCH_MIN_PREFIX_LENGTH}), and all of
+     * them have to match. The results are ranked by how often the words appear in each column,
+     * compared to the whole table, weighted by {@link #SEARCH_COLUMN_WEIGHTS}.
+     *
+     * The ranking only reads the matchinfo() of the matches, from the index, and keeps the
+     * best ones; the rows of the table are read for the results alone. At most
+     * {@link #SEARCH_MAX_CANDIDATES} matches are ranked, so a search as the user types costs
+     * the same once the text matches more risi than that, at the price of leaving out the
+     * risi saved last.
+     *
+     * @param projection the columns of the rices table to return, null for all of them
+     * @param text       the text to look for
+     * @param limit      maximum number of results, or null to return them all
+     */
+    private Cursor searchRices(SQLiteDatabase database, String[] projection, String text,
+                               String limit) {
+        // Build the MATCH expression: keep only letters and digits of every word, so the user
+        // text can't contain FTS operators, and add * to match the words as prefixes.
+        StringBuilder match = new StringBuilder();
+        for (String word : text.split("\\s+")) {
+            StringBuilder term = new StringBuilder();
+            for (int i = 0; i < word.length(); i++) {
+                char c = word.charAt(i);
+                if (Character.isLetterOrDigit(c)) {
+                    term.append(c);
+                }
+            }
+            if (term.length() > 0) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append(term);
+                if (term.length() >= SEARCH_MIN_PREFIX_LENGTH) {
+                    match.append('*');
+                }
+            }
+        }
+
+        int maxResults = Integer.MAX_VALUE;
+        if (limit != null) {
+            try {
+                maxResults = Integer.parseInt(limit);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid search limit " + limit);
+            }
+            if (maxResults < 0) {
+                throw new IllegalArgumentException("Invalid search limit " + limit);
+            }
+        }
+
+        if (projection == null) {
+            projection = ALL_COLUMNS;
+        }
+        if (match.length() == 0 || maxResults == 0) {
+            return new MatrixCursor(projection, 0);
+        }
+
+        // Rank the matches from the index alone, keeping the best ones in a heap whose head is
+        // the worst of them
+        PriorityQueue<SearchResult> best = new PriorityQueue<SearchResult>(
+                Math.min(maxResults, SEARCH_MAX_CANDIDATES),
+                Collections.<SearchResult>reverseOrder());
+        Cursor matches = database.rawQuery("SELECT docid, matchinfo("
+                + RiceDbHelper.FTS_TABLE_NAME + ") FROM " + RiceDbHelper.FTS_TABLE_NAME
+                + " WHERE " + RiceDbHelper.FTS_TABLE_NAME + " MATCH ? LIMIT "
+                + SEARCH_MAX_CANDIDATES, new String[] { match.toString() });
+        try {
+            while (matches.moveToNext()) {
+                SearchResult result = new SearchResult(matches.getLong(0),
+                        rankMatch(matches.getBlob(1)));
+                if (best.size() < maxResults) {
+                    best.add(result);
+                } else if (result.compareTo(best.peek()) < 0) {
+                    best.poll();
+                    best.add(result);
+                }
+            }
+        } finally {
+            matches.close();
+        }
+        if (best.isEmpty()) {
+            return new MatrixCursor(projection, 0);
+        }
+
+        // Then read the rows of the results, with their id as the last column
+        List<SearchResult> results = new ArrayList<SearchResult>(best);
+        Collections.sort(results);
+        StringBuilder ids = new StringBuilder();
+        for (SearchResult result : results) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(result.mId);
+        }
+        Cursor rows = database.rawQuery("SELECT " + TextUtils.join(", ", projection) + ", "
+                + RiceEntry._ID + " AS _result_id FROM " + RiceEntry.TABLE_NAME + " WHERE "
+                + RiceEntry._ID + " IN (" + ids + ")", null);
+        try {
+            // The last column is the id, the others are the result
+            int columnCount = rows.getColumnCount() - 1;
+            String[] resultColumns = new String[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                resultColumns[i] = rows.getColumnName(i);
+            }
+            HashMap<Long, Object[]> rowsById = new HashMap<Long, Object[]>(rows.getCount() * 2);
+            while (rows.moveToNext()) {
+                rowsById.put(rows.getLong(columnCount), readRow(rows, columnCount));
+            }
+
+            MatrixCursor cursor = new MatrixCursor(resultColumns, rowsById.size());
+            for (SearchResult result : results) {
+                Object[] row = rowsById.get(result.mId);
+                // A rice deleted since the ranking is left out
+                if (row != null) {
+                    cursor.addRow(row);
+                }
+            }
+            return cursor;
+        } finally {
+            rows.close();
+        }
+    }
+
+    /**
+     * Read the values of the first columns of the current row of a cursor.
+     */
+    private static Object[] readRow(Cursor cursor, int columnCount) {
+        Object[] row = new Object[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row[i] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    row[i] = cursor.getString(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row[i] = cursor.getBlob(i);
+                    break;
+                default:
+                    row[i] = null;
+                    break;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Compute the rank of a search result from the output of the FTS matchinfo() function:
+     * the number of phrases p and columns c, followed, for each phrase and column, by the hits
+     * in this row, the hits in all rows and the rows with hits, as native 32-bit integers.
+     */
+    private static double rankMatch(byte[] matchInfo) {
+        IntBuffer info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        int columns = info.get(1);
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns; column++) {
+                int base = 2 + 3 * (phrase * columns + column);
+                int hitsInRow = info.get(base);
+                int hitsInAllRows = info.get(base + 1);
+                if (hitsInRow > 0 && column < SEARCH_COLUMN_WEIGHTS.length) {
+                    score += SEARCH_COLUMN_WEIGHTS[column] * hitsInRow / hitsInAllRows;
+                }
+            }
+        }
+        return score;
+    }
+
+    /**
+     * A result in the cache of the query results: the names of the columns and the values of
+     * all the rows.
+     */
+    private static final class CachedResult {
+        final String[] mColumns;
+        final Object[][] mRows;
+
+        CachedResult(String[] columns, Object[][] rows) {
+            mColumns = columns;
+            mRows = rows;
+        }
+    }
+
+    /**
+     * Cursor of a query that records the query in the metrics when it's first filled, with its
+     * rows and the time from the start of the query to the end of the fill: a cursor of the
+     * database runs its query then, not when it's returned. Every move fills it, since the
+     * moves of the wrapped cursor don't go through {@link #getCount()}. A cursor closed without
+     * being filled is recorded when it's closed, with no rows and the time until it was
+     * returned, instead of being filled just to count them.
+     */
+    private static final class MetricsCursor extends CursorWrapper {
+        private final ProviderMetrics mMetrics;
+        private final int mUri;
+
+        /** Values of System.nanoTime() when the query started and when it was returned */
+        private final long mStartNanos;
+        private final long mReturnedNanos;
+
+        /** Whether the cursor has been filled, and the query recorded */
+        private boolean mFilled;
+
+        MetricsCursor(Cursor cursor, ProviderMetrics metrics, int uri, long startNanos) {
+            super(cursor);
+            mMetrics = metrics;
+            mUri = uri;
+            mStartNanos = startNanos;
+            mReturnedNanos = System.nanoTime();
+        }
+
+        /**
+         * Fill the wrapped cursor, if it's the first time, and record the query.
+         */
+        private void fill() {
+            if (mFilled) {
+                return;
+            }
+            mFilled = true;
+            int rows = 0;
+            boolean succeeded = false;
+            try {
+                // Counting the rows fills the window of a cursor of the database
+                rows = getWrappedCursor().getCount();
+                succeeded = true;
+            } finally {
+                mMetrics.record(OP_QUERY, mUri, rows, mStartNanos, System.nanoTime(), succeeded);
+            }
+        }
+
+        @Override
+        public int getCount() {
+            fill();
+            return super.getCount();
+        }
+
+        @Override
+        public boolean move(int offset) {
+            fill();
+            return super.move(offset);
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            fill();
+            return super.moveToPosition(position);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            fill();
+            return super.moveToFirst();
+        }
+
+        @Override
+        public boolean moveToLast() {
+            fill();
+            return super.moveToLast();
+        }
+
+        @Override
+        public boolean moveToNext() {
+            fill();
+            return super.moveToNext();
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            fill();
+            return super.moveToPrevious();
+        }
 
-    /** URI matcher code for the content URI for a single rice in the rices table */
-    private static final int RICE_ID = 101;
+        @Override
+        public void close() {
+            if (!isClosed() && !mFilled) {
+                mFilled = true;
+                mMetrics.record(OP_QUERY, mUri, 0, mStartNanos, mReturnedNanos, true);
+            }
+            super.close();
+        }
+    }
 
     /**
-     * UriMatcher object to match a content URI to a corresponding code.
-     * The input passed into the constructor represents the code to return for the root URI.
-     * It's common to use NO_MATCH as the input for this case.
+     * A match of a search, by id, with its rank. Sorts by descending rank, then by id, so the
+     * best matches come first.
      */
-    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+    private static final class SearchResult implements Comparable<SearchResult> {
+        final long mId;
+        final double mRank;
 
-    // Static initializer. This is run the first time anything is called from this class.
-    static {
-        // The calls to addURI() go here, for all of the content URI patterns that the provider
-        // should recognize. All paths added to the UriMatcher have a corresponding code to return
-        // when a match is found.
+        SearchResult(long id, double rank) {
+            mId = id;
+            mRank = rank;
+        }
 
-        // The content URI of the form "content://com.example.android.pets/pets" will map to the
-        // integer code {@link #RICES}. This URI is used to provide access to MULTIPLE rows
-        // of the rice table.
-        sUriMatcher.addURI(RiceContract.CONTENT_AUTHORITY, RiceContract.PATH_RICE, RICES);
+        @Override
+        public int compareTo(SearchResult other) {
+            int byRank = Double.compare(other.mRank, mRank);
+            return byRank != 0 ? byRank : (mId < other.mId ? -1 : (mId == other.mId ? 0 : 1));
+        }
+    }
 
-        // The content URI of the form "content://com.example.android.pets/pets/#" will map to the
-        // integer code {@link #RICE_ID}. This URI is used to provide access to ONE single row
-        // of the rice table.
-        //
-        // In this case, the "#" wildcard is used where "#" can be substituted for an integer.
-        // For example, "content://com.dandandin.android.risi/rice/3" matches, but
-        // "content://com.dandandin.android.risi/rice" (without a number at the end) doesn't match.
-        sUriMatcher.addURI(RiceContract.CONTENT_AUTHORITY, RiceContract.PATH_RICE + "/#", RICE_ID);
+    /**
+     * Apply a batch of operations in a single transaction: either all of them are applied or,
+     * if one fails, none of them is. If an operation allows yielding with
+     * {@link ContentProviderOperation.Builder#withYieldAllowed(boolean)}, the transaction may be
+     * committed at that point to let the readers (e.g. the catalog loader) in, so a batch with
+     * yield points is only atomic between them. Listeners get one notification at the end.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            ContentProviderResult[] results = applyBatchOperations(operations);
+            succeeded = true;
+            return results;
+        } finally {
+            // The single operations are recorded on their own too
+            mMetrics.record(OP_APPLY_BATCH, getMetricsUri(RiceEntry.CONTENT_URI),
+                    operations.size(), start, succeeded);
+        }
     }
 
-    /** Database helper object */
-    private RiceDbHelper mDbHelper;
+    /**
+     * Apply a batch of operations, see {@link #applyBatch(ArrayList)}.
+     */
+    private ContentProviderResult[] applyBatchOperations(
+            ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-    //Initialize the provider and the database helper object.
-    @Override
-    public boolean onCreate() {
-        mDbHelper = new RiceDbHelper(getContext());
-        return true;
+        mApplyingBatch.set(true);
+        mBatchChanged.set(false);
+        boolean committed = false;
+        database.beginTransaction();
+        try {
+            final int numOperations = operations.size();
+            final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            for (int i = 0; i < numOperations; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                // Yield points commit what has been done so far, so it has to be notified too
+                if (i > 0 && operation.isYieldAllowed() && database.yieldIfContendedSafely()) {
+                    committed = true;
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            database.setTransactionSuccessful();
+            committed = true;
+            return results;
+        } finally {
+            database.endTransaction();
+            boolean changed = mBatchChanged.get();
+            mApplyingBatch.remove();
+            mBatchChanged.remove();
+            // One single notification for the whole batch, if something was actually written
+            if (committed && changed) {
+                // Rows may have been cached while the batch was still running, with the values
+                // from before it
+                invalidateRowCache(-1);
+                notifyChange(RiceEntry.CONTENT_URI);
+            }
+        }
     }
 
-    //Perform the query for the given URI. Use the given projection, selection, selection arguments, and sort order.
-    @Override
-    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
-                        String sortOrder) {
-        // Get readable database
-        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+    /**
+     * Returns the URI to notify for a change made through the given URI: for a single rice,
+     * its URI with the kind of change, so listeners can update just that row; otherwise
+     * the URI itself, since any row may have changed.
+     */
+    private static Uri getChangeUri(Uri uri, String change) {
+        if (sUriMatcher.match(uri) == RICE_ID) {
+            return RiceEntry.buildChangeUri(ContentUris.parseId(uri), change);
+        }
+        return uri;
+    }
 
-        // This cursor will hold the result of the query
-        Cursor cursor = null;
+    /**
+     * Notify all listeners that the data at the given URI has changed. While a batch is being
+     * applied on this thread the notification is only recorded and sent when the batch ends.
+     *
+     * Otherwise the notifications are debounced: after a quiet period the first one is sent
+     * right away and opens a window, and the ones raised within the window are held and sent
+     * together when it ends (see {@link #flushNotifications()}), which opens a new window. So
+     * during a burst of writes the listeners requery at most once per window.
+     */
+    private void notifyChange(Uri uri) {
+        // Every change notified comes from the rices table, and the batches notify again after
+        // they are committed, so the results cached in the meantime go too
+        invalidateQueryCache();
+        if (mApplyingBatch.get() != null) {
+            mBatchChanged.set(true);
+            return;
+        }
+        List<Uri> writeChanges = mSequencedWriteChanges.get();
+        if (writeChanges != null) {
+            writeChanges.add(uri);
+            return;
+        }
+        // The flush is posted once the lock is released: posting takes the lock of the message
+        // queue, which may be held by a flush that is waiting for this one
+        boolean held = false;
+        long flushDelay = -1;
+        synchronized (mPendingNotifications) {
+            mNotificationsRequested++;
+            long now = SystemClock.uptimeMillis();
+            if (mNotifyWindowMillis > 0
+                    && (now < mNotifyWindowEnd || !mPendingNotifications.isEmpty())) {
+                // Moved to the end, so the notifications keep the order of the last changes
+                mPendingNotifications.remove(uri.getPath());
+                mPendingNotifications.put(uri.getPath(), uri);
+                held = true;
+                if (!mFlushPosted) {
+                    mFlushPosted = true;
+                    flushDelay = Math.max(mNotifyWindowEnd - now, 0);
+                }
+            } else {
+                mNotifyWindowEnd = now + mNotifyWindowMillis;
+            }
+        }
+        if (!held) {
+            sendNotification(uri);
+        } else if (flushDelay >= 0) {
+            mNotifyHandler.postDelayed(mFlushNotifications, flushDelay);
+        }
+    }
 
-        // Figure out if the URI matcher can match the URI to a specific code
-        int match = sUriMatcher.match(uri);
-        switch (match) {
-            case RICES:
-                // For the RICES code, query the risi table directly with the given
-                // projection, selection, selection arguments, and sort order. The cursor
-                // could contain multiple rows of the risi table.
-                cursor = database.query(RiceEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
-                break;
-            case RICE_ID:
-                // For the RICE_ID code, extract out the ID from the URI.
-                // For an example URI such as "content://com.dandandin.android.risi/rice/3",
-                // the selection will be "_id=?" and the selection argument will be a
-                // String array containing the actual ID of 3 in this case.
-                //
-                // For every "?" in the selection, we need to have an element in the selection
-                // arguments that will fill in the "?". Since we have 1 question mark in the
-                // selection, we have 1 String in the selection arguments' String array.
-                selection = RiceEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+    /**
+     * Send the notifications held by {@link #notifyChange(Uri)} right away. If more than one
+     * URI of the risi is held, a single notification of {@link RiceEntry#CONTENT_URI} replaces
+     * them: it reaches the listeners of all of them, and the lists requery only once.
+     */
+    private void flushNotifications() {
+        List<Uri> uris = new ArrayList<Uri>();
+        mNotifyHandler.removeCallbacks(mFlushNotifications);
+        synchronized (mPendingNotifications) {
+            mFlushPosted = false;
+            String ricePath = RiceEntry.CONTENT_URI.getPath();
+            int riceUris = 0;
+            for (Uri uri : mPendingNotifications.values()) {
+                if (uri.getPath().startsWith(ricePath)) {
+                    riceUris++;
+                }
+            }
+            for (Iterator<Uri> i = mPendingNotifications.values().iterator(); i.hasNext(); ) {
+                Uri uri = i.next();
+                if (riceUris > 1 && uri.getPath().startsWith(ricePath)) {
+                    continue;
+                }
+                uris.add(uri);
+            }
+            if (riceUris > 1) {
+                uris.add(RiceEntry.CONTENT_URI);
+            }
+            mPendingNotifications.clear();
+            if (!uris.isEmpty()) {
+                mNotifyWindowEnd = SystemClock.uptimeMillis() + mNotifyWindowMillis;
+            }
+        }
+        for (Uri uri : uris) {
+            sendNotification(uri);
+        }
+    }
 
-                // This will perform a query on the risi table where the _id equals 3 to return a
-                // Cursor containing that row of the table.
-                cursor = database.query(RiceEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
-                break;
-            default:
-                throw new IllegalArgumentException("Cannot query unknown URI " + uri);
+    private void sendNotification(Uri uri) {
+        synchronized (mPendingNotifications) {
+            mNotificationsSent++;
         }
-        // Set notification URI on the Cursor, so we know what content URI the Cursor was created
-        // If the data at this URI changes, then we know we need to update the Cursor.
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
 
-        // Return the cursor
-        return cursor;
+    /**
+     * Return the counters of the notifications, for {@link #call(String, String, Bundle)}.
+     */
+    private Bundle getNotificationStats() {
+        Bundle stats = new Bundle();
+        synchronized (mPendingNotifications) {
+            stats.putLong(RiceEntry.KEY_NOTIFICATIONS_REQUESTED, mNotificationsRequested);
+            stats.putLong(RiceEntry.KEY_NOTIFICATIONS_SENT, mNotificationsSent);
+        }
+        return stats;
     }
 
     //Returns the MIME type of data for the content URI.
@@ -115,14 +1835,308 @@ public class RiceProvider extends ContentProvider {
                 return RiceEntry.CONTENT_LIST_TYPE;
             case RICE_ID:
                 return RiceEntry.CONTENT_ITEM_TYPE;
+            case RICE_SEARCH:
+                return RiceEntry.CONTENT_LIST_TYPE;
+            case RICE_STATS:
+                return RiceEntry.CONTENT_STATS_TYPE;
+            case RICE_CSV:
+                return RiceEntry.CONTENT_CSV_TYPE;
+            case RICE_PRICES:
+                return RiceEntry.CONTENT_LIST_TYPE;
+            case RICE_PRICE_HISTOGRAM:
+                return RiceEntry.CONTENT_HISTOGRAM_TYPE;
+            case RICE_CHANGES:
+                return RiceEntry.CONTENT_CHANGES_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
     }
 
+    /**
+     * Open the CSV file of the risi: reading it exports all the risi, writing it imports new
+     * ones. Either way the data goes through a pipe and is handled by a background thread
+     * while the other side reads or writes it, so the whole file is never in memory.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != RICE_CSV) {
+            throw new FileNotFoundException("No file for " + uri);
+        }
+        if ("r".equals(mode)) {
+            return openPipeHelper(uri, RiceEntry.CONTENT_CSV_TYPE, null, null,
+                    new PipeDataWriter<Void>() {
+                        @Override
+                        public void writeDataToPipe(ParcelFileDescriptor output, Uri uri,
+                                                    String mimeType, Bundle opts, Void args) {
+                            exportCsv(output);
+                        }
+                    });
+        }
+        if ("w".equals(mode) || "wt".equals(mode)) {
+            final ParcelFileDescriptor[] pipe;
+            try {
+                pipe = ParcelFileDescriptor.createPipe();
+            } catch (IOException e) {
+                throw new FileNotFoundException("Failed to create pipe for " + uri + ": " + e);
+            }
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    importCsv(pipe[0]);
+                }
+            });
+            return pipe[1];
+        }
+        throw new FileNotFoundException("Cannot open " + uri + " in mode " + mode);
+    }
+
+    /**
+     * Write all the risi to a pipe as CSV, straight from the cursor.
+     */
+    private void exportCsv(ParcelFileDescriptor output) {
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        Cursor cursor = database.query(RiceEntry.TABLE_NAME, RiceCsv.COLUMNS, null, null,
+                null, null, RiceEntry._ID);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new ParcelFileDescriptor.AutoCloseOutputStream(output), "UTF-8"));
+            RiceCsv.writeHeader(writer);
+            while (cursor.moveToNext()) {
+                RiceCsv.writeRow(writer, cursor);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            // Most likely the reader closed its side of the pipe before the end
+            Log.w(LOG_TAG, "Failed to export the risi as CSV", e);
+        } finally {
+            cursor.close();
+            closeQuietly(writer != null ? writer : output);
+        }
+    }
+
+    /**
+     * Read CSV rows from a pipe and insert them, one transaction every
+     * {@link #IMPORT_CHUNK_SIZE} rows. Invalid rows are logged and skipped, like in
+     * {@link #bulkInsert(Uri, ContentValues[])}. If reading the file or writing a chunk fails,
+     * the chunk being written is rolled back, the ones before it are kept, and the end of the
+     * import is notified as failed with the rows of the committed chunks.
+     */
+    private void importCsv(ParcelFileDescriptor input) {
+        Reader reader = null;
+        int imported = 0;
+        int rejected = 0;
+        // The rows of the chunks committed so far
+        int committedImported = 0;
+        int committedRejected = 0;
+        boolean failed = false;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new ParcelFileDescriptor.AutoCloseInputStream(input), "UTF-8"));
+            RiceCsv.RecordReader records = new RiceCsv.RecordReader(reader);
+            String[] header = records.readRecord();
+            if (header == null) {
+                return;
+            }
+            for (String column : header) {
+                if (!Arrays.asList(RiceCsv.COLUMNS).contains(column)) {
+                    Log.e(LOG_TAG, "Unknown column " + column + " in CSV import");
+                    failed = true;
+                    return;
+                }
+            }
+
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            SQLiteStatement statement = database.compileStatement(RiceStatements.SQL_INSERT_RICE);
+            ContentValues values = new ContentValues();
+            database.beginTransaction();
+            try {
+                String[] record;
+                while ((record = records.readRecord()) != null) {
+                    try {
+                        readCsvRice(header, record, values);
+                        validateRice(values);
+                        RiceStatements.bindRice(statement, values);
+                        if (statement.executeInsert() == -1) {
+                            throw new IllegalArgumentException("insert failed");
+                        }
+                        imported++;
+                    } catch (IllegalArgumentException e) {
+                        Log.w(LOG_TAG, "Rejected row " + (imported + rejected + 1)
+                                + " of CSV import: " + e.getMessage());
+                        rejected++;
+                    }
+                    // Commit a chunk and start the next one
+                    if ((imported + rejected) % IMPORT_CHUNK_SIZE == 0) {
+                        database.setTransactionSuccessful();
+                        database.endTransaction();
+                        committedImported = imported;
+                        committedRejected = rejected;
+                        notifyChange(RiceEntry.buildImportProgressUri(imported, rejected, false,
+                                false));
+                        database.beginTransaction();
+                    }
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                // Unless the whole file has been read, this rolls the open chunk back
+                database.endTransaction();
+                statement.close();
+            }
+            committedImported = imported;
+            committedRejected = rejected;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to import the risi from CSV", e);
+            failed = true;
+        } catch (RuntimeException e) {
+            // An SQLException, e.g. the disk is full: thrown on this thread it would crash
+            // the app, and the importer would never hear of the end
+            Log.e(LOG_TAG, "Failed to import the risi from CSV", e);
+            failed = true;
+        } finally {
+            closeQuietly(reader != null ? reader : input);
+            notifyChange(RiceEntry.buildImportProgressUri(committedImported, committedRejected,
+                    true, failed));
+            // One single notification of the new risi for the whole file
+            if (committedImported != 0) {
+                notifyChange(RiceEntry.CONTENT_URI);
+            }
+        }
+    }
+
+    /**
+     * Fill the values of a rice with the fields of a CSV record, converting the numbers.
+     *
+     * @throws IllegalArgumentException if the record doesn't match the header or has an
+     *                                  invalid number
+     */
+    private static void readCsvRice(String[] header, String[] record, ContentValues values) {
+        if (record.length != header.length) {
+            throw new IllegalArgumentException("Row has " + record.length + " fields instead of "
+                    + header.length);
+        }
+        values.clear();
+        for (int i = 0; i < header.length; i++) {
+            String value = record[i].length() == 0 ? null : record[i];
+            if (value != null && (RiceEntry.COLUMN_PACKAGING.equals(header[i])
+                    || RiceEntry.COLUMN_PRICE.equals(header[i]))) {
+                try {
+                    values.put(header[i], Integer.parseInt(value));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid " + header[i] + " " + value);
+                }
+            } else {
+                values.put(header[i], value);
+            }
+        }
+    }
+
+    /**
+     * Close a stream or a file descriptor, ignoring the errors.
+     */
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to close " + closeable, e);
+        }
+    }
+
     //Insert new data into the provider with the given ContentValues.
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        long start = System.nanoTime();
+        Uri result = null;
+        boolean succeeded = false;
+        long sequence = getWriteSequence(uri);
+        SQLiteDatabase database = null;
+        if (sequence != -1) {
+            uri = uri.buildUpon().clearQuery().build();
+            database = beginSequencedWrite();
+        }
+        try {
+            result = insertUri(uri, contentValues);
+            if (database != null) {
+                setSequencedWriteApplied(database, sequence);
+            }
+            succeeded = true;
+            return result;
+        } finally {
+            if (database != null) {
+                endSequencedWrite(database, succeeded);
+            }
+            mMetrics.record(OP_INSERT, getMetricsUri(uri), result != null ? 1 : 0, start,
+                    succeeded);
+        }
+    }
+
+    /**
+     * Returns the sequence number of a write, see
+     * {@link RiceEntry#QUERY_PARAMETER_WRITE_SEQUENCE}, or -1 if it has none.
+     */
+    private static long getWriteSequence(Uri uri) {
+        String sequence = uri.getQueryParameter(RiceEntry.QUERY_PARAMETER_WRITE_SEQUENCE);
+        if (sequence == null) {
+            return -1;
+        }
+        try {
+            long value = Long.parseLong(sequence);
+            if (value > 0) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Thrown below
+        }
+        throw new IllegalArgumentException("Invalid write sequence " + sequence);
+    }
+
+    /**
+     * Start a write with a sequence number: it runs in a transaction of its own, which saves
+     * the number too (see {@link #setSequencedWriteApplied}), and its change notifications are
+     * held until the transaction is committed.
+     */
+    private SQLiteDatabase beginSequencedWrite() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        database.beginTransaction();
+        mSequencedWriteChanges.set(new ArrayList<Uri>());
+        return database;
+    }
+
+    /**
+     * Save the sequence number of the write running in the transaction of
+     * {@link #beginSequencedWrite()}, and mark the transaction as successful.
+     */
+    private static void setSequencedWriteApplied(SQLiteDatabase database, long sequence) {
+        ContentValues state = new ContentValues();
+        state.put(RiceDbHelper.SYNC_STATE_COLUMN_KEY, RiceDbHelper.SYNC_STATE_WRITE_SEQUENCE);
+        state.put(RiceDbHelper.SYNC_STATE_COLUMN_VALUE, sequence);
+        database.replaceOrThrow(RiceDbHelper.SYNC_STATE_TABLE_NAME, null, state);
+        database.setTransactionSuccessful();
+    }
+
+    /**
+     * End the transaction of {@link #beginSequencedWrite()}, then send the notifications held
+     * if it was committed.
+     */
+    private void endSequencedWrite(SQLiteDatabase database, boolean committed) {
+        List<Uri> changes = mSequencedWriteChanges.get();
+        mSequencedWriteChanges.remove();
+        database.endTransaction();
+        if (committed) {
+            for (Uri change : changes) {
+                // The row may have been cached while the write was running, with the values
+                // from before it
+                invalidateRowCache(sUriMatcher.match(change) == RICE_ID
+                        ? ContentUris.parseId(change) : -1);
+                notifyChange(change);
+            }
+        }
+    }
+
+    /**
+     * Insert a row, see {@link #insert(Uri, ContentValues)}.
+     */
+    private Uri insertUri(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case RICES:
@@ -137,6 +2151,44 @@ public class RiceProvider extends ContentProvider {
      * for that specific row in the database.
      */
     private Uri insertRice(Uri uri, ContentValues values) {
+        // Check that the values describe a valid rice
+        validateRice(values);
+
+        // Get writeable database
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // Insert the new rice with the given values, through the compiled statement unless the
+        // values have keys that are not columns (the plain insert reports them)
+        long id;
+        if (RiceStatements.getColumnMask(values) != -1) {
+            try {
+                id = mStatements.get().insert(database, values);
+            } catch (SQLException e) {
+                Log.e(LOG_TAG, "Error inserting " + values, e);
+                id = -1;
+            }
+        } else {
+            id = database.insert(RiceEntry.TABLE_NAME, null, values);
+        }
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        // Notify all listeners that this rice has been added
+        notifyChange(RiceEntry.buildChangeUri(id, RiceEntry.CHANGE_INSERT));
+
+        // Once we know the ID of the new row in the table,
+        // return the new URI with the ID appended to the end of it
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Check that the given content values describe a valid new rice. Throws an
+     * {@link IllegalArgumentException} describing the first problem found.
+     */
+    private void validateRice(ContentValues values) {
         // Check that the name is not null
         String name = values.getAsString(RiceEntry.COLUMN_RICE_NAME);
         if (name == null) {
@@ -156,27 +2208,163 @@ public class RiceProvider extends ContentProvider {
         }
 
         // No need to check the breed, any value is valid (including null).
+    }
 
-        // Get writeable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+    /**
+     * Insert many rices at once. All the rows are validated first, then written in a single
+     * transaction through one compiled INSERT statement, and listeners are notified only once
+     * at the end. Invalid rows, and the ones the database refuses, are logged and skipped
+     * instead of aborting the whole batch: {@link RiceEntry#METHOD_BULK_INSERT} also tells
+     * which ones.
+     *
+     * @return the number of rows actually inserted
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = System.nanoTime();
+        int rows = 0;
+        boolean succeeded = false;
+        try {
+            rows = bulkInsertUri(uri, values).getInt(RiceEntry.KEY_RECORD_COUNT);
+            succeeded = true;
+            return rows;
+        } finally {
+            mMetrics.record(OP_BULK_INSERT, getMetricsUri(uri), rows, start, succeeded);
+        }
+    }
 
-        // Insert the new rice with the given values
-        long id = database.insert(RiceEntry.TABLE_NAME, null, values);
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+    /**
+     * Insert many rows, see {@link #bulkInsert(Uri, ContentValues[])}.
+     *
+     * @return the number of rows inserted and the rows rejected, as described by
+     * {@link RiceEntry#METHOD_BULK_INSERT}
+     */
+    private Bundle bulkInsertUri(Uri uri, ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        if (match != RICES) {
+            throw new IllegalArgumentException("Bulk insertion is not supported for " + uri);
         }
 
-        // Notify all listeners that the data has changed for the pet content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        // Validate everything before touching the database, remembering why the rejected rows
+        // were rejected (null for the good ones)
+        String[] reasons = new String[values.length];
+        int rejected = 0;
+        for (int i = 0; i < values.length; i++) {
+            try {
+                validateBulkRice(values[i]);
+            } catch (IllegalArgumentException e) {
+                Log.w(LOG_TAG, "Rejected row " + i + " of bulk insert: " + e.getMessage());
+                reasons[i] = e.getMessage();
+                rejected++;
+            }
+        }
 
-        // Once we know the ID of the new row in the table,
-        // return the new URI with the ID appended to the end of it
-        return ContentUris.withAppendedId(uri, id);
+        int inserted = 0;
+        if (rejected < values.length) {
+            // Get writeable database
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+            SQLiteStatement statement = database.compileStatement(RiceStatements.SQL_INSERT_RICE);
+            database.beginTransaction();
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    if (reasons[i] != null) {
+                        continue;
+                    }
+                    RiceStatements.bindRice(statement, values[i]);
+                    try {
+                        if (statement.executeInsert() == -1) {
+                            Log.w(LOG_TAG, "Failed to insert row " + i + " of bulk insert for "
+                                    + uri);
+                            reasons[i] = "Not inserted";
+                            rejected++;
+                        } else {
+                            inserted++;
+                        }
+                    } catch (SQLiteConstraintException e) {
+                        // Only the statement is rolled back, the rows before it are kept
+                        Log.w(LOG_TAG, "Rejected row " + i + " of bulk insert: " + e.getMessage());
+                        reasons[i] = String.valueOf(e.getMessage());
+                        rejected++;
+                    }
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+                statement.close();
+            }
+
+            // One single notification for the whole batch
+            if (inserted != 0) {
+                notifyChange(uri);
+            }
+        }
+
+        int[] rejectedIndexes = new int[rejected];
+        String[] rejectedReasons = new String[rejected];
+        for (int i = 0, j = 0; i < values.length; i++) {
+            if (reasons[i] != null) {
+                rejectedIndexes[j] = i;
+                rejectedReasons[j] = reasons[i];
+                j++;
+            }
+        }
+        Bundle result = new Bundle();
+        result.putInt(RiceEntry.KEY_RECORD_COUNT, inserted);
+        result.putIntArray(RiceEntry.KEY_BULK_REJECTED_INDEXES, rejectedIndexes);
+        result.putStringArray(RiceEntry.KEY_BULK_REJECTED_REASONS, rejectedReasons);
+        return result;
+    }
+
+    /**
+     * Same checks as {@link #validateRice(ContentValues)}, plus a check that the values only
+     * contain the columns bound by {@link RiceStatements#SQL_INSERT_RICE}, so nothing gets silently dropped.
+     */
+    private void validateBulkRice(ContentValues values) {
+        if (values == null) {
+            throw new IllegalArgumentException("Rice requires values");
+        }
+        for (String key : values.keySet()) {
+            if (!RiceEntry.COLUMN_RICE_NAME.equals(key) && !RiceEntry.COLUMN_BREED.equals(key)
+                    && !RiceEntry.COLUMN_PACKAGING.equals(key) && !RiceEntry.COLUMN_PRICE.equals(key)
+                    && !RiceEntry.COLUMN_DESCRIPTION.equals(key)) {
+                throw new IllegalArgumentException("Unknown column " + key);
+            }
+        }
+        validateRice(values);
     }
 
+    //Delete the data at the given selection and selection arguments.
+    @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        int rows = 0;
+        boolean succeeded = false;
+        long sequence = getWriteSequence(uri);
+        SQLiteDatabase database = null;
+        if (sequence != -1) {
+            uri = uri.buildUpon().clearQuery().build();
+            database = beginSequencedWrite();
+        }
+        try {
+            rows = deleteUri(uri, selection, selectionArgs);
+            if (database != null) {
+                setSequencedWriteApplied(database, sequence);
+            }
+            succeeded = true;
+            return rows;
+        } finally {
+            if (database != null) {
+                endSequencedWrite(database, succeeded);
+            }
+            mMetrics.record(OP_DELETE, getMetricsUri(uri), rows, start, succeeded);
+        }
+    }
+
+    /**
+     * Delete rows, see {@link #delete(Uri, String, String[])}.
+     */
+    private int deleteUri(Uri uri, String selection, String[] selectionArgs) {
         // Get writeable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
@@ -186,21 +2374,28 @@ public class RiceProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case RICES:
-                // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(RiceEntry.TABLE_NAME, selection, selectionArgs);
+                if (selection == null) {
+                    // Delete all the rows at once, see RiceDbHelper.deleteAllRices()
+                    rowsDeleted = mDbHelper.deleteAllRices();
+                } else {
+                    // Delete all rows that match the selection and selection args
+                    rowsDeleted = database.delete(RiceEntry.TABLE_NAME, selection, selectionArgs);
+                }
+                if (rowsDeleted != 0) {
+                    scheduleMaintenance();
+                }
                 break;
             case RICE_ID:
-                // Delete a single row given by the ID in the URI
-                selection = RiceEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                rowsDeleted = database.delete(RiceEntry.TABLE_NAME, selection, selectionArgs);
+                // Delete a single row given by the ID in the URI, with the compiled statement
+                rowsDeleted = mStatements.get().deleteById(database, ContentUris.parseId(uri));
                 break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
         // If 1 or more rows were deleted, then notify all listeners that the data at the given URI has changed
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            invalidateRowCache(match == RICE_ID ? ContentUris.parseId(uri) : -1);
+            notifyChange(getChangeUri(uri, RiceEntry.CHANGE_DELETE));
         }
         // Return the number of rows deleted
         return rowsDeleted;
@@ -210,6 +2405,35 @@ public class RiceProvider extends ContentProvider {
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection,
                       String[] selectionArgs) {
+        long start = System.nanoTime();
+        int rows = 0;
+        boolean succeeded = false;
+        long sequence = getWriteSequence(uri);
+        SQLiteDatabase database = null;
+        if (sequence != -1) {
+            uri = uri.buildUpon().clearQuery().build();
+            database = beginSequencedWrite();
+        }
+        try {
+            rows = updateUri(uri, contentValues, selection, selectionArgs);
+            if (database != null) {
+                setSequencedWriteApplied(database, sequence);
+            }
+            succeeded = true;
+            return rows;
+        } finally {
+            if (database != null) {
+                endSequencedWrite(database, succeeded);
+            }
+            mMetrics.record(OP_UPDATE, getMetricsUri(uri), rows, start, succeeded);
+        }
+    }
+
+    /**
+     * Update rows, see {@link #update(Uri, ContentValues, String, String[])}.
+     */
+    private int updateUri(Uri uri, ContentValues contentValues, String selection,
+                          String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case RICES:
@@ -268,12 +2492,21 @@ public class RiceProvider extends ContentProvider {
         // Otherwise, get writeable database to update the data
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(RiceEntry.TABLE_NAME, values, selection, selectionArgs);
+        // Perform the update on the database and get the number of rows affected. The update
+        // of a single rice (e.g. from the editor) goes through a compiled statement.
+        int rowsUpdated;
+        int mask = RiceStatements.getColumnMask(values);
+        if (sUriMatcher.match(uri) == RICE_ID && mask != -1) {
+            rowsUpdated = mStatements.get().updateById(database, ContentUris.parseId(uri), values,
+                    mask);
+        } else {
+            rowsUpdated = database.update(RiceEntry.TABLE_NAME, values, selection, selectionArgs);
+        }
 
         // If 1 or more rows were updated, then notify all listeners that the data at the given URI has changed
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            invalidateRowCache(sUriMatcher.match(uri) == RICE_ID ? ContentUris.parseId(uri) : -1);
+            notifyChange(getChangeUri(uri, RiceEntry.CHANGE_UPDATE));
         }
 
         // Return the number of rows updated
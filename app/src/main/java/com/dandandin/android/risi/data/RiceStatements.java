@@ -0,0 +1,252 @@
+package com.dandandin.android.risi.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.SparseArray;
+
+import com.dandandin.android.risi.data.RiceContract.RiceEntry;
+
+/**
+ * Compiled statements for the writes of a single rice, which have a fixed shape: insert,
+ * delete by id and update by id of a given set of columns. Each statement is compiled the
+ * first time it's used and then reused, so these writes skip building the SQL from the
+ * ContentValues and parsing it again.
+ *
+ * A statement can't be bound and run by two threads at the same time, and the class has no
+ * lock: each thread uses an instance of its own (see RiceProvider). A lock here would be taken
+ * inside the transactions of the provider, so a thread could hold it while waiting for the
+ * connection of the database, held by another thread waiting for the lock.
+ */
+final class RiceStatements {
+
+    /**
+     * Columns that can be written, in the order of the parameters of {@link #SQL_INSERT_RICE}.
+     * The bits of the update masks follow the same order.
+     */
+    static final String[] COLUMNS = {
+            RiceEntry.COLUMN_RICE_NAME,
+            RiceEntry.COLUMN_BREED,
+            RiceEntry.COLUMN_PACKAGING,
+            RiceEntry.COLUMN_PRICE,
+            RiceEntry.COLUMN_DESCRIPTION
+    };
+
+    /** INSERT statement with all the {@link #COLUMNS}, see {@link #bindRice} */
+    static final String SQL_INSERT_RICE = "INSERT INTO " + RiceEntry.TABLE_NAME + " ("
+            + RiceEntry.COLUMN_RICE_NAME + ", "
+            + RiceEntry.COLUMN_BREED + ", "
+            + RiceEntry.COLUMN_PACKAGING + ", "
+            + RiceEntry.COLUMN_PRICE + ", "
+            + RiceEntry.COLUMN_DESCRIPTION + ") VALUES (?, ?, ?, ?, ?)";
+
+    /** The database the statements were compiled for */
+    private SQLiteDatabase mDatabase;
+
+    private SQLiteStatement mInsert;
+    private SQLiteStatement mDelete;
+
+    /** UPDATE statements by id, by mask of the updated columns */
+    private final SparseArray<SQLiteStatement> mUpdates = new SparseArray<SQLiteStatement>();
+
+    /**
+     * Returns the mask of the columns in the values, with one bit for each of the
+     * {@link #COLUMNS}, or -1 if the values have a key that is not one of them.
+     */
+    static int getColumnMask(ContentValues values) {
+        int mask = 0;
+        for (String key : values.keySet()) {
+            int column = indexOf(key);
+            if (column == -1) {
+                return -1;
+            }
+            mask |= 1 << column;
+        }
+        return mask;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Bind the (already validated) values of a rice to the parameters of {@link #SQL_INSERT_RICE}.
+     * The missing values get the defaults of the table: null, and 0 for the price.
+     */
+    static void bindRice(SQLiteStatement statement, ContentValues values) {
+        // The price column defaults to 0 when it's not provided
+        Integer price = values.getAsInteger(RiceEntry.COLUMN_PRICE);
+        bindRice(statement, values.getAsString(RiceEntry.COLUMN_RICE_NAME),
+                values.getAsString(RiceEntry.COLUMN_BREED),
+                values.getAsInteger(RiceEntry.COLUMN_PACKAGING), price == null ? 0 : price,
+                values.getAsString(RiceEntry.COLUMN_DESCRIPTION));
+    }
+
+    /**
+     * Bind the (already validated) values of a rice to the parameters of {@link #SQL_INSERT_RICE}.
+     */
+    static void bindRice(SQLiteStatement statement, String name, String breed, int packaging,
+                         int price, String description) {
+        statement.clearBindings();
+        statement.bindString(1, name);
+        bindStringOrNull(statement, 2, breed);
+        statement.bindLong(3, packaging);
+        statement.bindLong(4, price);
+        bindStringOrNull(statement, 5, description);
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Insert a rice. The values must be valid and only have keys among the {@link #COLUMNS}.
+     *
+     * @return the id of the new row, or -1 if the insert failed
+     */
+    long insert(SQLiteDatabase database, ContentValues values) {
+        useDatabase(database);
+        if (mInsert == null) {
+            mInsert = database.compileStatement(SQL_INSERT_RICE);
+        }
+        bindRice(mInsert, values);
+        return mInsert.executeInsert();
+    }
+
+    /**
+     * Insert a rice from typed values, which must be valid.
+     *
+     * @return the id of the new row, or -1 if the insert failed
+     */
+    long insert(SQLiteDatabase database, String name, String breed, int packaging,
+                int price, String description) {
+        useDatabase(database);
+        if (mInsert == null) {
+            mInsert = database.compileStatement(SQL_INSERT_RICE);
+        }
+        bindRice(mInsert, name, breed, packaging, price, description);
+        return mInsert.executeInsert();
+    }
+
+    /**
+     * Delete a rice by id.
+     *
+     * @return the number of rows deleted
+     */
+    int deleteById(SQLiteDatabase database, long id) {
+        useDatabase(database);
+        if (mDelete == null) {
+            mDelete = database.compileStatement("DELETE FROM " + RiceEntry.TABLE_NAME
+                    + " WHERE " + RiceEntry._ID + "=?");
+        }
+        mDelete.bindLong(1, id);
+        return mDelete.executeUpdateDelete();
+    }
+
+    /**
+     * Update the given columns of a rice by id. The values must only have keys among the
+     * {@link #COLUMNS}, and at least one of them.
+     *
+     * @param mask the mask of the keys of the values, see {@link #getColumnMask}
+     * @return the number of rows updated
+     */
+    int updateById(SQLiteDatabase database, long id, ContentValues values, int mask) {
+        SQLiteStatement statement = getUpdate(database, mask);
+
+        // Same binding of the values as SQLiteDatabase.update()
+        int index = 1;
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                DatabaseUtils.bindObjectToProgram(statement, index++, values.get(COLUMNS[i]));
+            }
+        }
+        statement.bindLong(index, id);
+        return statement.executeUpdateDelete();
+    }
+
+    /**
+     * Update the given columns of a rice by id from typed values, which must be valid. Only
+     * the values of the columns in the mask are used.
+     *
+     * @param mask the columns to update, with one bit for each of the {@link #COLUMNS}
+     * @return the number of rows updated
+     */
+    int updateById(SQLiteDatabase database, long id, int mask, String name,
+                   String breed, int packaging, int price, String description) {
+        SQLiteStatement statement = getUpdate(database, mask);
+        statement.clearBindings();
+        int index = 1;
+        if ((mask & 1) != 0) {
+            statement.bindString(index++, name);
+        }
+        if ((mask & (1 << 1)) != 0) {
+            bindStringOrNull(statement, index++, breed);
+        }
+        if ((mask & (1 << 2)) != 0) {
+            statement.bindLong(index++, packaging);
+        }
+        if ((mask & (1 << 3)) != 0) {
+            statement.bindLong(index++, price);
+        }
+        if ((mask & (1 << 4)) != 0) {
+            bindStringOrNull(statement, index++, description);
+        }
+        statement.bindLong(index, id);
+        return statement.executeUpdateDelete();
+    }
+
+    /**
+     * Returns the UPDATE statement by id of the columns in the mask, compiling it if needed.
+     */
+    private SQLiteStatement getUpdate(SQLiteDatabase database, int mask) {
+        useDatabase(database);
+        SQLiteStatement statement = mUpdates.get(mask);
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder("UPDATE " + RiceEntry.TABLE_NAME + " SET ");
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    if (sql.charAt(sql.length() - 1) == '?') {
+                        sql.append(", ");
+                    }
+                    sql.append(COLUMNS[i]).append("=?");
+                }
+            }
+            sql.append(" WHERE " + RiceEntry._ID + "=?");
+            statement = database.compileStatement(sql.toString());
+            mUpdates.put(mask, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Drop the statements compiled for another database (e.g. after the helper reopened it).
+     */
+    private void useDatabase(SQLiteDatabase database) {
+        if (database == mDatabase) {
+            return;
+        }
+        if (mInsert != null) {
+            mInsert.close();
+            mInsert = null;
+        }
+        if (mDelete != null) {
+            mDelete.close();
+            mDelete = null;
+        }
+        for (int i = 0; i < mUpdates.size(); i++) {
+            mUpdates.valueAt(i).close();
+        }
+        mUpdates.clear();
+        mDatabase = database;
+    }
+}
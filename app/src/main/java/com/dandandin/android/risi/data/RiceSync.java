@@ -0,0 +1,491 @@
+package com.dandandin.android.risi.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+
+import com.dandandin.android.risi.data.RiceContract.RiceEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Two-way sync of the risi with the central price list, through its REST API at a base URL.
+ * Only the changed risi travel: the ones changed locally are pushed (see the dirty column of
+ * {@link RiceDbHelper}) and the ones changed on the server are pulled from its own log of
+ * changes. Every rice has a key and a version on the server; the server bumps the version
+ * every time the rice changes.
+ *
+ * The API, relative to the base URL, with JSON bodies compressed with gzip both ways:
+ * <ul>
+ * <li>POST batch, with {"changes": [rice, ...]}: each rice has its key ("id"), the version
+ * it was based on ("base_version", null for a new rice), "deleted" and the columns of the
+ * rice. The answer has {"results": [...]}, one per rice in the same order, with the key and
+ * either "status": "ok" and the new "version", or "status": "conflict" and the "current" rice
+ * on the server, when its version isn't the base version anymore.</li>
+ * <li>GET changes?since=token&amp;limit=n, with the risi changed on the server after the
+ * token (empty for all of them): {"changes": [rice, ...], "next": token, "more": boolean},
+ * each rice with its key, its "version", "deleted" and its columns.</li>
+ * </ul>
+ *
+ * Conflicts are resolved the same way on every device: the server wins, since the central
+ * price list is the reference. A local change based on an old version is replaced by the
+ * current rice on the server, and so is a local change to a rice the server changed since
+ * the last sync.
+ *
+ * Every batch and every page is applied in its own transaction, together with the state of
+ * the sync, so an interrupted sync goes on from where it stopped. The new risi get their key
+ * before they are sent, so sending them again after an interruption doesn't duplicate them.
+ * The base URL can point to any server with this API, e.g. a local stand-in.
+ */
+final class RiceSync {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = RiceSync.class.getSimpleName();
+
+    /** Risi sent to the server in each request */
+    private static final int PUSH_BATCH_SIZE = 100;
+
+    /** Risi asked to the server in each request */
+    private static final int PULL_PAGE_SIZE = 500;
+
+    /** Timeout of the connection and of each read, in milliseconds */
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    /** Keys of the JSON objects of the API */
+    private static final String JSON_CHANGES = "changes";
+    private static final String JSON_RESULTS = "results";
+    private static final String JSON_ID = "id";
+    private static final String JSON_VERSION = "version";
+    private static final String JSON_BASE_VERSION = "base_version";
+    private static final String JSON_DELETED = "deleted";
+    private static final String JSON_STATUS = "status";
+    private static final String JSON_CURRENT = "current";
+    private static final String JSON_NEXT = "next";
+    private static final String JSON_MORE = "more";
+    private static final String STATUS_OK = "ok";
+    private static final String STATUS_CONFLICT = "conflict";
+
+    /** Columns of the risi read for a push, in this order */
+    private static final String[] PUSH_COLUMNS = {
+            RiceEntry._ID,
+            RiceDbHelper.SYNC_COLUMN_REMOTE_ID,
+            RiceDbHelper.SYNC_COLUMN_VERSION,
+            RiceEntry.COLUMN_RICE_NAME,
+            RiceEntry.COLUMN_BREED,
+            RiceEntry.COLUMN_PACKAGING,
+            RiceEntry.COLUMN_PRICE,
+            RiceEntry.COLUMN_DESCRIPTION
+    };
+
+    private final RiceDbHelper mDbHelper;
+    private final String mBaseUrl;
+
+    /** Counters of the last run */
+    private int mPushed;
+    private int mPulled;
+    private int mConflicts;
+
+    /** Whether the last run went through the background migrations first */
+    private boolean mMigrated;
+
+    /**
+     * Constructs a new {@link RiceSync}.
+     *
+     * @param baseUrl the base URL of the API, with or without the final slash
+     */
+    RiceSync(RiceDbHelper dbHelper, String baseUrl) {
+        mDbHelper = dbHelper;
+        mBaseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    }
+
+    /**
+     * Push the local changes, then pull the changes of the server. Must not be called on the
+     * main thread. If it fails, what was done so far is kept and the next run goes on from there.
+     * After an upgrade, the background migrations left to do are run first: the pull relies on
+     * the unique index of the keys to skip the risi it already has.
+     *
+     * @throws IllegalStateException if the index still isn't there after the migrations
+     */
+    void run() throws IOException, JSONException {
+        mPushed = 0;
+        mPulled = 0;
+        mConflicts = 0;
+        mMigrated = false;
+        if (!mDbHelper.hasSyncIndexes()) {
+            mMigrated = mDbHelper.runMigrations();
+            if (!mDbHelper.hasSyncIndexes()) {
+                throw new IllegalStateException("No unique index of the keys, not syncing");
+            }
+        }
+        push();
+        pull();
+    }
+
+    /** Returns the number of local changes accepted by the server in the last run */
+    int getPushed() {
+        return mPushed;
+    }
+
+    /** Returns the number of changes of the server applied locally in the last run */
+    int getPulled() {
+        return mPulled;
+    }
+
+    /** Returns the number of local changes replaced by the ones on the server in the last run */
+    int getConflicts() {
+        return mConflicts;
+    }
+
+    /** Returns whether the last run went through the background migrations first */
+    boolean hasMigrated() {
+        return mMigrated;
+    }
+
+    /**
+     * Push the dirty risi and then the deletions, in batches. Each one is gone through once,
+     * so a rice that keeps changing during the push is left for the next run.
+     */
+    private void push() throws IOException, JSONException {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        // The key is random, so there is no need to ask the server for one
+        db.execSQL("UPDATE " + RiceEntry.TABLE_NAME + " SET " + RiceDbHelper.SYNC_COLUMN_REMOTE_ID
+                + "=lower(hex(randomblob(16))) WHERE " + RiceDbHelper.SYNC_COLUMN_REMOTE_ID
+                + " IS NULL;");
+
+        long lastId = 0;
+        while (true) {
+            JSONArray changes = new JSONArray();
+            HashMap<String, Object[]> sent = new HashMap<String, Object[]>();
+            Cursor cursor = db.query(RiceEntry.TABLE_NAME, PUSH_COLUMNS,
+                    // The risi inserted after the keys were assigned wait for the next run
+                    RiceDbHelper.SYNC_COLUMN_DIRTY + "=1 AND " + RiceDbHelper.SYNC_COLUMN_REMOTE_ID
+                            + " IS NOT NULL AND " + RiceEntry._ID + ">?",
+                    new String[] { String.valueOf(lastId) }, null, null, RiceEntry._ID,
+                    String.valueOf(PUSH_BATCH_SIZE));
+            try {
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    Object[] values = {
+                            cursor.getString(3),
+                            cursor.isNull(4) ? null : cursor.getString(4),
+                            cursor.getInt(5),
+                            cursor.getInt(6),
+                            cursor.isNull(7) ? null : cursor.getString(7)
+                    };
+                    JSONObject change = new JSONObject();
+                    change.put(JSON_ID, cursor.getString(1));
+                    change.put(JSON_BASE_VERSION,
+                            cursor.isNull(2) ? JSONObject.NULL : cursor.getLong(2));
+                    change.put(JSON_DELETED, false);
+                    putRice(change, values);
+                    changes.put(change);
+                    sent.put(cursor.getString(1), values);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (changes.length() == 0) {
+                break;
+            }
+            applyPushResults(db, changes, pushBatch(changes), sent);
+        }
+
+        String lastRemoteId = "";
+        while (true) {
+            JSONArray changes = new JSONArray();
+            Cursor cursor = db.query(RiceDbHelper.SYNC_DELETIONS_TABLE_NAME, new String[] {
+                            RiceDbHelper.SYNC_COLUMN_REMOTE_ID, RiceDbHelper.SYNC_COLUMN_VERSION },
+                    RiceDbHelper.SYNC_COLUMN_REMOTE_ID + ">?", new String[] { lastRemoteId },
+                    null, null, RiceDbHelper.SYNC_COLUMN_REMOTE_ID, String.valueOf(PUSH_BATCH_SIZE));
+            try {
+                while (cursor.moveToNext()) {
+                    lastRemoteId = cursor.getString(0);
+                    JSONObject change = new JSONObject();
+                    change.put(JSON_ID, lastRemoteId);
+                    change.put(JSON_BASE_VERSION,
+                            cursor.isNull(1) ? JSONObject.NULL : cursor.getLong(1));
+                    change.put(JSON_DELETED, true);
+                    changes.put(change);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (changes.length() == 0) {
+                break;
+            }
+            applyPushResults(db, changes, pushBatch(changes), null);
+        }
+    }
+
+    /**
+     * Send a batch of changes to the server.
+     *
+     * @return the results, one for each change
+     */
+    private JSONArray pushBatch(JSONArray changes) throws IOException, JSONException {
+        JSONObject body = new JSONObject();
+        body.put(JSON_CHANGES, changes);
+        JSONArray results = request("POST", "batch", body).getJSONArray(JSON_RESULTS);
+        if (results.length() != changes.length()) {
+            throw new IOException("Sync got " + results.length() + " results for "
+                    + changes.length() + " changes");
+        }
+        return results;
+    }
+
+    /**
+     * Apply the results of a pushed batch, in a single transaction.
+     *
+     * @param sent the values sent for each key, or null for a batch of deletions
+     */
+    private void applyPushResults(SQLiteDatabase db, JSONArray changes, JSONArray results,
+                                  HashMap<String, Object[]> sent) throws JSONException {
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < results.length(); i++) {
+                JSONObject result = results.getJSONObject(i);
+                String remoteId = changes.getJSONObject(i).getString(JSON_ID);
+                String status = result.getString(JSON_STATUS);
+                if (STATUS_OK.equals(status)) {
+                    mPushed++;
+                    if (sent == null) {
+                        deleteTombstone(db, remoteId);
+                    } else {
+                        markPushed(db, remoteId, result.getLong(JSON_VERSION), sent.get(remoteId));
+                    }
+                } else if (STATUS_CONFLICT.equals(status)) {
+                    mConflicts++;
+                    if (sent == null) {
+                        deleteTombstone(db, remoteId);
+                    }
+                    applyServerRice(db, result.getJSONObject(JSON_CURRENT));
+                } else {
+                    // Left as it is, the next run sends it again
+                    Log.w(LOG_TAG, "Unknown sync status " + status + " for " + remoteId);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Record the new version of a rice accepted by the server. The rice stays dirty if it
+     * changed again after it was read for the push: its changes are now based on the new
+     * version, and they go with the next push.
+     */
+    private static void markPushed(SQLiteDatabase db, String remoteId, long version,
+                                   Object[] values) {
+        db.execSQL("UPDATE " + RiceEntry.TABLE_NAME + " SET " + RiceDbHelper.SYNC_COLUMN_VERSION
+                + "=?, " + RiceDbHelper.SYNC_COLUMN_DIRTY + "=CASE WHEN "
+                + RiceEntry.COLUMN_RICE_NAME + " IS ? AND " + RiceEntry.COLUMN_BREED + " IS ? AND "
+                + RiceEntry.COLUMN_PACKAGING + " IS ? AND " + RiceEntry.COLUMN_PRICE + " IS ? AND "
+                + RiceEntry.COLUMN_DESCRIPTION + " IS ? THEN 0 ELSE 1 END WHERE "
+                + RiceDbHelper.SYNC_COLUMN_REMOTE_ID + "=?;", new Object[] { version, values[0],
+                values[1], values[2], values[3], values[4], remoteId });
+        // The rice may have been deleted in the meantime: its deletion is based on the new version
+        db.execSQL("UPDATE " + RiceDbHelper.SYNC_DELETIONS_TABLE_NAME + " SET "
+                + RiceDbHelper.SYNC_COLUMN_VERSION + "=? WHERE "
+                + RiceDbHelper.SYNC_COLUMN_REMOTE_ID + "=?;", new Object[] { version, remoteId });
+    }
+
+    private static void deleteTombstone(SQLiteDatabase db, String remoteId) {
+        db.delete(RiceDbHelper.SYNC_DELETIONS_TABLE_NAME, RiceDbHelper.SYNC_COLUMN_REMOTE_ID + "=?",
+                new String[] { remoteId });
+    }
+
+    /**
+     * Pull the changes of the server a page at a time, starting after the last page pulled.
+     */
+    private void pull() throws IOException, JSONException {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        boolean more = true;
+        while (more) {
+            String token = readPullToken(db);
+            JSONObject page = request("GET", "changes?since=" + (token == null ? "" : Uri.encode(token))
+                    + "&limit=" + PULL_PAGE_SIZE, null);
+            JSONArray changes = page.getJSONArray(JSON_CHANGES);
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < changes.length(); i++) {
+                    if (applyServerRice(db, changes.getJSONObject(i))) {
+                        mPulled++;
+                    }
+                }
+                ContentValues state = new ContentValues();
+                state.put(RiceDbHelper.SYNC_STATE_COLUMN_KEY, RiceDbHelper.SYNC_STATE_PULL_TOKEN);
+                state.put(RiceDbHelper.SYNC_STATE_COLUMN_VALUE, page.getString(JSON_NEXT));
+                db.replace(RiceDbHelper.SYNC_STATE_TABLE_NAME, null, state);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            more = page.optBoolean(JSON_MORE) && changes.length() > 0;
+        }
+    }
+
+    private static String readPullToken(SQLiteDatabase db) {
+        Cursor cursor = db.query(RiceDbHelper.SYNC_STATE_TABLE_NAME,
+                new String[] { RiceDbHelper.SYNC_STATE_COLUMN_VALUE },
+                RiceDbHelper.SYNC_STATE_COLUMN_KEY + "=?",
+                new String[] { RiceDbHelper.SYNC_STATE_PULL_TOKEN }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Apply a rice of the server to the local copy: the server wins over the local changes.
+     * Risi the local copy already has at the same version or a later one are skipped.
+     *
+     * @return true if the local copy changed
+     */
+    private static boolean applyServerRice(SQLiteDatabase db, JSONObject rice)
+            throws JSONException {
+        String remoteId = rice.getString(JSON_ID);
+        long version = rice.getLong(JSON_VERSION);
+        String[] key = { remoteId };
+        // Not sent back to the server, whatever happens to the local rice
+        deleteTombstone(db, remoteId);
+
+        if (rice.optBoolean(JSON_DELETED)) {
+            Cursor cursor = db.query(RiceEntry.TABLE_NAME, new String[] { RiceEntry._ID },
+                    RiceDbHelper.SYNC_COLUMN_REMOTE_ID + "=?", key, null, null, null);
+            String[] id;
+            try {
+                if (!cursor.moveToFirst()) {
+                    return false;
+                }
+                id = new String[] { cursor.getString(0) };
+            } finally {
+                cursor.close();
+            }
+            // The key is cleared first, so the delete doesn't leave a tombstone
+            ContentValues unlink = new ContentValues();
+            unlink.putNull(RiceDbHelper.SYNC_COLUMN_REMOTE_ID);
+            db.update(RiceEntry.TABLE_NAME, unlink, RiceEntry._ID + "=?", id);
+            return db.delete(RiceEntry.TABLE_NAME, RiceEntry._ID + "=?", id) > 0;
+        }
+
+        String name = optString(rice, RiceEntry.COLUMN_RICE_NAME);
+        int packaging = rice.getInt(RiceEntry.COLUMN_PACKAGING);
+        int price = rice.getInt(RiceEntry.COLUMN_PRICE);
+        if (name == null || !RiceEntry.isValidPackaging(packaging) || price < 0) {
+            Log.w(LOG_TAG, "Skipping invalid rice " + remoteId + " from the server");
+            return false;
+        }
+        ContentValues values = new ContentValues();
+        values.put(RiceEntry.COLUMN_RICE_NAME, name);
+        values.put(RiceEntry.COLUMN_BREED, optString(rice, RiceEntry.COLUMN_BREED));
+        values.put(RiceEntry.COLUMN_PACKAGING, packaging);
+        values.put(RiceEntry.COLUMN_PRICE, price);
+        values.put(RiceEntry.COLUMN_DESCRIPTION, optString(rice, RiceEntry.COLUMN_DESCRIPTION));
+        values.put(RiceDbHelper.SYNC_COLUMN_VERSION, version);
+        values.put(RiceDbHelper.SYNC_COLUMN_DIRTY, 0);
+        if (db.update(RiceEntry.TABLE_NAME, values, RiceDbHelper.SYNC_COLUMN_REMOTE_ID + "=? AND ("
+                + RiceDbHelper.SYNC_COLUMN_VERSION + " IS NULL OR " + RiceDbHelper.SYNC_COLUMN_VERSION
+                + "<?)", new String[] { remoteId, String.valueOf(version) }) > 0) {
+            return true;
+        }
+        values.put(RiceDbHelper.SYNC_COLUMN_REMOTE_ID, remoteId);
+        // Ignored if the rice is already there, at the same version or a later one
+        return db.insertWithOnConflict(RiceEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE) != -1;
+    }
+
+    /**
+     * Put the columns of a rice into a JSON object of the API.
+     *
+     * @param values name, breed, packaging, price and description
+     */
+    private static void putRice(JSONObject rice, Object[] values) throws JSONException {
+        rice.put(RiceEntry.COLUMN_RICE_NAME, values[0]);
+        rice.put(RiceEntry.COLUMN_BREED, values[1] == null ? JSONObject.NULL : values[1]);
+        rice.put(RiceEntry.COLUMN_PACKAGING, values[2]);
+        rice.put(RiceEntry.COLUMN_PRICE, values[3]);
+        rice.put(RiceEntry.COLUMN_DESCRIPTION, values[4] == null ? JSONObject.NULL : values[4]);
+    }
+
+    /**
+     * Returns a string of a JSON object, or null if it's missing or null.
+     */
+    private static String optString(JSONObject object, String name) throws JSONException {
+        return object.isNull(name) ? null : object.getString(name);
+    }
+
+    /**
+     * Send a request to the API and return the JSON object of the answer. The bodies are
+     * compressed with gzip, and the answer may be too.
+     *
+     * @param body the body of the request, or null for none
+     */
+    private JSONObject request(String method, String path, JSONObject body)
+            throws IOException, JSONException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mBaseUrl + path).openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setRequestMethod(method);
+            connection.setRequestProperty("Accept", "application/json");
+            // Set explicitly, so the answer has to be decompressed here
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setChunkedStreamingMode(0);
+                connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                Writer writer = new OutputStreamWriter(
+                        new GZIPOutputStream(connection.getOutputStream()), "UTF-8");
+                try {
+                    writer.write(body.toString());
+                } finally {
+                    writer.close();
+                }
+            }
+
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Sync request " + method + " " + path + " failed with "
+                        + status);
+            }
+            InputStream input = connection.getInputStream();
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                input = new GZIPInputStream(input);
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+            try {
+                StringBuilder text = new StringBuilder();
+                char[] buffer = new char[8192];
+                int read;
+                while ((read = reader.read(buffer)) != -1) {
+                    text.append(buffer, 0, read);
+                }
+                return new JSONObject(text.toString());
+            } finally {
+                reader.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
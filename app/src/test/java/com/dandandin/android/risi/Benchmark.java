@@ -0,0 +1,141 @@
+package com.dandandin.android.risi;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Settings and reports of the benchmarks. The benchmarks only run when the risi.benchmark
+ * system property is true (./gradlew testDebugUnitTest -Pbenchmark), so the tests stay quick.
+ * Their results are printed and appended to a tab separated file for each benchmark, in the
+ * directory given by the risi.benchmark.reports property.
+ */
+public final class Benchmark {
+
+    /** Table sizes of the benchmarks that sweep them, unless risi.benchmark.sizes says otherwise */
+    private static final String DEFAULT_SIZES = "1000,10000,100000,1000000";
+
+    private Benchmark() {}
+
+    /**
+     * Returns whether the benchmarks run.
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("risi.benchmark");
+    }
+
+    /**
+     * Returns the numbers of risi to measure the operations with, from the smallest.
+     */
+    public static int[] getTableSizes() {
+        String[] values = System.getProperty("risi.benchmark.sizes", DEFAULT_SIZES).split(",");
+        int[] sizes = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            sizes[i] = Integer.parseInt(values[i].trim());
+        }
+        Arrays.sort(sizes);
+        return sizes;
+    }
+
+    /**
+     * Print a line of results and append it to the report of a benchmark.
+     *
+     * @param benchmark name of the benchmark, and of its report
+     * @param header    names of the columns of the line, written when the report is created
+     * @param line      the values, separated by tabs
+     */
+    public static void report(String benchmark, String header, String line) {
+        System.out.println(benchmark + "\t" + line);
+        File directory = new File(System.getProperty("risi.benchmark.reports", "build/reports/benchmarks"));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        File file = new File(directory, benchmark + ".tsv");
+        boolean created = !file.exists();
+        try {
+            Writer writer = new FileWriter(file, true);
+            try {
+                if (created) {
+                    writer.write(header + "\n");
+                }
+                writer.write(line + "\n");
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write " + file + ": " + e);
+        }
+    }
+
+    /**
+     * Latencies of the runs of an operation, in nanoseconds.
+     */
+    public static final class Latencies {
+        /** Names of the columns of {@link #toString()} */
+        public static final String HEADER = "ops\tops_per_s\tp50_us\tp95_us\tp99_us\tmax_us";
+
+        private long[] mNanos;
+        private int mCount;
+
+        public Latencies(int capacity) {
+            mNanos = new long[Math.max(capacity, 1)];
+        }
+
+        /**
+         * Add the latency of a run.
+         *
+         * @param startNanos value of System.nanoTime() when the run started
+         */
+        public void addSince(long startNanos) {
+            add(System.nanoTime() - startNanos);
+        }
+
+        public void add(long nanos) {
+            if (mCount == mNanos.length) {
+                mNanos = Arrays.copyOf(mNanos, mCount * 2);
+            }
+            mNanos[mCount++] = nanos;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Returns the runs per second, if they had run one after the other.
+         */
+        public double getOpsPerSecond() {
+            long total = 0;
+            for (int i = 0; i < mCount; i++) {
+                total += mNanos[i];
+            }
+            return total == 0 ? 0 : mCount * 1e9 / total;
+        }
+
+        /**
+         * Returns the latency that the given fraction of the runs didn't exceed, in nanoseconds.
+         */
+        public long getPercentile(double fraction) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(mNanos, mCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(fraction * mCount) - 1;
+            return sorted[Math.min(Math.max(index, 0), mCount - 1)];
+        }
+
+        /**
+         * Returns the values of the {@link #HEADER} columns, separated by tabs.
+         */
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d\t%.0f\t%.1f\t%.1f\t%.1f\t%.1f", mCount,
+                    getOpsPerSecond(), getPercentile(0.5) / 1e3, getPercentile(0.95) / 1e3,
+                    getPercentile(0.99) / 1e3, getPercentile(1) / 1e3);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.dandandin.android.risi;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.text.TextUtils;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.TextView;
+
+import com.dandandin.android.risi.Benchmark.Latencies;
+import com.dandandin.android.risi.data.InMemoryRiceProvider;
+import com.dandandin.android.risi.data.RiceContract;
+import com.dandandin.android.risi.data.RiceContract.RiceEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Throughput and allocations of the binding of the rows of the catalog by
+ * {@link RiceCursorAdapter}, compared to the binding it replaced, which looked up the views
+ * and the columns and read the name and the breed into new strings for every row. The rows
+ * come from a page of the catalog read through the provider, and are bound to a few recycled
+ * items, as the list does while the user flings through it. The cursor window and the text
+ * views of Robolectric allocate on their own, so the bytes per bind are only comparable between
+ * the two adapters.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class RiceCursorAdapterBenchmark {
+
+    private static final String NAME = "RiceCursorAdapterBenchmark";
+
+    private static final String HEADER = "adapter\tbytes_per_bind\t" + Latencies.HEADER;
+
+    /** Rows bound by each pass over the cursor */
+    private static final int ROWS = 1000;
+
+    /** Passes over the cursor of each run */
+    private static final int PASSES = 20;
+
+    /** Items recycled by the list, about a screen of them */
+    private static final int RECYCLED_ITEMS = 12;
+
+    private static final String[] BREEDS = { "Arborio", "Carnaroli", "Basmati", "" };
+
+    private static final String[] PROJECTION = {
+            RiceEntry._ID,
+            RiceEntry.COLUMN_RICE_NAME,
+            RiceEntry.COLUMN_BREED };
+
+    private Context mContext;
+
+    /**
+     * The binding of the rows before the view holder and the cached columns, to compare with.
+     */
+    private static class LookupRiceCursorAdapter extends RiceCursorAdapter {
+
+        LookupRiceCursorAdapter(Context context, Cursor c) {
+            super(context, c);
+        }
+
+        @Override
+        public void bindView(View view, Context context, Cursor cursor) {
+            TextView nameTextView = (TextView) view.findViewById(R.id.name);
+            TextView summaryTextView = (TextView) view.findViewById(R.id.summary);
+
+            int nameColumnIndex = cursor.getColumnIndex(RiceEntry.COLUMN_RICE_NAME);
+            int breedColumnIndex = cursor.getColumnIndex(RiceEntry.COLUMN_BREED);
+
+            String riceName = cursor.getString(nameColumnIndex);
+            String riceBreed = cursor.getString(breedColumnIndex);
+            if (TextUtils.isEmpty(riceBreed)) {
+                riceBreed = context.getString(R.string.unknown_breed);
+            }
+
+            nameTextView.setText(riceName);
+            summaryTextView.setText(riceBreed);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        assumeTrue("Run with -Pbenchmark", Benchmark.isEnabled());
+        mContext = RuntimeEnvironment.application;
+        Robolectric.setupContentProvider(InMemoryRiceProvider.class, RiceContract.CONTENT_AUTHORITY);
+
+        ContentValues[] values = new ContentValues[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            values[i] = new ContentValues();
+            values[i].put(RiceEntry.COLUMN_RICE_NAME, "Rice " + i);
+            values[i].put(RiceEntry.COLUMN_BREED, BREEDS[i % BREEDS.length]);
+            values[i].put(RiceEntry.COLUMN_PACKAGING, RiceEntry.PACK_VACUUMCARTON);
+            values[i].put(RiceEntry.COLUMN_PRICE, i);
+        }
+        assertEquals(ROWS, mContext.getContentResolver().bulkInsert(RiceEntry.CONTENT_URI, values));
+    }
+
+    @Test
+    public void bindThroughput() {
+        ContentResolver resolver = mContext.getContentResolver();
+        Cursor cursor = resolver.query(RiceEntry.buildPageUri(RiceEntry._ID, false, null, null,
+                ROWS), PROJECTION, null, null, null);
+        try {
+            assertEquals(ROWS, cursor.getCount());
+            // Both run twice, so neither is measured before the code is compiled
+            for (int run = 0; run < 2; run++) {
+                measure("lookup", new LookupRiceCursorAdapter(mContext, cursor), run == 1);
+                measure("view_holder", new RiceCursorAdapter(mContext, cursor), run == 1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void measure(String name, RiceCursorAdapter adapter, boolean report) {
+        ViewGroup parent = new FrameLayout(mContext);
+        View[] items = new View[RECYCLED_ITEMS];
+        for (int i = 0; i < RECYCLED_ITEMS; i++) {
+            items[i] = adapter.getView(i, null, parent);
+        }
+
+        Latencies latencies = new Latencies(PASSES * ROWS);
+        long allocated = getAllocatedBytes();
+        for (int pass = 0; pass < PASSES; pass++) {
+            for (int position = 0; position < ROWS; position++) {
+                long start = System.nanoTime();
+                adapter.getView(position, items[position % RECYCLED_ITEMS], parent);
+                latencies.addSince(start);
+            }
+        }
+        allocated = getAllocatedBytes() - allocated;
+        if (report) {
+            Benchmark.report(NAME, HEADER, name + "\t" + (allocated < 0 ? "n/a"
+                    : String.valueOf(allocated / latencies.getCount())) + "\t" + latencies);
+        }
+    }
+
+    /**
+     * Returns the bytes allocated so far by this thread, or a negative value if the virtual
+     * machine doesn't tell. The latencies recorded allocate nothing, their array is ready.
+     */
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,26 @@
+package com.dandandin.android.risi.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * {@link RiceProvider} on an in-memory database of its own, so the tests and the benchmarks
+ * start from an empty catalog and never touch risi.db. Set it up with
+ * Robolectric.setupContentProvider(InMemoryRiceProvider.class, RiceContract.CONTENT_AUTHORITY).
+ */
+public class InMemoryRiceProvider extends RiceProvider {
+
+    private RiceDbHelper mHelper;
+
+    @Override
+    RiceDbHelper createDbHelper() {
+        mHelper = new RiceDbHelper(getContext(), null, false, 0, RiceDbHelper.SYNCHRONOUS_OFF);
+        return mHelper;
+    }
+
+    /**
+     * Returns the database of the provider, e.g. to check the query plans.
+     */
+    SQLiteDatabase getDatabase() {
+        return mHelper.getWritableDatabase();
+    }
+}
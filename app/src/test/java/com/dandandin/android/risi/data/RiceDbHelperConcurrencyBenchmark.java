@@ -0,0 +1,177 @@
+package com.dandandin.android.risi.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.dandandin.android.risi.Benchmark;
+import com.dandandin.android.risi.Benchmark.Latencies;
+import com.dandandin.android.risi.data.RiceContract.RiceEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Latency of the reads of the catalog while a writer keeps saving risi, in the concurrent mode
+ * of {@link RiceDbHelper} (write-ahead logging) compared to the rollback journal. Each mode
+ * runs on a database file of its own with the real schema: the reads are first measured alone,
+ * then while another thread runs one write transaction after the other, as a burst of saves
+ * from the editor or an import would. With the rollback journal the database has a single
+ * connection, so every read waits for the transaction in progress to end.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class RiceDbHelperConcurrencyBenchmark {
+
+    private static final String NAME = "RiceDbHelperConcurrencyBenchmark";
+
+    private static final String HEADER = "mode\twriter\twrites_per_s\t" + Latencies.HEADER;
+
+    /** Risi in the table before the measures */
+    private static final int TABLE_SIZE = 10000;
+
+    /** Reads measured in each phase */
+    private static final int READS = 500;
+
+    /** Reads before the measured ones, so the statements are compiled */
+    private static final int WARM_UP_READS = 20;
+
+    /** Risi saved by each transaction of the writer */
+    private static final int WRITES_PER_TRANSACTION = 20;
+
+    /** Rows of a page of the catalog, as in CatalogActivity */
+    private static final int PAGE_SIZE = 50;
+
+    private static final String[] PROJECTION = {
+            RiceEntry._ID,
+            RiceEntry.COLUMN_RICE_NAME,
+            RiceEntry.COLUMN_BREED,
+            RiceEntry.COLUMN_PRICE,
+            RiceEntry.COLUMN_PACKAGING };
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        assumeTrue("Run with -Pbenchmark", Benchmark.isEnabled());
+        mContext = RuntimeEnvironment.application;
+    }
+
+    @Test
+    public void readerLatencyUnderSustainedWriter() throws InterruptedException {
+        measure("rollback", false);
+        measure("wal", true);
+    }
+
+    private void measure(String mode, boolean concurrent) throws InterruptedException {
+        String name = "concurrency_" + mode + ".db";
+        mContext.deleteDatabase(name);
+        RiceDbHelper helper = new RiceDbHelper(mContext, name, concurrent,
+                RiceDbHelper.DEFAULT_AUTO_CHECKPOINT, RiceDbHelper.SYNCHRONOUS_NORMAL);
+        try {
+            final SQLiteDatabase database = helper.getWritableDatabase();
+            assertEquals(concurrent, database.isWriteAheadLoggingEnabled());
+            database.beginTransaction();
+            try {
+                for (int i = 0; i < TABLE_SIZE; i++) {
+                    database.insert(RiceEntry.TABLE_NAME, null, rice(i));
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+
+            report(mode, "none", 0, read(helper));
+
+            // The writer runs until the reads are done
+            final AtomicBoolean stop = new AtomicBoolean();
+            final AtomicInteger writes = new AtomicInteger();
+            final CountDownLatch started = new CountDownLatch(1);
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int i = TABLE_SIZE;
+                    while (!stop.get()) {
+                        database.beginTransaction();
+                        try {
+                            for (int j = 0; j < WRITES_PER_TRANSACTION; j++) {
+                                database.insert(RiceEntry.TABLE_NAME, null, rice(i++));
+                            }
+                            database.setTransactionSuccessful();
+                        } finally {
+                            database.endTransaction();
+                        }
+                        writes.addAndGet(WRITES_PER_TRANSACTION);
+                        started.countDown();
+                    }
+                }
+            }, NAME);
+            writer.start();
+            started.await();
+            long start = System.nanoTime();
+            Latencies latencies;
+            try {
+                latencies = read(helper);
+            } finally {
+                stop.set(true);
+                writer.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            report(mode, "sustained", writes.get() / seconds, latencies);
+        } finally {
+            helper.close();
+            mContext.deleteDatabase(name);
+        }
+    }
+
+    /**
+     * Read the first page of the catalog over and over, as the loader does after each change.
+     */
+    private static Latencies read(RiceDbHelper helper) {
+        Latencies latencies = new Latencies(READS);
+        for (int i = -WARM_UP_READS; i < READS; i++) {
+            long start = System.nanoTime();
+            Cursor cursor = helper.getReadableDatabase().query(RiceEntry.TABLE_NAME, PROJECTION,
+                    null, null, null, null, RiceEntry._ID + " DESC", String.valueOf(PAGE_SIZE));
+            try {
+                while (cursor.moveToNext()) {
+                    cursor.getLong(0);
+                    cursor.getString(1);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (i >= 0) {
+                latencies.addSince(start);
+            }
+        }
+        return latencies;
+    }
+
+    private static ContentValues rice(int i) {
+        ContentValues values = new ContentValues();
+        values.put(RiceEntry.COLUMN_RICE_NAME, "Rice " + i);
+        values.put(RiceEntry.COLUMN_BREED, "Carnaroli");
+        values.put(RiceEntry.COLUMN_PACKAGING, i % 4);
+        values.put(RiceEntry.COLUMN_PRICE, i);
+        return values;
+    }
+
+    private static void report(String mode, String writer, double writesPerSecond,
+                               Latencies latencies) {
+        Benchmark.report(NAME, HEADER, mode + "\t" + writer + "\t"
+                + Math.round(writesPerSecond) + "\t" + latencies);
+    }
+}
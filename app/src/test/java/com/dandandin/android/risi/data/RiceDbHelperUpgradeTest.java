@@ -0,0 +1,210 @@
+package com.dandandin.android.risi.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.dandandin.android.risi.Benchmark;
+import com.dandandin.android.risi.Benchmark.Latencies;
+import com.dandandin.android.risi.data.RiceContract.RiceEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Upgrade of a database of the first version, with the risi of a big catalog, to the current
+ * one. Measures how long the app is blocked: the open of the database, which applies the
+ * schema changes in a single transaction, and then the longest wait of the reads and the
+ * writes of the catalog while {@link RiceDbHelper#runMigrations()} goes through the risi in
+ * the background. The migrated data is checked against the risi at the end. The catalog has
+ * 500000 risi when run with -Pbenchmark, and only a few thousand otherwise, which still takes
+ * several chunks.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class RiceDbHelperUpgradeTest {
+
+    private static final String NAME = "RiceDbHelperUpgradeTest";
+
+    private static final String HEADER = "rows\tphase\t" + Latencies.HEADER;
+
+    private static final String DATABASE_NAME = "upgrade.db";
+
+    /** Risi of the catalog upgraded by the benchmark */
+    private static final int BENCHMARK_ROWS = 500000;
+
+    /** Risi of the catalog upgraded by the test, enough for a few chunks of the migrations */
+    private static final int TEST_ROWS = 5000;
+
+    /** Rows of a page of the catalog, as in CatalogActivity */
+    private static final int PAGE_SIZE = 50;
+
+    private static final String[] BREEDS = { "Arborio", "Carnaroli", "Basmati", null };
+
+    private Context mContext;
+
+    private RiceDbHelper mHelper;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (mHelper != null) {
+            mHelper.close();
+        }
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void upgradeFromTheFirstVersion() throws InterruptedException {
+        int rows = Benchmark.isEnabled() ? BENCHMARK_ROWS : TEST_ROWS;
+        createFirstVersion(rows);
+
+        // The open is what the first query of the app waits for
+        mHelper = new RiceDbHelper(mContext, DATABASE_NAME, true,
+                RiceDbHelper.DEFAULT_AUTO_CHECKPOINT, RiceDbHelper.SYNCHRONOUS_NORMAL);
+        Latencies open = new Latencies(1);
+        long start = System.nanoTime();
+        final SQLiteDatabase database = mHelper.getWritableDatabase();
+        open.addSince(start);
+        report(rows, "open", open);
+
+        // The migrations run in the background, while the catalog is read and a rice is saved
+        // over and over
+        final AtomicLong migration = new AtomicLong();
+        Thread migrations = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                mHelper.runMigrations();
+                migration.set(System.nanoTime() - start);
+            }
+        }, NAME);
+        Latencies reads = new Latencies(1000);
+        Latencies writes = new Latencies(1000);
+        ContentValues values = new ContentValues();
+        migrations.start();
+        for (int i = 0; migrations.isAlive(); i++) {
+            start = System.nanoTime();
+            Cursor cursor = database.query(RiceEntry.TABLE_NAME, null, null, null, null, null,
+                    RiceEntry._ID + " DESC", String.valueOf(PAGE_SIZE));
+            try {
+                while (cursor.moveToNext()) {
+                    cursor.getString(cursor.getColumnIndexOrThrow(RiceEntry.COLUMN_RICE_NAME));
+                }
+            } finally {
+                cursor.close();
+            }
+            reads.addSince(start);
+
+            // Renamed risi must be searchable by their new name, migrated or not
+            values.put(RiceEntry.COLUMN_RICE_NAME, "Renamed " + i);
+            start = System.nanoTime();
+            assertEquals(1, database.update(RiceEntry.TABLE_NAME, values, RiceEntry._ID + "=?",
+                    new String[] { String.valueOf(1 + (i * 7919L) % rows) }));
+            writes.addSince(start);
+        }
+        migrations.join();
+        assertTrue("Migrations failed", migration.get() > 0);
+        Latencies total = new Latencies(1);
+        total.add(migration.get());
+        report(rows, "migrations", total);
+        report(rows, "reads during migrations", reads);
+        report(rows, "writes during migrations", writes);
+
+        // Nothing left to do: the indexes are built, and every rice is in the full-text index
+        // and the summary
+        assertFalse(mHelper.runMigrations());
+        for (String index : new String[] { "rices_name_index", "rices_breed_index",
+                "rices_packaging_index", "rices_price_index", "rices_remote_id_index",
+                "rices_dirty_index", "rices_packaging_name_index", "rices_packaging_breed_index",
+                "rices_packaging_price_index" }) {
+            assertEquals(index, 1, DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM "
+                    + "sqlite_master WHERE type='index' AND name=?", new String[] { index }));
+        }
+        assertEquals(rows, DatabaseUtils.queryNumEntries(database, RiceEntry.TABLE_NAME));
+        assertEquals(rows, DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM "
+                + RiceDbHelper.FTS_TABLE_NAME, null));
+        assertEquals(DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM "
+                        + RiceEntry.TABLE_NAME + " WHERE " + RiceEntry.COLUMN_RICE_NAME
+                        + " LIKE 'Renamed %'", null),
+                DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM "
+                        + RiceDbHelper.FTS_TABLE_NAME + " WHERE " + RiceDbHelper.FTS_TABLE_NAME
+                        + " MATCH 'renamed'", null));
+        assertEquals(rows, DatabaseUtils.longForQuery(database, "SELECT SUM("
+                + RiceEntry.COLUMN_COUNT + ") FROM " + RiceDbHelper.STATS_TABLE_NAME + " WHERE "
+                + RiceDbHelper.STATS_COLUMN_GROUP_BY + "=?",
+                new String[] { RiceEntry.COLUMN_PACKAGING }));
+    }
+
+    /**
+     * Create the database as the first version of the app did, with the given number of risi.
+     */
+    private void createFirstVersion(int rows) {
+        File file = mContext.getDatabasePath(DATABASE_NAME);
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            db.execSQL("CREATE TABLE " + RiceEntry.TABLE_NAME + " ("
+                    + RiceEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + RiceEntry.COLUMN_RICE_NAME + " TEXT NOT NULL, "
+                    + RiceEntry.COLUMN_BREED + " TEXT, "
+                    + RiceEntry.COLUMN_PACKAGING + " INTEGER NOT NULL, "
+                    + RiceEntry.COLUMN_PRICE + " INTEGER NOT NULL DEFAULT 0);");
+            SQLiteStatement insert = db.compileStatement("INSERT INTO " + RiceEntry.TABLE_NAME
+                    + " (" + RiceEntry.COLUMN_RICE_NAME + ", " + RiceEntry.COLUMN_BREED + ", "
+                    + RiceEntry.COLUMN_PACKAGING + ", " + RiceEntry.COLUMN_PRICE
+                    + ") VALUES (?, ?, ?, ?)");
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < rows; i++) {
+                    insert.bindString(1, "Rice " + i);
+                    String breed = BREEDS[i % BREEDS.length];
+                    if (breed == null) {
+                        insert.bindNull(2);
+                    } else {
+                        insert.bindString(2, breed);
+                    }
+                    insert.bindLong(3, i % 4);
+                    insert.bindLong(4, i);
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            insert.close();
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Report the latencies of a phase, when run as a benchmark.
+     */
+    private static void report(int rows, String phase, Latencies latencies) {
+        if (Benchmark.isEnabled()) {
+            Benchmark.report(NAME, HEADER, rows + "\t" + phase + "\t" + latencies);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.dandandin.android.risi.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
+
+import com.dandandin.android.risi.Benchmark;
+import com.dandandin.android.risi.R;
+import com.dandandin.android.risi.data.RiceContract.RiceEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Requeries saved by the coalescing of the change notifications of {@link RiceProvider}: a
+ * burst of writes, a write every few milliseconds as a scanner session would do, notifies the
+ * lists at most once per window, a batch notifies once when it ends, and a flush sends what is
+ * held right away. The observer stands for a list, which requeries on every notification. The
+ * clock is the one of Robolectric, so the windows don't depend on the speed of the machine.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class RiceNotificationTest {
+
+    private static final String NAME = "RiceNotificationTest";
+
+    private static final String HEADER = "writes\tinterval_ms\trequested\tsent\trequeries_saved";
+
+    /** Writes of the burst */
+    private static final int BURST_WRITES = 500;
+
+    /** Time between two writes of the burst */
+    private static final int BURST_INTERVAL_MILLIS = 5;
+
+    private ContentResolver mResolver;
+
+    private int mWindowMillis;
+
+    /** Notifications received by the list */
+    private int mRequeries;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(InMemoryRiceProvider.class, RiceContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mWindowMillis = RuntimeEnvironment.application.getResources()
+                .getInteger(R.integer.notify_window_millis);
+        mResolver.registerContentObserver(RiceEntry.CONTENT_URI, true, new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                mRequeries++;
+            }
+        });
+    }
+
+    @Test
+    public void burstOfWritesNotifiesOncePerWindow() {
+        for (int i = 0; i < BURST_WRITES; i++) {
+            Uri uri = mResolver.insert(RiceEntry.CONTENT_URI, rice(i));
+            assertNotNull(uri);
+            if (i % 2 == 1) {
+                // Half of the writes change a rice saved before
+                ContentValues values = new ContentValues();
+                values.put(RiceEntry.COLUMN_PRICE, i * 2);
+                assertEquals(1, mResolver.update(uri, values, null, null));
+            }
+            // Runs the flushes whose window ended in the meantime
+            ShadowLooper.idleMainLooper(BURST_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        // The last window ends
+        ShadowLooper.idleMainLooper(mWindowMillis, TimeUnit.MILLISECONDS);
+
+        Bundle stats = mResolver.call(RiceEntry.CONTENT_URI, RiceEntry.METHOD_NOTIFICATION_STATS,
+                null, null);
+        long requested = stats.getLong(RiceEntry.KEY_NOTIFICATIONS_REQUESTED);
+        long sent = stats.getLong(RiceEntry.KEY_NOTIFICATIONS_SENT);
+        report(requested, sent);
+
+        assertEquals(BURST_WRITES + BURST_WRITES / 2, requested);
+        assertEquals(sent, mRequeries);
+        // The first notification of each window goes right away, the others are sent together
+        // (as a single one) when the window ends
+        long windows = (long) BURST_WRITES * BURST_INTERVAL_MILLIS / mWindowMillis + 1;
+        assertTrue("Sent " + sent + " in " + windows + " windows", sent <= 2 * windows);
+    }
+
+    @Test
+    public void batchNotifiesOnce() throws RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < BURST_WRITES; i++) {
+            operations.add(ContentProviderOperation.newInsert(RiceEntry.CONTENT_URI)
+                    .withValues(rice(i)).build());
+        }
+        mResolver.applyBatch(RiceContract.CONTENT_AUTHORITY, operations);
+        ShadowLooper.idleMainLooper(mWindowMillis, TimeUnit.MILLISECONDS);
+        assertEquals(1, mRequeries);
+    }
+
+    @Test
+    public void flushSendsTheHeldNotifications() {
+        // The first write opens a window, the next ones are held
+        Uri first = mResolver.insert(RiceEntry.CONTENT_URI, rice(0));
+        assertEquals(1, mRequeries);
+        mResolver.insert(RiceEntry.CONTENT_URI, rice(1));
+        mResolver.delete(ContentUris.withAppendedId(RiceEntry.CONTENT_URI,
+                ContentUris.parseId(first)), null, null);
+        assertEquals(1, mRequeries);
+
+        Bundle stats = mResolver.call(RiceEntry.CONTENT_URI, RiceEntry.METHOD_FLUSH_NOTIFICATIONS,
+                null, null);
+        assertEquals(2, mRequeries);
+        assertEquals(3, stats.getLong(RiceEntry.KEY_NOTIFICATIONS_REQUESTED));
+        assertEquals(2, stats.getLong(RiceEntry.KEY_NOTIFICATIONS_SENT));
+
+        // Nothing is left for the end of the window
+        ShadowLooper.idleMainLooper(mWindowMillis, TimeUnit.MILLISECONDS);
+        assertEquals(2, mRequeries);
+    }
+
+    private static ContentValues rice(int i) {
+        ContentValues values = new ContentValues();
+        values.put(RiceEntry.COLUMN_RICE_NAME, "Rice " + i);
+        values.put(RiceEntry.COLUMN_PACKAGING, RiceEntry.PACK_VACUUMCARTON);
+        values.put(RiceEntry.COLUMN_PRICE, i);
+        return values;
+    }
+
+    /**
+     * Report the requeries saved by the burst, when run as a benchmark.
+     */
+    private static void report(long requested, long sent) {
+        if (Benchmark.isEnabled()) {
+            Benchmark.report(NAME, HEADER, BURST_WRITES + "\t" + BURST_INTERVAL_MILLIS + "\t"
+                    + requested + "\t" + sent + "\t" + (requested - sent));
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.dandandin.android.risi.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.dandandin.android.risi.Benchmark;
+import com.dandandin.android.risi.Benchmark.Latencies;
+import com.dandandin.android.risi.data.RiceContract.RiceEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Throughput and latency percentiles of the CRUD operations of {@link RiceProvider}, for each
+ * of the table sizes of {@link Benchmark#getTableSizes()}: insert, update by id, delete by id
+ * and by a selection on the price, query of a page of the catalog and query by id. Every size
+ * runs on a fresh in-memory database with the real schema and triggers, filled with
+ * {@link RiceProvider#bulkInsert}. The operations go through the ContentResolver, as the app
+ * does, and the reads go through all the rows of the cursor.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class RiceProviderBenchmark {
+
+    private static final String NAME = "RiceProviderBenchmark";
+
+    private static final String HEADER = "rows\toperation\t" + Latencies.HEADER;
+
+    /** Risi inserted by each bulkInsert while filling the table */
+    private static final int FILL_CHUNK = 5000;
+
+    /** Runs of each operation, at most a quarter of the table so the deletes never empty it */
+    private static final int MAX_OPS = 2000;
+
+    /** Runs of each operation before the measured ones, so the statements are compiled */
+    private static final int WARM_UP_OPS = 50;
+
+    /** Rows of a page of the catalog, as in CatalogActivity */
+    private static final int PAGE_SIZE = 50;
+
+    private static final String[] BREEDS = { "Arborio", "Carnaroli", "Basmati", "Jasmine", null };
+
+    private static final String[] PROJECTION = {
+            RiceEntry._ID,
+            RiceEntry.COLUMN_RICE_NAME,
+            RiceEntry.COLUMN_BREED,
+            RiceEntry.COLUMN_PRICE,
+            RiceEntry.COLUMN_PACKAGING };
+
+    private final Random mRandom = new Random(42);
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        assumeTrue("Run with -Pbenchmark", Benchmark.isEnabled());
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void crudAcrossTableSizes() {
+        for (int size : Benchmark.getTableSizes()) {
+            // A new provider replaces the previous one for the authority
+            Robolectric.setupContentProvider(InMemoryRiceProvider.class, RiceContract.CONTENT_AUTHORITY);
+            fill(size);
+            measure(size);
+        }
+    }
+
+    /**
+     * Insert the given number of risi: the i-th one has _id i and price i.
+     */
+    private void fill(int size) {
+        for (int first = 1; first <= size; first += FILL_CHUNK) {
+            int count = Math.min(FILL_CHUNK, size - first + 1);
+            ContentValues[] values = new ContentValues[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = rice(first + i);
+            }
+            assertEquals(count, mResolver.bulkInsert(RiceEntry.CONTENT_URI, values));
+        }
+    }
+
+    private static ContentValues rice(int i) {
+        ContentValues values = new ContentValues();
+        values.put(RiceEntry.COLUMN_RICE_NAME, "Rice " + i);
+        values.put(RiceEntry.COLUMN_BREED, BREEDS[i % BREEDS.length]);
+        values.put(RiceEntry.COLUMN_PACKAGING, i % 4);
+        values.put(RiceEntry.COLUMN_PRICE, i);
+        return values;
+    }
+
+    private void measure(int size) {
+        int ops = Math.min(MAX_OPS, size / 4);
+
+        // The risi deleted by id and by price are taken from different halves of the table,
+        // so every delete finds its rice
+        int[] shuffled = new int[size];
+        for (int i = 0; i < size; i++) {
+            shuffled[i] = i + 1;
+        }
+        for (int i = size - 1; i > 0; i--) {
+            int j = mRandom.nextInt(i + 1);
+            int swap = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = swap;
+        }
+
+        Latencies queryById = new Latencies(ops);
+        for (int i = -WARM_UP_OPS; i < ops; i++) {
+            Uri uri = ContentUris.withAppendedId(RiceEntry.CONTENT_URI, 1 + mRandom.nextInt(size));
+            long start = System.nanoTime();
+            int rows = readAll(mResolver.query(uri, PROJECTION, null, null, null));
+            record(queryById, i, start);
+            assertEquals(1, rows);
+        }
+        report(size, "query RICE_ID", queryById);
+
+        Latencies queryPage = new Latencies(ops);
+        for (int i = -WARM_UP_OPS; i < ops; i++) {
+            // A page somewhere in the catalog sorted by date, as read while scrolling
+            Uri uri = RiceEntry.buildPageUri(RiceEntry._ID, false, null,
+                    (long) mRandom.nextInt(size), PAGE_SIZE).buildUpon()
+                    .appendQueryParameter(RiceEntry.QUERY_PARAMETER_CACHE, "false").build();
+            long start = System.nanoTime();
+            readAll(mResolver.query(uri, PROJECTION, null, null, null));
+            record(queryPage, i, start);
+        }
+        report(size, "query RICES page", queryPage);
+
+        Latencies update = new Latencies(ops);
+        ContentValues values = new ContentValues();
+        for (int i = -WARM_UP_OPS; i < ops; i++) {
+            int id = 1 + mRandom.nextInt(size);
+            values.put(RiceEntry.COLUMN_RICE_NAME, "Rice " + id + " v" + i);
+            long start = System.nanoTime();
+            int rows = mResolver.update(ContentUris.withAppendedId(RiceEntry.CONTENT_URI, id),
+                    values, null, null);
+            record(update, i, start);
+            assertEquals(1, rows);
+        }
+        report(size, "update by id", update);
+
+        Latencies insert = new Latencies(ops);
+        for (int i = -WARM_UP_OPS; i < ops; i++) {
+            ContentValues rice = rice(size + WARM_UP_OPS + i + 1);
+            long start = System.nanoTime();
+            Uri uri = mResolver.insert(RiceEntry.CONTENT_URI, rice);
+            record(insert, i, start);
+            assertNotNull(uri);
+        }
+        report(size, "insert", insert);
+
+        // The warm-up runs take risi of their own too
+        int deletes = Math.min(ops, size / 2 - WARM_UP_OPS);
+        Latencies deleteById = new Latencies(deletes);
+        for (int i = -WARM_UP_OPS; i < deletes; i++) {
+            int id = shuffled[WARM_UP_OPS + i];
+            long start = System.nanoTime();
+            int rows = mResolver.delete(ContentUris.withAppendedId(RiceEntry.CONTENT_URI, id),
+                    null, null);
+            record(deleteById, i, start);
+            assertEquals(1, rows);
+        }
+        report(size, "delete by id", deleteById);
+
+        Latencies deleteBySelection = new Latencies(deletes);
+        String selection = RiceEntry.COLUMN_PRICE + "=?";
+        for (int i = -WARM_UP_OPS; i < deletes; i++) {
+            int price = shuffled[size / 2 + WARM_UP_OPS + i];
+            long start = System.nanoTime();
+            int rows = mResolver.delete(RiceEntry.CONTENT_URI, selection,
+                    new String[] { String.valueOf(price) });
+            record(deleteBySelection, i, start);
+            assertEquals(1, rows);
+        }
+        report(size, "delete by selection", deleteBySelection);
+    }
+
+    /**
+     * Go through all the rows of a cursor and close it.
+     *
+     * @return the number of rows
+     */
+    private static int readAll(Cursor cursor) {
+        int rows = 0;
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                cursor.getString(1);
+                rows++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Record a run, unless it's one of the warm-up ones (negative index).
+     */
+    private static void record(Latencies latencies, int index, long start) {
+        if (index >= 0) {
+            latencies.addSince(start);
+        }
+    }
+
+    private static void report(int size, String operation, Latencies latencies) {
+        Benchmark.report(NAME, HEADER, size + "\t" + operation + "\t" + latencies);
+    }
+}
@@ -0,0 +1,300 @@
+package com.dandandin.android.risi.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.net.Uri;
+
+import com.dandandin.android.risi.data.RiceContract.RiceEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that the hot queries of the catalog use the indexes of the
+ * risi table: every page of the list, in each sort order, with and without the packaging
+ * filter, and the read of a single rice. The queries are the ones {@link RiceProvider} really
+ * runs for the URIs the catalog and the editor ask for, recorded through a cursor factory.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class RiceQueryPlanTest {
+
+    /** Rows of a page of the catalog, as in CatalogActivity */
+    private static final int PAGE_SIZE = 50;
+
+    private static final String[] PROJECTION = {
+            RiceEntry._ID,
+            RiceEntry.COLUMN_RICE_NAME,
+            RiceEntry.COLUMN_BREED,
+            RiceEntry.COLUMN_PRICE,
+            RiceEntry.COLUMN_PACKAGING };
+
+    /** Column of EXPLAIN QUERY PLAN with the description of each step */
+    private static final int DETAIL_COLUMN_INDEX = 3;
+
+    private ContentResolver mResolver;
+
+    private RecordingRiceProvider mProvider;
+
+    /**
+     * {@link RiceProvider} that records the SQL of the queries it runs. The cursor factory is
+     * ignored for in-memory databases, so it uses a file of its own.
+     */
+    public static class RecordingRiceProvider extends RiceProvider {
+
+        final List<String> mQueries = Collections.synchronizedList(new ArrayList<String>());
+
+        private RiceDbHelper mHelper;
+
+        @Override
+        RiceDbHelper createDbHelper() {
+            SQLiteDatabase.CursorFactory factory = new SQLiteDatabase.CursorFactory() {
+                @Override
+                public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver,
+                                        String editTable, SQLiteQuery query) {
+                    // The SQL is only available through toString(), as "SQLiteQuery: <sql>"
+                    String sql = query.toString();
+                    mQueries.add(sql.substring(sql.indexOf(':') + 1).trim());
+                    return new SQLiteCursor(driver, editTable, query);
+                }
+            };
+            mHelper = new RiceDbHelper(getContext(), "query_plans.db", factory, false, 0,
+                    RiceDbHelper.SYNCHRONOUS_OFF);
+            return mHelper;
+        }
+
+        SQLiteDatabase getDatabase() {
+            return mHelper.getWritableDatabase();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.setupContentProvider(RecordingRiceProvider.class,
+                RiceContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+
+        ContentValues[] values = new ContentValues[500];
+        String[] breeds = { "Arborio", "Carnaroli", "Basmati", null };
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(RiceEntry.COLUMN_RICE_NAME, "Rice " + i);
+            values[i].put(RiceEntry.COLUMN_BREED, breeds[i % breeds.length]);
+            values[i].put(RiceEntry.COLUMN_PACKAGING, i % 4);
+            values[i].put(RiceEntry.COLUMN_PRICE, i);
+        }
+        assertEquals(values.length, mResolver.bulkInsert(RiceEntry.CONTENT_URI, values));
+    }
+
+    @Test
+    public void pagesUseTheIndexOfTheSortKey() {
+        assertPageUses(RiceEntry._ID, "INTEGER PRIMARY KEY", "42");
+        assertPageUses(RiceEntry.COLUMN_RICE_NAME, "rices_name_index", "Rice 42");
+        assertPageUses(RiceEntry.COLUMN_BREED, "rices_breed_index", "Basmati");
+        assertPageUses(RiceEntry.COLUMN_PRICE, "rices_price_index", "42");
+    }
+
+    @Test
+    public void pagesAfterANullBreedUseTheBreedIndex() {
+        for (boolean descending : new boolean[] { false, true }) {
+            List<List<String>> plans = explain(RiceEntry.buildPageUri(RiceEntry.COLUMN_BREED,
+                    descending, null, 42L, PAGE_SIZE), null, null);
+            assertUsesIndex(plans, "rices_breed_index");
+            assertNoSort(plans);
+        }
+    }
+
+    @Test
+    public void pagesReachingTheNullBreedsUseTheBreedIndex() {
+        // The last risi of the lowest breed, then the ones without a breed
+        Uri uri = RiceEntry.buildPageUri(RiceEntry.COLUMN_BREED, true, "Arborio", 42L, PAGE_SIZE);
+        List<List<String>> plans = explain(uri, null, null);
+        assertEquals(2, plans.size());
+        assertUsesIndex(plans, "rices_breed_index");
+        assertNoSort(plans);
+
+        Cursor cursor = mResolver.query(uri, PROJECTION, null, null, null);
+        try {
+            assertEquals(PAGE_SIZE, cursor.getCount());
+            long lastId = 42;
+            boolean nulls = false;
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                if (cursor.isNull(2)) {
+                    // The ids start over with the null values
+                    lastId = nulls ? lastId : Long.MAX_VALUE;
+                    nulls = true;
+                } else {
+                    assertFalse("Breed after the null ones", nulls);
+                    assertEquals("Arborio", cursor.getString(2));
+                }
+                assertTrue("Not in order: " + id + " after " + lastId, id < lastId);
+                lastId = id;
+            }
+            assertTrue(nulls);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void filteredPagesSearchAnIndex() {
+        String selection = RiceEntry.COLUMN_PACKAGING + "=?";
+        String[] selectionArgs = { String.valueOf(RiceEntry.PACK_VACUUMCARTON) };
+        for (String sortKey : new String[] { RiceEntry._ID, RiceEntry.COLUMN_RICE_NAME,
+                RiceEntry.COLUMN_BREED, RiceEntry.COLUMN_PRICE }) {
+            for (boolean descending : new boolean[] { false, true }) {
+                List<List<String>> plans = explain(RiceEntry.buildPageUri(sortKey, descending,
+                        null, null, PAGE_SIZE), selection, selectionArgs);
+                assertSearches(plans);
+                assertNoSort(plans);
+                plans = explain(RiceEntry.buildPageUri(sortKey, descending,
+                        sortKey.equals(RiceEntry._ID) ? null : "42", 42L, PAGE_SIZE),
+                        selection, selectionArgs);
+                assertSearches(plans);
+                assertNoSort(plans);
+            }
+        }
+    }
+
+    @Test
+    public void riceByIdUsesThePrimaryKey() {
+        List<List<String>> plans = explain(
+                ContentUris.withAppendedId(RiceEntry.CONTENT_URI, 42), null, null);
+        assertUsesIndex(plans, "INTEGER PRIMARY KEY");
+    }
+
+    /**
+     * Assert that the first page and a page in the middle of the list, in both directions,
+     * are read in order from the given index, without sorting.
+     */
+    private void assertPageUses(String sortKey, String index, String afterKey) {
+        for (boolean descending : new boolean[] { false, true }) {
+            List<List<String>> plans = explain(RiceEntry.buildPageUri(sortKey, descending,
+                    null, null, PAGE_SIZE), null, null);
+            assertUsesIndex(plans, index);
+            assertNoSort(plans);
+
+            plans = explain(RiceEntry.buildPageUri(sortKey, descending,
+                    sortKey.equals(RiceEntry._ID) ? null : afterKey, 42L, PAGE_SIZE), null, null);
+            assertUsesIndex(plans, index);
+            assertNoSort(plans);
+        }
+    }
+
+    /**
+     * Run the query of the given URI through the provider, then explain the SQL it ran.
+     *
+     * @return the plan of each query run: the SQL, then the details of the steps
+     */
+    private List<List<String>> explain(Uri uri, String selection, String[] selectionArgs) {
+        // Skip the caches, so the query reaches the database every time
+        uri = uri.buildUpon().appendQueryParameter(RiceEntry.QUERY_PARAMETER_CACHE, "false")
+                .build();
+        mProvider.mQueries.clear();
+        Cursor cursor = mResolver.query(uri, PROJECTION, selection, selectionArgs, null);
+        cursor.close();
+
+        List<List<String>> plans = new ArrayList<List<String>>();
+        for (String sql : new ArrayList<String>(mProvider.mQueries)) {
+            if (!sql.startsWith("SELECT ") || !sql.contains(" FROM " + RiceEntry.TABLE_NAME + " ")) {
+                // A pragma of the maintenance of the database or a read of the migrations,
+                // run in the background
+                continue;
+            }
+            // The values don't change the plan, as long as there is one for every parameter
+            int parameters = 0;
+            for (int i = 0; i < sql.length(); i++) {
+                if (sql.charAt(i) == '?') {
+                    parameters++;
+                }
+            }
+            String[] args = new String[parameters];
+            Arrays.fill(args, "0");
+
+            List<String> plan = new ArrayList<String>();
+            plan.add(sql);
+            Cursor explain = mProvider.getDatabase().rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+            try {
+                while (explain.moveToNext()) {
+                    plan.add(explain.getString(DETAIL_COLUMN_INDEX));
+                }
+            } finally {
+                explain.close();
+            }
+            plans.add(plan);
+        }
+        assertFalse("No query run for " + uri, plans.isEmpty());
+        return plans;
+    }
+
+    /**
+     * Assert that every query reads the table through the given index (or INTEGER PRIMARY KEY).
+     */
+    private static void assertUsesIndex(List<List<String>> plans, String index) {
+        assertNoFullScan(plans);
+        for (List<String> plan : plans) {
+            boolean used = false;
+            for (String step : plan.subList(1, plan.size())) {
+                used |= step.contains("TABLE " + RiceEntry.TABLE_NAME) && step.contains(" " + index);
+            }
+            assertTrue("No " + index + " in " + plan, used);
+        }
+    }
+
+    /**
+     * Assert that no query reads the table without an index.
+     */
+    private static void assertNoFullScan(List<List<String>> plans) {
+        for (List<String> plan : plans) {
+            for (String step : plan.subList(1, plan.size())) {
+                assertFalse("Full scan in " + plan, step.startsWith("SCAN TABLE "
+                        + RiceEntry.TABLE_NAME) && !step.contains(" USING "));
+            }
+        }
+    }
+
+    /**
+     * Assert that every query seeks into an index of the table, instead of going through
+     * all of it, even in the order of an index.
+     */
+    private static void assertSearches(List<List<String>> plans) {
+        for (List<String> plan : plans) {
+            for (String step : plan.subList(1, plan.size())) {
+                assertFalse("Scan in " + plan, step.startsWith("SCAN TABLE "
+                        + RiceEntry.TABLE_NAME));
+            }
+        }
+    }
+
+    /**
+     * Assert that the rows come out of the index in order, so a page stops after its rows.
+     */
+    private static void assertNoSort(List<List<String>> plans) {
+        for (List<String> plan : plans) {
+            for (String step : plan.subList(1, plan.size())) {
+                assertFalse("Sort in " + plan, step.contains("TEMP B-TREE"));
+            }
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package com.dandandin.android.risi.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.dandandin.android.risi.data.RiceContract.RiceEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link RiceSync} against a local stand-in of the central price list ({@link FakePriceList}),
+ * through {@link RiceEntry#METHOD_SYNC} with the URL of the stand-in as the base URL.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+public class RiceSyncTest {
+
+    private final FakePriceList mPriceList = new FakePriceList();
+
+    private MockWebServer mServer;
+
+    private InMemoryRiceProvider mProvider;
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new MockWebServer();
+        mServer.setDispatcher(mPriceList);
+        mServer.start();
+        mProvider = Robolectric.setupContentProvider(InMemoryRiceProvider.class,
+                RiceContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void pushesDirtyRisiAndTombstones() throws Exception {
+        long carnaroli = insertRice("Carnaroli", 300);
+        long arborio = insertRice("Arborio", 250);
+
+        Bundle result = sync();
+        assertNull(result.getString(RiceEntry.KEY_SYNC_ERROR));
+        assertEquals(2, result.getInt(RiceEntry.KEY_SYNC_PUSHED));
+
+        // Both new risi were sent in one batch, without a base version
+        JSONArray changes = mPriceList.mBatches.get(0);
+        assertEquals(2, changes.length());
+        for (int i = 0; i < changes.length(); i++) {
+            assertTrue(changes.getJSONObject(i).isNull("base_version"));
+            assertFalse(changes.getJSONObject(i).getBoolean("deleted"));
+        }
+        assertEquals("Carnaroli", mPriceList.getRice(getRemoteId(carnaroli)).getString(
+                RiceEntry.COLUMN_RICE_NAME));
+        assertFalse(isDirty(carnaroli));
+        assertEquals(1, getVersion(carnaroli));
+
+        // The next sync only sends the deletion, based on the version on the server
+        String arborioKey = getRemoteId(arborio);
+        assertEquals(1, mResolver.delete(ContentUris.withAppendedId(RiceEntry.CONTENT_URI, arborio),
+                null, null));
+        assertEquals(1, countTombstones());
+
+        result = sync();
+        assertEquals(1, result.getInt(RiceEntry.KEY_SYNC_PUSHED));
+        JSONObject deletion = mPriceList.mBatches.get(1).getJSONObject(0);
+        assertEquals(arborioKey, deletion.getString("id"));
+        assertTrue(deletion.getBoolean("deleted"));
+        assertEquals(1, deletion.getLong("base_version"));
+        assertTrue(mPriceList.getRice(arborioKey).getBoolean("deleted"));
+        assertEquals(0, countTombstones());
+    }
+
+    @Test
+    public void pullsEveryPageFollowingTheNextToken() throws Exception {
+        // Two full pages and a part of one
+        for (int i = 0; i < 1200; i++) {
+            mPriceList.changeOnServer("remote" + i, "Rice " + i, i);
+        }
+
+        Bundle result = sync();
+        assertNull(result.getString(RiceEntry.KEY_SYNC_ERROR));
+        assertEquals(1200, result.getInt(RiceEntry.KEY_SYNC_PULLED));
+        assertEquals(1200, countRisi());
+        List<String> tokens = mPriceList.mPullTokens;
+        assertEquals(3, tokens.size());
+        assertEquals("", tokens.get(0));
+        assertEquals("500", tokens.get(1));
+        assertEquals("1000", tokens.get(2));
+
+        // The next sync goes on after the last change pulled
+        mPriceList.changeOnServer("remote7", "Rice 7 bis", 7);
+        result = sync();
+        assertEquals(1, result.getInt(RiceEntry.KEY_SYNC_PULLED));
+        assertEquals("1200", tokens.get(3));
+    }
+
+    @Test
+    public void serverWinsConflicts() throws Exception {
+        long id = insertRice("Venere", 400);
+        sync();
+        String key = getRemoteId(id);
+
+        // Another device changes the price, then this one changes the name
+        mPriceList.changeOnServer(key, "Venere", 450);
+        ContentValues values = new ContentValues();
+        values.put(RiceEntry.COLUMN_RICE_NAME, "Venere nero");
+        assertEquals(1, mResolver.update(ContentUris.withAppendedId(RiceEntry.CONTENT_URI, id),
+                values, null, null));
+
+        Bundle result = sync();
+        assertEquals(1, result.getInt(RiceEntry.KEY_SYNC_CONFLICTS));
+        assertEquals(0, result.getInt(RiceEntry.KEY_SYNC_PUSHED));
+        Cursor cursor = mResolver.query(ContentUris.withAppendedId(RiceEntry.CONTENT_URI, id),
+                new String[] { RiceEntry.COLUMN_RICE_NAME, RiceEntry.COLUMN_PRICE }, null, null,
+                null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Venere", cursor.getString(0));
+            assertEquals(450, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+        assertFalse(isDirty(id));
+        assertEquals(2, getVersion(id));
+        assertEquals("Venere", mPriceList.getRice(key).getString(RiceEntry.COLUMN_RICE_NAME));
+    }
+
+    @Test
+    public void markPushedKeepsRisiEditedDuringThePush() throws Exception {
+        final long id = insertRice("Basmati", 280);
+        mPriceList.mBeforeBatch = new Runnable() {
+            @Override
+            public void run() {
+                // Edited while the batch is on its way
+                ContentValues values = new ContentValues();
+                values.put(RiceEntry.COLUMN_PRICE, 290);
+                mResolver.update(ContentUris.withAppendedId(RiceEntry.CONTENT_URI, id), values,
+                        null, null);
+            }
+        };
+
+        Bundle result = sync();
+        assertEquals(1, result.getInt(RiceEntry.KEY_SYNC_PUSHED));
+        String key = getRemoteId(id);
+        assertEquals(280, mPriceList.getRice(key).getInt(RiceEntry.COLUMN_PRICE));
+        // Still dirty, now based on the version the server gave
+        assertTrue(isDirty(id));
+        assertEquals(1, getVersion(id));
+
+        mPriceList.mBeforeBatch = null;
+        result = sync();
+        assertEquals(1, result.getInt(RiceEntry.KEY_SYNC_PUSHED));
+        JSONObject change = mPriceList.mBatches.get(1).getJSONObject(0);
+        assertEquals(1, change.getLong("base_version"));
+        assertEquals(290, mPriceList.getRice(key).getInt(RiceEntry.COLUMN_PRICE));
+        assertFalse(isDirty(id));
+        assertEquals(2, getVersion(id));
+    }
+
+    private Bundle sync() {
+        return mResolver.call(RiceEntry.CONTENT_URI, RiceEntry.METHOD_SYNC,
+                mServer.url("/api/").toString(), null);
+    }
+
+    private long insertRice(String name, int price) {
+        ContentValues values = new ContentValues();
+        values.put(RiceEntry.COLUMN_RICE_NAME, name);
+        values.put(RiceEntry.COLUMN_PACKAGING, RiceEntry.PACK_BAG);
+        values.put(RiceEntry.COLUMN_PRICE, price);
+        Uri uri = mResolver.insert(RiceEntry.CONTENT_URI, values);
+        return ContentUris.parseId(uri);
+    }
+
+    private String getRemoteId(long id) {
+        return readSyncColumn(id, RiceDbHelper.SYNC_COLUMN_REMOTE_ID);
+    }
+
+    private long getVersion(long id) {
+        return Long.parseLong(readSyncColumn(id, RiceDbHelper.SYNC_COLUMN_VERSION));
+    }
+
+    private boolean isDirty(long id) {
+        return "1".equals(readSyncColumn(id, RiceDbHelper.SYNC_COLUMN_DIRTY));
+    }
+
+    private String readSyncColumn(long id, String column) {
+        Cursor cursor = mProvider.getDatabase().query(RiceEntry.TABLE_NAME,
+                new String[] { column }, RiceEntry._ID + "=?",
+                new String[] { String.valueOf(id) }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int countTombstones() {
+        return count(RiceDbHelper.SYNC_DELETIONS_TABLE_NAME);
+    }
+
+    private int countRisi() {
+        return count(RiceEntry.TABLE_NAME);
+    }
+
+    private int count(String table) {
+        Cursor cursor = mProvider.getDatabase().rawQuery("SELECT COUNT(*) FROM " + table, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * The API of the central price list described in {@link RiceSync}, in memory: the risi by
+     * key with their versions, and the log of their changes, whose position is the token of
+     * the pulls.
+     */
+    private static final class FakePriceList extends Dispatcher {
+
+        /** The current risi by key, deleted ones included */
+        private final Map<String, JSONObject> mRisi = new LinkedHashMap<String, JSONObject>();
+
+        /** The keys of the changed risi, in the order of the changes */
+        private final List<String> mLog = new ArrayList<String>();
+
+        /** The changes of every batch received, in order */
+        final List<JSONArray> mBatches = new ArrayList<JSONArray>();
+
+        /** The token of every pull received, in order */
+        final List<String> mPullTokens = new ArrayList<String>();
+
+        /** Run when a batch is received, before it is applied */
+        volatile Runnable mBeforeBatch;
+
+        @Override
+        public synchronized MockResponse dispatch(RecordedRequest request) {
+            try {
+                HttpUrl url = request.getRequestUrl();
+                if ("POST".equals(request.getMethod()) && url.encodedPath().endsWith("/batch")) {
+                    return json(batch(readGzipBody(request)));
+                }
+                if ("GET".equals(request.getMethod()) && url.encodedPath().endsWith("/changes")) {
+                    return json(changes(url.queryParameter("since"),
+                            Integer.parseInt(url.queryParameter("limit"))));
+                }
+                return new MockResponse().setResponseCode(404);
+            } catch (IOException e) {
+                return new MockResponse().setResponseCode(400).setBody(e.toString());
+            } catch (JSONException e) {
+                return new MockResponse().setResponseCode(400).setBody(e.toString());
+            }
+        }
+
+        synchronized JSONObject getRice(String key) {
+            return mRisi.get(key);
+        }
+
+        /**
+         * Change a rice on the server, as another device would.
+         */
+        synchronized void changeOnServer(String key, String name, int price)
+                throws JSONException {
+            JSONObject rice = new JSONObject();
+            rice.put("id", key);
+            rice.put("deleted", false);
+            rice.put(RiceEntry.COLUMN_RICE_NAME, name);
+            rice.put(RiceEntry.COLUMN_BREED, JSONObject.NULL);
+            rice.put(RiceEntry.COLUMN_PACKAGING, RiceEntry.PACK_BAG);
+            rice.put(RiceEntry.COLUMN_PRICE, price);
+            rice.put(RiceEntry.COLUMN_DESCRIPTION, JSONObject.NULL);
+            store(rice);
+        }
+
+        private JSONObject batch(JSONObject body) throws JSONException {
+            Runnable beforeBatch = mBeforeBatch;
+            if (beforeBatch != null) {
+                beforeBatch.run();
+            }
+            JSONArray changes = body.getJSONArray("changes");
+            mBatches.add(changes);
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < changes.length(); i++) {
+                JSONObject change = changes.getJSONObject(i);
+                String key = change.getString("id");
+                JSONObject current = mRisi.get(key);
+                long baseVersion = change.isNull("base_version") ? 0 : change.getLong("base_version");
+                JSONObject result = new JSONObject();
+                result.put("id", key);
+                if (current != null && current.getLong("version") != baseVersion) {
+                    result.put("status", "conflict");
+                    result.put("current", current);
+                } else {
+                    JSONObject rice = new JSONObject(change.toString());
+                    rice.remove("base_version");
+                    result.put("status", "ok");
+                    result.put("version", store(rice));
+                }
+                results.put(result);
+            }
+            JSONObject answer = new JSONObject();
+            answer.put("results", results);
+            return answer;
+        }
+
+        private JSONObject changes(String since, int limit) throws JSONException {
+            mPullTokens.add(since);
+            int first = since.length() == 0 ? 0 : Integer.parseInt(since);
+            int end = Math.min(first + limit, mLog.size());
+            JSONArray changes = new JSONArray();
+            for (int i = first; i < end; i++) {
+                changes.put(mRisi.get(mLog.get(i)));
+            }
+            JSONObject answer = new JSONObject();
+            answer.put("changes", changes);
+            answer.put("next", String.valueOf(end));
+            answer.put("more", end < mLog.size());
+            return answer;
+        }
+
+        /**
+         * Store a new version of a rice and log the change.
+         *
+         * @return the new version
+         */
+        private long store(JSONObject rice) throws JSONException {
+            String key = rice.getString("id");
+            JSONObject previous = mRisi.get(key);
+            long version = previous == null ? 1 : previous.getLong("version") + 1;
+            rice.put("version", version);
+            mRisi.put(key, rice);
+            mLog.add(key);
+            return version;
+        }
+
+        private static JSONObject readGzipBody(RecordedRequest request)
+                throws IOException, JSONException {
+            Reader reader = new InputStreamReader(
+                    new GZIPInputStream(request.getBody().inputStream()), "UTF-8");
+            try {
+                StringBuilder text = new StringBuilder();
+                char[] buffer = new char[8192];
+                int read;
+                while ((read = reader.read(buffer)) != -1) {
+                    text.append(buffer, 0, read);
+                }
+                return new JSONObject(text.toString());
+            } finally {
+                reader.close();
+            }
+        }
+
+        private static MockResponse json(JSONObject body) {
+            return new MockResponse()
+                    .setHeader("Content-Type", "application/json")
+                    .setBody(body.toString());
+        }
+    }
+}